@@ -0,0 +1,348 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.oracle.pic.project.dao.ResourceLocksDao;
+import com.oracle.pic.project.model.ResourceLockEntity;
+import com.oracle.pic.sfw.dal.Transaction;
+import com.oracle.pic.sfw.dal.TransactionProvider;
+import com.oracle.pic.sfw.dal.exceptions.TransactionCommitConflictException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link ResourceLockStore} over {@link ResourceLocksDao}.
+ *
+ * <p>Every operation is a single conditional write: the row is read once inside the transaction
+ * and the write is only staged when the expected state holds. A concurrent writer surfaces as a
+ * {@link TransactionCommitConflictException} on commit, which is the failed compare. Attempts that
+ * do not write anything are rolled back instead of committed.
+ *
+ * <p>Resource lock rows are never deleted by the framework, so once a row has been observed the
+ * existence check is skipped on later attempts. Only the rows touched recently are remembered, up
+ * to {@link #EXISTING_ROWS_MAXIMUM_SIZE} of them, so that workloads with unique IDs such as data
+ * paths or job IDs do not grow it without bound; a forgotten row only costs the existence check
+ * again.
+ *
+ * <p>{@link ResourceLocksDao} has no query over all the rows, so this store {@link
+ * #canListResourceLockIds cannot list them}: the {@link ResourceLockReaper} does not run over it,
+ * and a {@link ShardedResourceLockStore} of such stores cannot be resharded.
+ */
+public final class ConditionalResourceLocksDao implements ResourceLockStore {
+
+    static final long EXISTING_ROWS_MAXIMUM_SIZE = 100_000;
+    static final long EXISTING_ROWS_EXPIRY_MINUTES = 10;
+
+    private final ResourceLocksDao resourceLocksDao;
+    private final TransactionProvider transactor;
+
+    private final Cache<String, Boolean> existingRows =
+            CacheBuilder.newBuilder()
+                    .maximumSize(EXISTING_ROWS_MAXIMUM_SIZE)
+                    .expireAfterAccess(EXISTING_ROWS_EXPIRY_MINUTES, TimeUnit.MINUTES)
+                    .build();
+    private final LongAdder storeRoundTrips = new LongAdder();
+
+    public ConditionalResourceLocksDao(
+            ResourceLocksDao resourceLocksDao, TransactionProvider transactor) {
+        this.resourceLocksDao = resourceLocksDao;
+        this.transactor = transactor;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>All the rows are read and written in one transaction. Rows are visited in the iteration
+     * order of the collection, so callers should pass a sorted collection to keep the order
+     * deterministic across nodes.
+     */
+    @Override
+    public boolean acquireAllIfUnlocked(
+            Collection<String> resourceLockIds, ResourceLockRequest request) {
+
+        long now = System.currentTimeMillis();
+        boolean granted = true;
+        Map<String, ResourceLockRecord> grants = new LinkedHashMap<>();
+        Map<String, ResourceLockRecord> reservations = new LinkedHashMap<>();
+        Set<String> absent = new HashSet<>();
+
+        try (Transaction txn = transactor.beginTransaction("AcquireResourceLock")) {
+
+            for (String resourceLockId : resourceLockIds) {
+
+                ResourceLockEntity currentLock = find(txn, resourceLockId);
+                if (currentLock == null) {
+                    absent.add(resourceLockId);
+                }
+
+                ResourceLockRecord.Transition transition =
+                        toRecord(currentLock).acquire(request.forResource(resourceLockId), now);
+
+                if (transition.isGranted()) {
+                    if (transition.getNext() != null) {
+                        grants.put(resourceLockId, transition.getNext());
+                    }
+                    continue;
+                }
+
+                granted = false;
+                if (transition.getNext() != null) {
+                    reservations.put(resourceLockId, transition.getNext());
+                } else if (request.getReserveUntil() == 0) {
+                    // Nothing staged so far is applied, the transaction is rolled back on close
+                    return false;
+                }
+            }
+
+            write(txn, granted ? grants : reservations, absent);
+            return granted;
+        }
+    }
+
+    @Override
+    public Map<String, ResourceLockRecord> releaseAllIfOwner(
+            Collection<String> resourceLockIds, String ownerId) {
+
+        long now = System.currentTimeMillis();
+        Map<String, ResourceLockRecord> releases = new LinkedHashMap<>();
+
+        try (Transaction txn = transactor.beginTransaction("UnlockResourceLock")) {
+
+            for (String resourceLockId : resourceLockIds) {
+
+                ResourceLockEntity currentLock = find(txn, resourceLockId);
+                if (currentLock == null) {
+                    continue;
+                }
+
+                ResourceLockRecord next = toRecord(currentLock).release(ownerId, now);
+                if (next != null) {
+                    releases.put(resourceLockId, next);
+                }
+            }
+
+            write(txn, releases, Collections.emptySet());
+            return releases;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Every row is read once and all the writes are committed together, so a batch costs one
+     * commit instead of one per operation.
+     */
+    @Override
+    public void applyAll(List<ResourceLockOperation<?>> operations) {
+
+        long now = System.currentTimeMillis();
+        Map<String, ResourceLockRecord> current = new HashMap<>();
+        Map<String, ResourceLockRecord> writes = new LinkedHashMap<>();
+        Set<String> absent = new HashSet<>();
+
+        try (Transaction txn = transactor.beginTransaction("GroupCommitResourceLocks")) {
+
+            for (ResourceLockOperation<?> operation : operations) {
+
+                String resourceLockId = operation.getResourceLockId();
+                if (!current.containsKey(resourceLockId)) {
+                    ResourceLockEntity currentLock = find(txn, resourceLockId);
+                    if (currentLock == null) {
+                        absent.add(resourceLockId);
+                    }
+                    current.put(resourceLockId, toRecord(currentLock));
+                }
+
+                ResourceLockRecord next = operation.stage(current.get(resourceLockId), now);
+                if (next != null) {
+                    current.put(resourceLockId, next);
+                    writes.put(resourceLockId, next);
+                }
+            }
+
+            write(txn, writes, absent);
+        }
+        operations.forEach(ResourceLockOperation::commit);
+    }
+
+    @Override
+    public boolean leaveQueue(String resourceLockId, String ownerId) {
+
+        long now = System.currentTimeMillis();
+
+        try (Transaction txn = transactor.beginTransaction("LeaveResourceLockQueue")) {
+
+            ResourceLockEntity currentLock = find(txn, resourceLockId);
+            if (currentLock == null) {
+                return false;
+            }
+
+            ResourceLockRecord current = ResourceLockRecord.fromEntity(currentLock);
+            if (current.withoutExpired(now).isHeldBy(ownerId)) {
+                return true;
+            }
+
+            ResourceLockRecord next = current.withoutWaiter(ownerId, now);
+            if (next != null) {
+                write(txn, Collections.singletonMap(resourceLockId, next), Collections.emptySet());
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public boolean transferIfOwner(
+            String resourceLockId, String fromOwnerId, ResourceLockRequest to) {
+
+        try (Transaction txn = transactor.beginTransaction("TransferResourceLock")) {
+
+            ResourceLockEntity currentLock = find(txn, resourceLockId);
+            if (currentLock == null) {
+                return false;
+            }
+
+            ResourceLockRecord next = toRecord(currentLock).transfer(fromOwnerId, to);
+            if (next == null) {
+                return false;
+            }
+
+            write(txn, Collections.singletonMap(resourceLockId, next), Collections.emptySet());
+            return true;
+        }
+    }
+
+    @Override
+    public List<ResourceLockHolds.HoldKey> renewLeases(
+            Collection<ResourceLockHolds.HoldKey> holds, long leaseUntil) {
+
+        long now = System.currentTimeMillis();
+        Map<String, ResourceLockRecord> renewals = new LinkedHashMap<>();
+        List<ResourceLockHolds.HoldKey> lost = new ArrayList<>();
+
+        try (Transaction txn = transactor.beginTransaction("RenewResourceLockLeases")) {
+
+            for (ResourceLockHolds.HoldKey hold : holds) {
+
+                String resourceLockId = hold.getResourceLockId();
+                ResourceLockRecord current = renewals.get(resourceLockId);
+                if (current == null) {
+                    current = toRecord(find(txn, resourceLockId));
+                }
+
+                ResourceLockRecord next = current.renew(hold.getOwnerId(), leaseUntil, now);
+                if (next == null) {
+                    lost.add(hold);
+                } else {
+                    renewals.put(resourceLockId, next);
+                }
+            }
+
+            write(txn, renewals, Collections.emptySet());
+            return lost;
+        }
+    }
+
+    @Override
+    public int reapExpired(Collection<String> resourceLockIds) {
+
+        long now = System.currentTimeMillis();
+        Map<String, ResourceLockRecord> reaped = new LinkedHashMap<>();
+        int reclaimed = 0;
+
+        try (Transaction txn = transactor.beginTransaction("ReapResourceLocks")) {
+
+            for (String resourceLockId : resourceLockIds) {
+
+                ResourceLockEntity currentLock = find(txn, resourceLockId);
+                if (currentLock == null) {
+                    continue;
+                }
+
+                ResourceLockRecord current = ResourceLockRecord.fromEntity(currentLock);
+                ResourceLockRecord live = current.withoutExpired(now);
+                if (live != current) {
+                    reclaimed += current.getHolders().size() - live.getHolders().size();
+                    reaped.put(resourceLockId, live);
+                }
+            }
+
+            write(txn, reaped, Collections.emptySet());
+            return reclaimed;
+        }
+    }
+
+    /** Reads the lock outside of any transaction. */
+    @Override
+    public ResourceLockRecord read(String resourceLockId) {
+
+        if (existingRows.getIfPresent(resourceLockId) == null) {
+            storeRoundTrips.increment();
+            if (!resourceLocksDao.isResourceLockPresent(resourceLockId)) {
+                return ResourceLockRecord.absent();
+            }
+            existingRows.put(resourceLockId, Boolean.TRUE);
+        }
+
+        storeRoundTrips.increment();
+        return ResourceLockRecord.fromEntity(resourceLocksDao.get(resourceLockId));
+    }
+
+    /** Number of store calls (reads, writes and commits) issued through this instance. */
+    @Override
+    public long getStoreRoundTrips() {
+        return storeRoundTrips.sum();
+    }
+
+    private ResourceLockEntity find(Transaction txn, String resourceLockId) {
+
+        if (existingRows.getIfPresent(resourceLockId) == null) {
+            storeRoundTrips.increment();
+            if (!resourceLocksDao.isResourceLockPresent(txn, resourceLockId)) {
+                return null;
+            }
+            existingRows.put(resourceLockId, Boolean.TRUE);
+        }
+
+        storeRoundTrips.increment();
+        return resourceLocksDao.get(txn, resourceLockId);
+    }
+
+    private static ResourceLockRecord toRecord(ResourceLockEntity entity) {
+        return entity == null ? ResourceLockRecord.absent() : ResourceLockRecord.fromEntity(entity);
+    }
+
+    private void write(
+            Transaction txn, Map<String, ResourceLockRecord> writes, Set<String> absent) {
+
+        if (writes.isEmpty()) {
+            return;
+        }
+
+        for (Map.Entry<String, ResourceLockRecord> write : writes.entrySet()) {
+            if (absent.contains(write.getKey())) {
+                resourceLocksDao.create(txn, write.getValue().toCreateParams(write.getKey()));
+            } else {
+                resourceLocksDao.update(txn, write.getKey(), write.getValue().toUpdateParams());
+            }
+            storeRoundTrips.increment();
+        }
+        commit(txn);
+        for (String resourceLockId : writes.keySet()) {
+            existingRows.put(resourceLockId, Boolean.TRUE);
+        }
+    }
+
+    private void commit(Transaction txn) {
+        storeRoundTrips.increment();
+        txn.commit();
+    }
+}
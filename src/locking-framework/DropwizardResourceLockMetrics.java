@@ -0,0 +1,176 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+import com.codahale.metrics.Timer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import lombok.Getter;
+
+/**
+ * {@link ResourceLockMetrics} published to a Dropwizard {@link MetricRegistry}.
+ *
+ * <p>Hold times are recorded per resource class rather than per resource, so that the number of
+ * metrics stays bounded. By default the class is the part of the resource lock ID before the first
+ * {@code '/'} or {@code ':'}, leading slashes aside, so that {@code /a/b} is of class {@code a}.
+ *
+ * <p>Several instances may publish to the same registry, for example several frameworks of one
+ * node: they share the meters and timers, and the pending releases gauge reports their sum. The
+ * gauge holds the instances weakly, so those of stopped frameworks drop out of it.
+ */
+public final class DropwizardResourceLockMetrics implements ResourceLockMetrics {
+
+    public static final String PREFIX = "resourceLocks";
+
+    /** Name of the {@link SharedMetricRegistries shared registry} of {@link #shared()}. */
+    public static final String REGISTRY_NAME = "resourceLocks";
+
+    @Getter private final MetricRegistry metricRegistry;
+    private final Function<String, String> resourceClassifier;
+
+    private final Timer acquireLatency;
+    private final Histogram acquireAttempts;
+    private final Meter commitConflicts;
+    private final Meter timeouts;
+    private final Meter deadlocks;
+    private final Meter leasesLost;
+    private final Meter leasesReclaimed;
+    private final AtomicInteger pendingReleases = new AtomicInteger();
+
+    public DropwizardResourceLockMetrics(MetricRegistry metricRegistry) {
+        this(metricRegistry, DropwizardResourceLockMetrics::resourceClass);
+    }
+
+    /**
+     * Metrics published to the shared registry {@link #REGISTRY_NAME}, the default of {@link
+     * ResourceLockingFrameworkOptions#getMetrics()}. Reporters read it with {@code
+     * SharedMetricRegistries.getOrCreate(REGISTRY_NAME)}.
+     */
+    public static DropwizardResourceLockMetrics shared() {
+        return new DropwizardResourceLockMetrics(
+                SharedMetricRegistries.getOrCreate(REGISTRY_NAME));
+    }
+
+    public DropwizardResourceLockMetrics(
+            MetricRegistry metricRegistry, Function<String, String> resourceClassifier) {
+        this.metricRegistry = metricRegistry;
+        this.resourceClassifier = resourceClassifier;
+        this.acquireLatency = metricRegistry.timer(name(PREFIX, "acquire", "latency"));
+        this.acquireAttempts = metricRegistry.histogram(name(PREFIX, "acquire", "attempts"));
+        this.commitConflicts = metricRegistry.meter(name(PREFIX, "commitConflicts"));
+        this.timeouts = metricRegistry.meter(name(PREFIX, "acquire", "timeouts"));
+        this.deadlocks = metricRegistry.meter(name(PREFIX, "acquire", "deadlocks"));
+        this.leasesLost = metricRegistry.meter(name(PREFIX, "leases", "lost"));
+        this.leasesReclaimed = metricRegistry.meter(name(PREFIX, "leases", "reclaimed"));
+        metricRegistry
+                .gauge(name(PREFIX, "releases", "pending"), PendingReleasesGauge::new)
+                .add(pendingReleases);
+    }
+
+    @Override
+    public void lockAcquired(String resourceLockId, long waitNanos, int attempts) {
+        acquireLatency.update(waitNanos, TimeUnit.NANOSECONDS);
+        acquireAttempts.update(attempts);
+    }
+
+    @Override
+    public void lockTimedOut(String resourceLockId, long waitNanos, int attempts) {
+        timeouts.mark();
+        acquireAttempts.update(attempts);
+    }
+
+    @Override
+    public void deadlockVictim(String resourceLockId, long waitNanos, int attempts) {
+        deadlocks.mark();
+        acquireAttempts.update(attempts);
+    }
+
+    @Override
+    public void commitConflict(String resourceLockId) {
+        commitConflicts.mark();
+    }
+
+    @Override
+    public void lockReleased(String resourceLockId, long holdNanos) {
+        metricRegistry
+                .timer(name(PREFIX, "hold", resourceClassifier.apply(resourceLockId)))
+                .update(holdNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void leaseLost(String resourceLockId) {
+        leasesLost.mark();
+    }
+
+    @Override
+    public void leasesReclaimed(int count) {
+        leasesReclaimed.mark(count);
+    }
+
+    @Override
+    public void pendingReleases(int count) {
+        pendingReleases.set(count);
+    }
+
+    static String resourceClass(String resourceLockId) {
+
+        int start = 0;
+        while (start < resourceLockId.length() && resourceLockId.charAt(start) == '/') {
+            start++;
+        }
+        if (start == resourceLockId.length()) {
+            return "root";
+        }
+        for (int i = start; i < resourceLockId.length(); i++) {
+            char c = resourceLockId.charAt(i);
+            if (c == '/' || c == ':') {
+                return resourceLockId.substring(start, i);
+            }
+        }
+        // A data path of a single segment is its own class
+        return start > 0 ? resourceLockId.substring(start) : "default";
+    }
+
+    /**
+     * Sum of the pending releases of the instances publishing to one registry, each held as long as
+     * the instance is.
+     */
+    private static final class PendingReleasesGauge implements Gauge<Integer> {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Set<AtomicInteger> counts = Collections.newSetFromMap(new WeakHashMap<>());
+
+        private void add(AtomicInteger count) {
+            lock.lock();
+            try {
+                counts.add(count);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Integer getValue() {
+            lock.lock();
+            try {
+                int pending = 0;
+                for (AtomicInteger count : counts) {
+                    pending += count.get();
+                }
+                return pending;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
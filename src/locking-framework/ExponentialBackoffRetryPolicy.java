@@ -0,0 +1,47 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ResourceLockRetryPolicy} that doubles the delay after every failed attempt, up to the
+ * retry time of the caller, and randomizes it so that waiters of a hot lock do not retry in
+ * lockstep.
+ *
+ * <p>Each delay is half the backoff plus a random part of up to the other half. When the release
+ * of the lock can be predicted, the waiter sleeps until then instead, plus up to one initial delay
+ * of jitter.
+ */
+public final class ExponentialBackoffRetryPolicy implements ResourceLockRetryPolicy {
+
+    public static final long DEFAULT_INITIAL_DELAY_MILLIS = 10;
+
+    private final long initialDelayNanos;
+
+    public ExponentialBackoffRetryPolicy() {
+        this(DEFAULT_INITIAL_DELAY_MILLIS);
+    }
+
+    public ExponentialBackoffRetryPolicy(long initialDelayMillis) {
+        Preconditions.checkArgument(initialDelayMillis > 0, "initialDelayMillis must be positive");
+        this.initialDelayNanos = TimeUnit.MILLISECONDS.toNanos(initialDelayMillis);
+    }
+
+    @Override
+    public long delayNanos(int attempts, long retryTime, long predictedWaitNanos) {
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (predictedWaitNanos >= 0) {
+            return predictedWaitNanos + random.nextLong(initialDelayNanos);
+        }
+
+        long maxDelayNanos = Math.max(1, TimeUnit.MILLISECONDS.toNanos(retryTime));
+        long backoff = initialDelayNanos << Math.min(attempts - 1, 30);
+        if (backoff <= 0 || backoff > maxDelayNanos) {
+            backoff = maxDelayNanos;
+        }
+        long half = backoff / 2;
+        return half + random.nextLong(backoff - half + 1);
+    }
+}
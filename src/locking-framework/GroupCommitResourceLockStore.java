@@ -0,0 +1,233 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import com.google.common.base.Preconditions;
+import com.oracle.pic.sfw.dal.exceptions.TransactionCommitConflictException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link ResourceLockStore} that groups the single-row acquires and releases of concurrent callers
+ * and writes them through one {@link ResourceLockStore#applyAll} of the wrapped store.
+ *
+ * <p>The first caller of a batch is its leader: it waits for the batch window, then applies every
+ * operation queued in the meantime on behalf of the others, who only wait for their own result. A
+ * batch that reaches its maximum size is applied right away by the caller that filled it. When the
+ * batch conflicts with another writer, its operations are applied again one by one, so that only
+ * the callers whose rows actually changed see the conflict. The caller applying a batch completes
+ * every operation of it, with a failure if need be, so that no other caller is left waiting.
+ *
+ * <p>An acquire waits for its batch no longer than the {@link ResourceLockRequest#getWaitUntil()
+ * deadline} of its caller: one still queued by then is withdrawn and refused without being
+ * written. One already being written is waited for, since it may have been granted.
+ *
+ * <p>Multi-row operations and every other call go to the wrapped store unbatched.
+ */
+public final class GroupCommitResourceLockStore implements ResourceLockStore {
+
+    private final ResourceLockStore delegate;
+    private final long windowNanos;
+    private final int maxBatchSize;
+
+    private final ReentrantLock pendingLock = new ReentrantLock();
+    private List<ResourceLockOperation<?>> pending = new ArrayList<>();
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchedOperations = new LongAdder();
+
+    public GroupCommitResourceLockStore(
+            ResourceLockStore delegate, long windowMicros, int maxBatchSize) {
+
+        Preconditions.checkArgument(windowMicros >= 0, "windowMicros must not be negative");
+        Preconditions.checkArgument(maxBatchSize > 0, "maxBatchSize must be positive");
+        this.delegate = delegate;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public ResourceLockStore getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public boolean acquireAllIfUnlocked(
+            Collection<String> resourceLockIds, ResourceLockRequest request) {
+
+        if (resourceLockIds.size() != 1) {
+            return delegate.acquireAllIfUnlocked(resourceLockIds, request);
+        }
+        return submit(
+                ResourceLockOperation.acquire(resourceLockIds.iterator().next(), request),
+                request.getWaitUntil(),
+                false);
+    }
+
+    @Override
+    public Map<String, ResourceLockRecord> releaseAllIfOwner(
+            Collection<String> resourceLockIds, String ownerId) {
+
+        if (resourceLockIds.size() != 1) {
+            return delegate.releaseAllIfOwner(resourceLockIds, ownerId);
+        }
+        String resourceLockId = resourceLockIds.iterator().next();
+        ResourceLockRecord next =
+                submit(ResourceLockOperation.release(resourceLockId, ownerId), 0, null);
+        return next == null
+                ? Collections.emptyMap()
+                : Collections.singletonMap(resourceLockId, next);
+    }
+
+    @Override
+    public void applyAll(List<ResourceLockOperation<?>> operations) {
+        delegate.applyAll(operations);
+    }
+
+    @Override
+    public boolean leaveQueue(String resourceLockId, String ownerId) {
+        return delegate.leaveQueue(resourceLockId, ownerId);
+    }
+
+    @Override
+    public boolean transferIfOwner(
+            String resourceLockId, String fromOwnerId, ResourceLockRequest to) {
+        return delegate.transferIfOwner(resourceLockId, fromOwnerId, to);
+    }
+
+    @Override
+    public List<ResourceLockHolds.HoldKey> renewLeases(
+            Collection<ResourceLockHolds.HoldKey> holds, long leaseUntil) {
+        return delegate.renewLeases(holds, leaseUntil);
+    }
+
+    @Override
+    public int reapExpired(Collection<String> resourceLockIds) {
+        return delegate.reapExpired(resourceLockIds);
+    }
+
+    @Override
+    public boolean canListResourceLockIds() {
+        return delegate.canListResourceLockIds();
+    }
+
+    @Override
+    public List<String> listResourceLockIds(String startAfter, int limit) {
+        return delegate.listResourceLockIds(startAfter, limit);
+    }
+
+    @Override
+    public ResourceLockRecord read(String resourceLockId) {
+        return delegate.read(resourceLockId);
+    }
+
+    @Override
+    public long getStoreRoundTrips() {
+        return delegate.getStoreRoundTrips();
+    }
+
+    /** Number of batches applied through this store. */
+    public long getBatchCount() {
+        return batches.sum();
+    }
+
+    /** Number of operations applied as part of a batch. */
+    public long getBatchedOperationCount() {
+        return batchedOperations.sum();
+    }
+
+    /**
+     * @param waitUntil epoch millisecond after which the operation is withdrawn if it is still
+     *     queued, zero to wait for it however long it takes
+     * @param withdrawn the result of a withdrawn operation
+     */
+    private <T> T submit(ResourceLockOperation<T> operation, long waitUntil, T withdrawn) {
+
+        List<ResourceLockOperation<?>> batch = null;
+        boolean leader;
+        pendingLock.lock();
+        try {
+            pending.add(operation);
+            leader = pending.size() == 1;
+            if (pending.size() >= maxBatchSize) {
+                batch = takePending();
+            }
+        } finally {
+            pendingLock.unlock();
+        }
+
+        if (batch == null && leader) {
+            if (windowNanos > 0) {
+                LockSupport.parkNanos(windowNanos);
+            }
+            pendingLock.lock();
+            try {
+                // A caller that filled the batch may already have applied it
+                if (!pending.isEmpty() && pending.get(0) == operation) {
+                    batch = takePending();
+                }
+            } finally {
+                pendingLock.unlock();
+            }
+        }
+
+        if (batch != null) {
+            apply(batch);
+        }
+        if (waitUntil == 0) {
+            return operation.join();
+        }
+        try {
+            return operation.join(
+                    TimeUnit.MILLISECONDS.toNanos(waitUntil - System.currentTimeMillis()));
+        } catch (TimeoutException e) {
+            pendingLock.lock();
+            try {
+                if (pending.remove(operation)) {
+                    return withdrawn;
+                }
+            } finally {
+                pendingLock.unlock();
+            }
+            // Taken by a batch, which completes it once written
+            return operation.join();
+        }
+    }
+
+    private List<ResourceLockOperation<?>> takePending() {
+        List<ResourceLockOperation<?>> batch = pending;
+        pending = new ArrayList<>();
+        return batch;
+    }
+
+    private void apply(List<ResourceLockOperation<?>> batch) {
+
+        batches.increment();
+        batchedOperations.add(batch.size());
+        try {
+            delegate.applyAll(batch);
+        } catch (TransactionCommitConflictException e) {
+            batch.forEach(operation -> operation.applyAlone(delegate));
+        } catch (RuntimeException e) {
+            for (ResourceLockOperation<?> operation : batch) {
+                if (!operation.isDone()) {
+                    operation.fail(e);
+                }
+            }
+        } finally {
+            for (ResourceLockOperation<?> operation : batch) {
+                if (!operation.isDone()) {
+                    operation.fail(
+                            new IllegalStateException(
+                                    "Batch ended without applying the operation on resource "
+                                            + operation.getResourceLockId()));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Lock-free {@link ResourceLockStore} over a {@link ConcurrentSkipListMap}, for single-node
+ * deployments and tests.
+ *
+ * <p>A single-row operation is one compare-and-set of the row. A multi-row operation publishes a
+ * {@link Claim} holding the rows it read and the rows it writes, claims every row it read with it,
+ * in sorted order and by compare-and-set, then replaces the claimed rows by the written ones. A
+ * writer that finds a claimed row does not wait for the claim to go: it runs the claimed operation
+ * to its end itself, from the claim, and then retries its own. A stalled writer therefore never
+ * blocks the others. Readers see a claimed row as it was until its operation succeeded, and as
+ * written afterwards.
+ *
+ * <p>A failed compare-and-set recomputes the transition from the current rows instead of
+ * reporting a conflict, so this store never throws
+ * {@link com.oracle.pic.sfw.dal.exceptions.TransactionCommitConflictException}.
+ */
+public final class InMemoryResourceLockStore implements ResourceLockStore {
+
+    private final ConcurrentNavigableMap<String, Row> rows = new ConcurrentSkipListMap<>();
+    private final LongAdder storeRoundTrips = new LongAdder();
+
+    @Override
+    public boolean acquireAllIfUnlocked(
+            Collection<String> resourceLockIds, ResourceLockRequest request) {
+
+        return apply(
+                resourceLockIds,
+                current -> {
+                    long now = System.currentTimeMillis();
+                    boolean granted = true;
+                    Map<String, ResourceLockRecord> grants = new LinkedHashMap<>();
+                    Map<String, ResourceLockRecord> reservations = new LinkedHashMap<>();
+
+                    for (Map.Entry<String, ResourceLockRecord> row : current.entrySet()) {
+                        ResourceLockRecord.Transition transition =
+                                row.getValue()
+                                        .acquire(request.forResource(row.getKey()), now);
+                        if (transition.isGranted()) {
+                            if (transition.getNext() != null) {
+                                grants.put(row.getKey(), transition.getNext());
+                            }
+                            continue;
+                        }
+                        granted = false;
+                        if (transition.getNext() != null) {
+                            reservations.put(row.getKey(), transition.getNext());
+                        } else if (request.getReserveUntil() == 0) {
+                            return new Outcome<>(false, Collections.emptyMap());
+                        }
+                    }
+                    return new Outcome<>(granted, granted ? grants : reservations);
+                });
+    }
+
+    @Override
+    public Map<String, ResourceLockRecord> releaseAllIfOwner(
+            Collection<String> resourceLockIds, String ownerId) {
+
+        return apply(
+                resourceLockIds,
+                current -> {
+                    long now = System.currentTimeMillis();
+                    Map<String, ResourceLockRecord> releases = new LinkedHashMap<>();
+                    for (Map.Entry<String, ResourceLockRecord> row : current.entrySet()) {
+                        ResourceLockRecord next = row.getValue().release(ownerId, now);
+                        if (next != null) {
+                            releases.put(row.getKey(), next);
+                        }
+                    }
+                    return new Outcome<>(releases, releases);
+                });
+    }
+
+    @Override
+    public boolean leaveQueue(String resourceLockId, String ownerId) {
+
+        return apply(
+                Collections.singleton(resourceLockId),
+                current -> {
+                    long now = System.currentTimeMillis();
+                    ResourceLockRecord record = current.get(resourceLockId);
+                    if (record.withoutExpired(now).isHeldBy(ownerId)) {
+                        return new Outcome<>(true, Collections.emptyMap());
+                    }
+                    ResourceLockRecord next = record.withoutWaiter(ownerId, now);
+                    return new Outcome<>(
+                            false,
+                            next == null
+                                    ? Collections.emptyMap()
+                                    : Collections.singletonMap(resourceLockId, next));
+                });
+    }
+
+    @Override
+    public boolean transferIfOwner(
+            String resourceLockId, String fromOwnerId, ResourceLockRequest to) {
+
+        return apply(
+                Collections.singleton(resourceLockId),
+                current -> {
+                    ResourceLockRecord next =
+                            current.get(resourceLockId).transfer(fromOwnerId, to);
+                    return next == null
+                            ? new Outcome<>(false, Collections.emptyMap())
+                            : new Outcome<>(true, Collections.singletonMap(resourceLockId, next));
+                });
+    }
+
+    @Override
+    public List<ResourceLockHolds.HoldKey> renewLeases(
+            Collection<ResourceLockHolds.HoldKey> holds, long leaseUntil) {
+
+        Set<String> resourceLockIds = new LinkedHashSet<>();
+        for (ResourceLockHolds.HoldKey hold : holds) {
+            resourceLockIds.add(hold.getResourceLockId());
+        }
+
+        return apply(
+                resourceLockIds,
+                current -> {
+                    long now = System.currentTimeMillis();
+                    Map<String, ResourceLockRecord> renewals = new LinkedHashMap<>(current);
+                    List<ResourceLockHolds.HoldKey> lost = new ArrayList<>();
+                    for (ResourceLockHolds.HoldKey hold : holds) {
+                        ResourceLockRecord next =
+                                renewals.get(hold.getResourceLockId())
+                                        .renew(hold.getOwnerId(), leaseUntil, now);
+                        if (next == null) {
+                            lost.add(hold);
+                        } else {
+                            renewals.put(hold.getResourceLockId(), next);
+                        }
+                    }
+                    renewals.entrySet()
+                            .removeIf(row -> row.getValue() == current.get(row.getKey()));
+                    return new Outcome<>(lost, renewals);
+                });
+    }
+
+    @Override
+    public int reapExpired(Collection<String> resourceLockIds) {
+
+        return apply(
+                resourceLockIds,
+                current -> {
+                    long now = System.currentTimeMillis();
+                    Map<String, ResourceLockRecord> reaped = new LinkedHashMap<>();
+                    int reclaimed = 0;
+                    for (Map.Entry<String, ResourceLockRecord> row : current.entrySet()) {
+                        ResourceLockRecord live = row.getValue().withoutExpired(now);
+                        if (live != row.getValue()) {
+                            reclaimed +=
+                                    row.getValue().getHolders().size() - live.getHolders().size();
+                            reaped.put(row.getKey(), live);
+                        }
+                    }
+                    return new Outcome<>(reclaimed, reaped);
+                });
+    }
+
+    @Override
+    public boolean canListResourceLockIds() {
+        return true;
+    }
+
+    @Override
+    public List<String> listResourceLockIds(String startAfter, int limit) {
+
+        storeRoundTrips.increment();
+        List<String> page = new ArrayList<>(limit);
+        for (Map.Entry<String, Row> row :
+                startAfter == null
+                        ? rows.entrySet()
+                        : rows.tailMap(startAfter, false).entrySet()) {
+            if (page.size() == limit) {
+                break;
+            }
+            // A row being created by a claimed operation only exists once it succeeded
+            if (committedRecord(row.getKey(), row.getValue()) != ResourceLockRecord.absent()) {
+                page.add(row.getKey());
+            }
+        }
+        return page;
+    }
+
+    @Override
+    public ResourceLockRecord read(String resourceLockId) {
+        storeRoundTrips.increment();
+        return committedRecord(resourceLockId, rows.get(resourceLockId));
+    }
+
+    /** Number of compare-and-set rounds, including the retried ones, issued through this store. */
+    @Override
+    public long getStoreRoundTrips() {
+        return storeRoundTrips.sum();
+    }
+
+    /**
+     * Applies {@code transition} to the current rows and writes its outcome atomically, retrying
+     * from the new rows when a concurrent writer got in first.
+     */
+    private <T> T apply(
+            Collection<String> resourceLockIds,
+            Function<Map<String, ResourceLockRecord>, Outcome<T>> transition) {
+
+        while (true) {
+            storeRoundTrips.increment();
+
+            Map<String, Row> snapshot = snapshot(resourceLockIds);
+            if (snapshot == null) {
+                continue;
+            }
+
+            Map<String, ResourceLockRecord> current = new LinkedHashMap<>();
+            for (Map.Entry<String, Row> row : snapshot.entrySet()) {
+                current.put(row.getKey(), recordOf(row.getValue()));
+            }
+
+            Outcome<T> outcome = transition.apply(current);
+            if (outcome.writes.isEmpty() || commit(snapshot, outcome.writes)) {
+                return outcome.result;
+            }
+        }
+    }
+
+    /**
+     * @return the rows in {@code resourceLockIds} order, or null if one of them was claimed, in
+     *     which case the claimed operation was run to its end
+     */
+    private Map<String, Row> snapshot(Collection<String> resourceLockIds) {
+
+        Map<String, Row> snapshot = new LinkedHashMap<>();
+        for (String resourceLockId : resourceLockIds) {
+            Row row = rows.get(resourceLockId);
+            if (row != null && row.claim != null) {
+                help(row.claim);
+                return null;
+            }
+            snapshot.put(resourceLockId, row);
+        }
+        return snapshot;
+    }
+
+    private boolean commit(Map<String, Row> snapshot, Map<String, ResourceLockRecord> writes) {
+
+        if (snapshot.size() == 1) {
+            Map.Entry<String, ResourceLockRecord> write = writes.entrySet().iterator().next();
+            return compareAndSet(
+                    write.getKey(), snapshot.get(write.getKey()), new Row(write.getValue(), null));
+        }
+
+        // Every row that was read is claimed, so that the rows not written do not change either
+        Claim claim = new Claim(snapshot, writes);
+        help(claim);
+        return claim.status.get() == Status.SUCCEEDED;
+    }
+
+    /**
+     * Runs a multi-row operation to its end: claims its rows unless it is decided already, then
+     * replaces each row still claimed by its outcome. Called by the writer of the claim and by
+     * every writer that finds one of its rows claimed; whichever gets there first does each step.
+     */
+    private void help(Claim claim) {
+
+        if (claim.status.get() == Status.UNDECIDED) {
+            claimRows(claim);
+        }
+
+        boolean succeeded = claim.status.get() == Status.SUCCEEDED;
+        for (Map.Entry<String, Row> expected : claim.expected.entrySet()) {
+            Row row = rows.get(expected.getKey());
+            if (row == null || row.claim != claim) {
+                continue;
+            }
+            ResourceLockRecord next = succeeded ? claim.writes.get(expected.getKey()) : null;
+            restore(
+                    expected.getKey(),
+                    row,
+                    next == null ? expected.getValue() : new Row(next, null));
+        }
+    }
+
+    /**
+     * Claims the rows of {@code claim} in sorted order, and decides it: it fails if a row no longer
+     * is the one read, and succeeds once every row is claimed. Claims of other operations met on
+     * the way are run to their end first; since every claim takes its rows in the same order, they
+     * never wait on each other in a cycle.
+     */
+    private void claimRows(Claim claim) {
+
+        for (Map.Entry<String, Row> expected : claim.expected.entrySet()) {
+            String resourceLockId = expected.getKey();
+            Row claimedRow = new Row(recordOf(expected.getValue()), claim);
+            while (true) {
+                if (claim.status.get() != Status.UNDECIDED) {
+                    return;
+                }
+                Row row = rows.get(resourceLockId);
+                if (row != null && row.claim == claim) {
+                    break;
+                }
+                if (row != null && row.claim != null) {
+                    help(row.claim);
+                    continue;
+                }
+                if (row != expected.getValue()) {
+                    claim.status.compareAndSet(Status.UNDECIDED, Status.FAILED);
+                    return;
+                }
+                if (compareAndSet(resourceLockId, row, claimedRow)) {
+                    break;
+                }
+            }
+        }
+        claim.status.compareAndSet(Status.UNDECIDED, Status.SUCCEEDED);
+    }
+
+    /** The committed state of a row, which for a claimed row depends on how its claim ended. */
+    private static ResourceLockRecord committedRecord(String resourceLockId, Row row) {
+        if (row != null && row.claim != null && row.claim.status.get() == Status.SUCCEEDED) {
+            ResourceLockRecord next = row.claim.writes.get(resourceLockId);
+            if (next != null) {
+                return next;
+            }
+        }
+        return recordOf(row);
+    }
+
+    private static ResourceLockRecord recordOf(Row row) {
+        return row == null ? ResourceLockRecord.absent() : row.record;
+    }
+
+    private boolean compareAndSet(String resourceLockId, Row expected, Row next) {
+        return expected == null
+                ? rows.putIfAbsent(resourceLockId, next) == null
+                : rows.replace(resourceLockId, expected, next);
+    }
+
+    /** Replaces a claimed row, unless another helper of its claim already did. */
+    private void restore(String resourceLockId, Row claimedRow, Row next) {
+        if (next == null) {
+            rows.remove(resourceLockId, claimedRow);
+        } else {
+            rows.replace(resourceLockId, claimedRow, next);
+        }
+    }
+
+    private static final class Row {
+
+        /** The row as it was before it was claimed, for a claimed row. */
+        private final ResourceLockRecord record;
+
+        private final Claim claim;
+
+        private Row(ResourceLockRecord record, Claim claim) {
+            this.record = record;
+            this.claim = claim;
+        }
+    }
+
+    private enum Status {
+        UNDECIDED,
+        SUCCEEDED,
+        FAILED
+    }
+
+    /** A multi-row operation, with everything another writer needs to run it to its end. */
+    private static final class Claim {
+
+        /** The rows read by the operation, null for absent ones, in claim order. */
+        private final SortedMap<String, Row> expected;
+
+        private final Map<String, ResourceLockRecord> writes;
+        private final AtomicReference<Status> status = new AtomicReference<>(Status.UNDECIDED);
+
+        private Claim(Map<String, Row> expected, Map<String, ResourceLockRecord> writes) {
+            this.expected = new TreeMap<>(expected);
+            this.writes = writes;
+        }
+    }
+
+    private static final class Outcome<T> {
+
+        private final T result;
+        private final Map<String, ResourceLockRecord> writes;
+
+        private Outcome(T result, Map<String, ResourceLockRecord> writes) {
+            this.result = result;
+            this.writes = writes;
+        }
+    }
+}
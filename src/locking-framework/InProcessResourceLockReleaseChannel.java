@@ -0,0 +1,34 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * {@link ResourceLockReleaseChannel} that delivers releases to subscribers in the same JVM.
+ *
+ * <p>Stand-in for a real cross-node transport. Sharing one instance between several framework
+ * instances behaves like several nodes connected to the same channel.
+ */
+@Slf4j
+public final class InProcessResourceLockReleaseChannel implements ResourceLockReleaseChannel {
+
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void publish(String resourceLockId) {
+        for (Consumer<String> listener : listeners) {
+            try {
+                listener.accept(resourceLockId);
+            } catch (RuntimeException e) {
+                log.warn("Resource lock release listener failed for [{}]", resourceLockId, e);
+            }
+        }
+    }
+
+    @Override
+    public void subscribe(Consumer<String> listener) {
+        listeners.add(listener);
+    }
+}
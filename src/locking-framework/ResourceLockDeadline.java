@@ -0,0 +1,42 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When a lock request gives up.
+ *
+ * <p>The deadline is kept twice. The wall-clock instant is written to the lock row as the queue
+ * ticket expiry and caps the writer reservation, which other nodes compare against their own
+ * clock. The local checks use the monotonic instant, so that a clock adjustment neither cuts a
+ * wait short nor makes it last forever.
+ */
+final class ResourceLockDeadline {
+
+    private final long wallMillis;
+    private final long nanos;
+
+    private ResourceLockDeadline(long wallMillis, long nanos) {
+        this.wallMillis = wallMillis;
+        this.nanos = nanos;
+    }
+
+    static ResourceLockDeadline after(long timeoutMillis) {
+        return new ResourceLockDeadline(
+                System.currentTimeMillis() + timeoutMillis,
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+    }
+
+    /** Epoch millisecond of the deadline, for the lock row. */
+    long getWallMillis() {
+        return wallMillis;
+    }
+
+    /** Time left until the deadline, negative once it passed. */
+    long remainingNanos() {
+        return nanos - System.nanoTime();
+    }
+
+    boolean isExpired() {
+        return remainingNanos() <= 0;
+    }
+}
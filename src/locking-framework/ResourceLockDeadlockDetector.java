@@ -0,0 +1,286 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Wait-for graph of the owners of this node, used to find deadlocks without waiting out the lock
+ * timeouts.
+ *
+ * <p>An owner waiting for locks points at the owners holding them in a mode incompatible with the
+ * one it waits for, as recorded in {@link ResourceLockHolds}; owners in compatible modes, such as
+ * two shared holders, do not block each other. Both ends of those edges are indexed, the locks
+ * each owner waits for and the owners holding each lock, and kept up to date when an owner starts
+ * or stops waiting and when a hold is added, upgraded or removed. The graph is only searched from
+ * the edges that were just added: when an owner starts waiting, or waits for other locks, and when
+ * a waiting owner takes a lock others wait for. A cycle is therefore found as soon as its last
+ * edge appears, and retries of an unchanged wait cost nothing. The youngest waiter of the cycle is
+ * chosen as the victim: its wait is aborted and it gives up with {@link
+ * ResourceLockResult#DEADLOCK_VICTIM}, releasing the locks that block the others.
+ *
+ * <p>Only waits of this node are known, so a cycle through an owner waiting on another node is not
+ * found and still ends with a timeout.
+ */
+public final class ResourceLockDeadlockDetector implements ResourceLockHolds.Listener {
+
+    private final ResourceLockHolds holds;
+    private final ReentrantLock graphLock = new ReentrantLock();
+    private final Map<String, Wait> waits = new HashMap<>();
+    private final Map<String, Set<String>> waitersByResource = new HashMap<>();
+    private final Map<String, Set<String>> holdersByResource = new HashMap<>();
+
+    public ResourceLockDeadlockDetector(ResourceLockHolds holds) {
+        this.holds = holds;
+        holds.addListener(this);
+    }
+
+    /**
+     * Records that {@code ownerId} waits for the locks of {@code resourceModes}, each in its mode,
+     * and aborts the youngest waiter of the deadlock this wait closes, if any.
+     *
+     * @return the wait of the owner, which has to be ended with {@link #done}; it is already
+     *     aborted when the owner itself is the victim
+     */
+    public Wait await(String ownerId, Map<String, ResourceLockMode> resourceModes) {
+
+        graphLock.lock();
+        try {
+            Wait wait = waits.get(ownerId);
+            if (wait != null) {
+                if (wait.isVictim() || wait.resourceModes.equals(resourceModes)) {
+                    // A victim stays aborted until the owner has given up, and a retry adds no edge
+                    return wait;
+                }
+                removeWait(wait);
+            }
+
+            wait = new Wait(ownerId, resourceModes, System.nanoTime());
+            waits.put(ownerId, wait);
+            for (String resourceLockId : wait.resourceModes.keySet()) {
+                waitersByResource
+                        .computeIfAbsent(resourceLockId, id -> new HashSet<>())
+                        .add(ownerId);
+            }
+
+            // Every edge into and out of the new wait just appeared
+            abortYoungest(findPath(wait, wait));
+            return wait;
+        } finally {
+            graphLock.unlock();
+        }
+    }
+
+    /** Ends a wait returned by {@link #await}, once the owner acquired the locks or gave up. */
+    public void done(Wait wait) {
+        graphLock.lock();
+        try {
+            if (waits.get(wait.ownerId) == wait) {
+                removeWait(wait);
+            }
+        } finally {
+            graphLock.unlock();
+        }
+    }
+
+    /**
+     * Adds the edges from the waiters of the lock to its new holder, or to its holder in a stronger
+     * mode, and searches from them.
+     */
+    @Override
+    public void holdAdded(String resourceLockId, String ownerId) {
+
+        graphLock.lock();
+        try {
+            if (holds.count(resourceLockId, ownerId) == 0) {
+                return;
+            }
+            holdersByResource.computeIfAbsent(resourceLockId, id -> new HashSet<>()).add(ownerId);
+
+            Wait holder = waits.get(ownerId);
+            if (holder == null || holder.isVictim()) {
+                return;
+            }
+            if (holder.resourceModes.containsKey(resourceLockId)) {
+                // The owner got the locks it was waiting for and no longer waits
+                removeWait(holder);
+                return;
+            }
+            for (String waiterId :
+                    waitersByResource.getOrDefault(resourceLockId, Collections.emptySet())) {
+                Wait waiter = waits.get(waiterId);
+                if (waiter != holder
+                        && !waiter.isVictim()
+                        && blocks(resourceLockId, ownerId, waiter)) {
+                    abortYoungest(findPath(holder, waiter));
+                }
+            }
+        } finally {
+            graphLock.unlock();
+        }
+    }
+
+    @Override
+    public void holdRemoved(String resourceLockId, String ownerId) {
+
+        graphLock.lock();
+        try {
+            if (holds.count(resourceLockId, ownerId) == 0) {
+                removeIndexed(holdersByResource, resourceLockId, ownerId);
+            }
+        } finally {
+            graphLock.unlock();
+        }
+    }
+
+    int size() {
+        graphLock.lock();
+        try {
+            return waits.size();
+        } finally {
+            graphLock.unlock();
+        }
+    }
+
+    private void removeWait(Wait wait) {
+        waits.remove(wait.ownerId);
+        for (String resourceLockId : wait.resourceModes.keySet()) {
+            removeIndexed(waitersByResource, resourceLockId, wait.ownerId);
+        }
+    }
+
+    private void abortYoungest(List<Wait> cycle) {
+
+        if (cycle == null) {
+            return;
+        }
+        Wait victim = cycle.get(0);
+        for (Wait member : cycle) {
+            if (member.sinceNanos > victim.sinceNanos) {
+                victim = member;
+            }
+        }
+        victim.abort();
+    }
+
+    /**
+     * Depth-first search for a path of waits from {@code from} to {@code to}, a cycle when they
+     * are the same wait.
+     *
+     * @return the waits of the path, or null if there is none
+     */
+    private List<Wait> findPath(Wait from, Wait to) {
+
+        Map<Wait, Wait> parents = new HashMap<>();
+        Set<Wait> visited = new HashSet<>();
+        Deque<Wait> stack = new ArrayDeque<>();
+        stack.push(from);
+        visited.add(from);
+
+        while (!stack.isEmpty()) {
+            Wait current = stack.pop();
+            for (Wait next : blockers(current)) {
+                if (next == to) {
+                    List<Wait> path = new ArrayList<>();
+                    if (to != from) {
+                        path.add(to);
+                    }
+                    for (Wait member = current; member != null; member = parents.get(member)) {
+                        path.add(member);
+                    }
+                    return path;
+                }
+                if (visited.add(next)) {
+                    parents.put(next, current);
+                    stack.push(next);
+                }
+            }
+        }
+        return null;
+    }
+
+    /** The waiting owners that hold a lock {@code wait} is waiting for in an incompatible mode. */
+    private Set<Wait> blockers(Wait wait) {
+
+        Set<Wait> blockers = new LinkedHashSet<>();
+        for (String resourceLockId : wait.resourceModes.keySet()) {
+            for (String holderId :
+                    holdersByResource.getOrDefault(resourceLockId, Collections.emptySet())) {
+                Wait blocker = waits.get(holderId);
+                if (blocker != null
+                        && blocker != wait
+                        && !blocker.isVictim()
+                        && blocks(resourceLockId, holderId, wait)) {
+                    blockers.add(blocker);
+                }
+            }
+        }
+        return blockers;
+    }
+
+    /** Whether {@code holderId} holds the lock in a mode that keeps {@code waiter} from it. */
+    private boolean blocks(String resourceLockId, String holderId, Wait waiter) {
+        ResourceLockMode held = holds.mode(resourceLockId, holderId);
+        return held != null && !held.isCompatibleWith(waiter.resourceModes.get(resourceLockId));
+    }
+
+    private static void removeIndexed(
+            Map<String, Set<String>> index, String resourceLockId, String ownerId) {
+        index.computeIfPresent(
+                resourceLockId,
+                (id, owners) -> {
+                    owners.remove(ownerId);
+                    return owners.isEmpty() ? null : owners;
+                });
+    }
+
+    /** An owner waiting for locks. */
+    public static final class Wait {
+
+        private final String ownerId;
+        private final Map<String, ResourceLockMode> resourceModes;
+        private final long sinceNanos;
+        private final CompletableFuture<Void> victim = new CompletableFuture<>();
+        private volatile CompletableFuture<Void> wakeup;
+
+        private Wait(
+                String ownerId, Map<String, ResourceLockMode> resourceModes, long sinceNanos) {
+            this.ownerId = ownerId;
+            this.resourceModes = new LinkedHashMap<>(resourceModes);
+            this.sinceNanos = sinceNanos;
+        }
+
+        public boolean isVictim() {
+            return victim.isDone();
+        }
+
+        /**
+         * Completes {@code signal}, the release signal the owner sleeps on, when the owner is
+         * chosen as the victim of a deadlock. Only the signal of the latest attempt is kept.
+         */
+        public void wakeOnVictim(CompletableFuture<Void> signal) {
+            wakeup = signal;
+            if (isVictim()) {
+                signal.complete(null);
+            }
+        }
+
+        private void abort() {
+            victim.complete(null);
+            CompletableFuture<Void> signal = wakeup;
+            if (signal != null) {
+                signal.complete(null);
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import com.google.common.base.Splitter;
+import java.util.List;
+import lombok.Value;
+
+/**
+ * A lock event recorded in the {@link ResourceLockJournal}.
+ *
+ * <p>In the journal file an event is one line of tab separated fields, in the order of the fields
+ * of this class. Backslashes, tabs and line breaks in the IDs are escaped with a backslash.
+ */
+@Value
+public class ResourceLockEvent {
+
+    /** What happened to the lock. */
+    public enum Type {
+        /** The owner acquired the lock, {@link #getNanos()} is the time it waited. */
+        ACQUIRED,
+
+        /** The owner released the lock, {@link #getNanos()} is the time it held it. */
+        RELEASED,
+
+        /** The owner gave up waiting, {@link #getNanos()} is the time it waited. */
+        TIMED_OUT,
+
+        /** The owner gave up to break a deadlock, {@link #getNanos()} is the time it waited. */
+        DEADLOCK_VICTIM,
+
+        /** A lock or unlock transaction of the owner failed with a commit conflict. */
+        CONFLICT;
+
+        /** Whether the event shows owners competing for the lock. */
+        public boolean isContention() {
+            return this != ACQUIRED && this != RELEASED;
+        }
+    }
+
+    private static final Splitter FIELDS = Splitter.on('\t');
+
+    /** Epoch millisecond of the event. */
+    long timestamp;
+
+    Type type;
+    String resourceLockId;
+    String ownerId;
+    long nanos;
+
+    public String toLine() {
+        return timestamp
+                + "\t"
+                + type
+                + "\t"
+                + escape(resourceLockId)
+                + "\t"
+                + escape(ownerId)
+                + "\t"
+                + nanos;
+    }
+
+    /** @throws IllegalArgumentException if {@code line} is not a journaled event */
+    public static ResourceLockEvent fromLine(String line) {
+
+        List<String> fields = FIELDS.splitToList(line);
+        if (fields.size() != 5) {
+            throw new IllegalArgumentException("Not a resource lock event: " + line);
+        }
+        return new ResourceLockEvent(
+                Long.parseLong(fields.get(0)),
+                Type.valueOf(fields.get(1)),
+                unescape(fields.get(2)),
+                unescape(fields.get(3)),
+                Long.parseLong(fields.get(4)));
+    }
+
+    private static String escape(String field) {
+
+        StringBuilder escaped = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            switch (c) {
+                case '\\':
+                    escaped.append("\\\\");
+                    break;
+                case '\t':
+                    escaped.append("\\t");
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                case '\r':
+                    escaped.append("\\r");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static String unescape(String field) {
+
+        StringBuilder unescaped = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c != '\\') {
+                unescaped.append(c);
+                continue;
+            }
+            if (++i == field.length()) {
+                throw new IllegalArgumentException("Dangling escape in " + field);
+            }
+            switch (field.charAt(i)) {
+                case '\\':
+                    unescaped.append('\\');
+                    break;
+                case 't':
+                    unescaped.append('\t');
+                    break;
+                case 'n':
+                    unescaped.append('\n');
+                    break;
+                case 'r':
+                    unescaped.append('\r');
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown escape in " + field);
+            }
+        }
+        return unescaped.toString();
+    }
+}
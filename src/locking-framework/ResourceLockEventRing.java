@@ -0,0 +1,87 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Bounded lock-free ring buffer of {@link ResourceLockEvent}s, with many publishers and a single
+ * consumer.
+ *
+ * <p>Each slot carries a sequence number. A publisher claims the next position by compare-and-set
+ * and marks the slot as filled once the event is in; the consumer frees the slot by moving its
+ * sequence one lap ahead. A publisher that finds the slot of its position still unread by the
+ * consumer gives up instead of waiting, so a full buffer never blocks the lock path.
+ */
+final class ResourceLockEventRing {
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<ResourceLockEvent> events;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+
+    /** Next position to consume, only touched by the consumer. */
+    private long head;
+
+    ResourceLockEventRing(int capacity) {
+
+        Preconditions.checkArgument(
+                capacity > 0 && Integer.bitCount(capacity) == 1,
+                "capacity must be a power of two");
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.events = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /** @return false if the buffer is full and the event was not added */
+    boolean offer(ResourceLockEvent event) {
+
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long sequence = sequences.get(index);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    events.set(index, event);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+            } else if (sequence < position) {
+                return false;
+            }
+            // Another publisher took the position first, try the next one
+        }
+    }
+
+    /**
+     * Hands up to {@code max} events to {@code consumer} in publication order. Must only be called
+     * by one thread at a time.
+     *
+     * @return the number of events consumed
+     */
+    int drain(Consumer<ResourceLockEvent> consumer, int max) {
+
+        int drained = 0;
+        while (drained < max) {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) {
+                // Empty, or the publisher of the next position has not finished yet
+                break;
+            }
+            ResourceLockEvent event = events.get(index);
+            events.set(index, null);
+            sequences.set(index, head + capacity);
+            head++;
+            consumer.accept(event);
+            drained++;
+        }
+        return drained;
+    }
+}
@@ -0,0 +1,64 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executors shared by every {@link ResourceLockingFramework} in the JVM for the asynchronous
+ * lock API.
+ *
+ * <p>The scheduler only fires retry timers and never blocks. Store calls are blocking and run on a
+ * separate bounded pool of platform threads, so callers on virtual threads never hold a carrier
+ * while waiting on the store. The store calls waiting for a thread are bounded too: past {@link
+ * #STORE_QUEUE_CAPACITY} the call is rejected with a {@link
+ * java.util.concurrent.RejectedExecutionException}, which fails the future of the lock call that
+ * made it instead of queueing without limit behind a slow store.
+ */
+public final class ResourceLockExecutors {
+
+    static final int STORE_QUEUE_CAPACITY = 10_000;
+
+    private static final int STORE_THREADS =
+            Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    private static final ScheduledExecutorService SCHEDULER =
+            Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder()
+                            .setDaemon(true)
+                            .setNameFormat("resource-lock-scheduler-%d")
+                            .build());
+
+    private static final ExecutorService STORE_EXECUTOR = newStoreExecutor();
+
+    private ResourceLockExecutors() {}
+
+    public static ScheduledExecutorService scheduler() {
+        return SCHEDULER;
+    }
+
+    public static ExecutorService storeExecutor() {
+        return STORE_EXECUTOR;
+    }
+
+    private static ExecutorService newStoreExecutor() {
+        ThreadPoolExecutor executor =
+                new ThreadPoolExecutor(
+                        STORE_THREADS,
+                        STORE_THREADS,
+                        60,
+                        TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<>(STORE_QUEUE_CAPACITY),
+                        new ThreadFactoryBuilder()
+                                .setDaemon(true)
+                                .setNameFormat("resource-lock-store-%d")
+                                .build(),
+                        new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
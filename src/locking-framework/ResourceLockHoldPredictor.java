@@ -0,0 +1,152 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.Collection;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Predicts when a held resource lock will be released, from how long the lock was held before.
+ *
+ * <p>For each resource the predictor keeps a moving average of the hold times of the releases made
+ * through this node, and since when the lock has been held: the {@link
+ * ResourceLockRecord#getHeldSince() acquire time recorded on the lock row}, as read on the last
+ * refusal, or else the time it was last acquired through this node, which is stale once the lock
+ * was reclaimed or taken over elsewhere. The release is expected once the
+ * lock has been held for its average hold time. There is no prediction until {@link
+ * #MIN_SAMPLES} hold times were seen, nor for a lock held on another node whose row does not
+ * record its acquire time.
+ */
+public final class ResourceLockHoldPredictor {
+
+    static final int MIN_SAMPLES = 5;
+
+    /** Weight of the newest hold time in the moving average. */
+    private static final double SMOOTHING = 0.2;
+
+    private final Cache<String, HoldTimes> holdTimes;
+
+    public ResourceLockHoldPredictor(long maximumSize) {
+        this.holdTimes = CacheBuilder.newBuilder().maximumSize(maximumSize).build();
+    }
+
+    /** The lock was acquired through this node. */
+    public void acquired(String resourceLockId) {
+        HoldTimes times = get(resourceLockId);
+        times.lock.lock();
+        try {
+            times.heldSinceNanos = System.nanoTime();
+            times.rowHeldSinceMillis = 0;
+        } finally {
+            times.lock.unlock();
+        }
+    }
+
+    /** Whether enough hold times were seen to predict the release of the lock. */
+    public boolean canPredict(String resourceLockId) {
+        HoldTimes times = holdTimes.getIfPresent(resourceLockId);
+        if (times == null) {
+            return false;
+        }
+        times.lock.lock();
+        try {
+            return times.samples >= MIN_SAMPLES;
+        } finally {
+            times.lock.unlock();
+        }
+    }
+
+    /**
+     * An owner of this node was refused the lock, whose row says it was acquired at {@code
+     * heldSinceMillis}, or 0 if the row does not say.
+     */
+    public void refused(String resourceLockId, long heldSinceMillis) {
+        HoldTimes times = get(resourceLockId);
+        times.lock.lock();
+        try {
+            times.rowHeldSinceMillis = heldSinceMillis;
+        } finally {
+            times.lock.unlock();
+        }
+    }
+
+    /** The lock was released through this node after being held for {@code holdNanos}. */
+    public void released(String resourceLockId, long holdNanos) {
+        HoldTimes times = get(resourceLockId);
+        times.lock.lock();
+        try {
+            times.averageHoldNanos =
+                    times.samples == 0
+                            ? holdNanos
+                            : SMOOTHING * holdNanos + (1 - SMOOTHING) * times.averageHoldNanos;
+            times.samples++;
+            times.heldSinceNanos = 0;
+            times.rowHeldSinceMillis = 0;
+        } finally {
+            times.lock.unlock();
+        }
+    }
+
+    /**
+     * @return how long until the lock is expected to be released, or -1 if there is no prediction
+     *     for it, which includes a lock already held for longer than its average hold time
+     */
+    public long predictedWaitNanos(String resourceLockId) {
+
+        HoldTimes times = holdTimes.getIfPresent(resourceLockId);
+        if (times == null) {
+            return -1;
+        }
+        times.lock.lock();
+        try {
+            long heldNanos;
+            if (times.samples < MIN_SAMPLES) {
+                return -1;
+            } else if (times.rowHeldSinceMillis != 0) {
+                heldNanos =
+                        TimeUnit.MILLISECONDS.toNanos(
+                                System.currentTimeMillis() - times.rowHeldSinceMillis);
+            } else if (times.heldSinceNanos != 0) {
+                heldNanos = System.nanoTime() - times.heldSinceNanos;
+            } else {
+                return -1;
+            }
+            long remaining = (long) times.averageHoldNanos - heldNanos;
+            return remaining > 0 ? remaining : -1;
+        } finally {
+            times.lock.unlock();
+        }
+    }
+
+    /**
+     * @return how long until the last of the locks in {@code resourceLockIds} with a prediction is
+     *     expected to be released, or -1 if there is no prediction for any of them
+     */
+    public long predictedWaitNanos(Collection<String> resourceLockIds) {
+
+        long longest = -1;
+        for (String resourceLockId : resourceLockIds) {
+            longest = Math.max(longest, predictedWaitNanos(resourceLockId));
+        }
+        return longest;
+    }
+
+    private HoldTimes get(String resourceLockId) {
+        try {
+            return holdTimes.get(resourceLockId, HoldTimes::new);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static final class HoldTimes {
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private double averageHoldNanos;
+        private long samples;
+        private long heldSinceNanos;
+        private long rowHeldSinceMillis;
+    }
+}
@@ -0,0 +1,193 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Value;
+
+/**
+ * Locks held by owners of this node, with the time each of them was acquired and how many times
+ * the owner acquired it without releasing it.
+ *
+ * <p>The counts make the lock reentrant without any store access: a nested acquire only bumps the
+ * count, and only the release of the outermost acquire has to go to the store.
+ *
+ * <p>Every hold also gets a generation when the owner starts holding the lock, so that a hold seen
+ * in a {@link #snapshot} can be told apart from a later one of the same owner on the same lock.
+ */
+public final class ResourceLockHolds {
+
+    private final ConcurrentMap<HoldKey, Hold> holds = new ConcurrentHashMap<>();
+    private final AtomicLong generations = new AtomicLong();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Tells {@code listener} every time an owner starts or stops holding a lock, or holds it in a
+     * stronger mode.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /** Records an acquire that went through the store, or a handoff. */
+    public void acquired(String resourceLockId, String ownerId, ResourceLockMode mode) {
+        AtomicBoolean added = new AtomicBoolean();
+        holds.compute(
+                new HoldKey(resourceLockId, ownerId),
+                (key, held) -> {
+                    if (held == null) {
+                        added.set(true);
+                        return new Hold(
+                                System.nanoTime(), generations.incrementAndGet(), mode, 1);
+                    }
+                    ResourceLockMode combined = held.mode.combinedWith(mode);
+                    added.set(combined != held.mode);
+                    return held.with(combined, held.count + 1);
+                });
+        if (added.get()) {
+            for (Listener listener : listeners) {
+                listener.holdAdded(resourceLockId, ownerId);
+            }
+        }
+    }
+
+    /**
+     * Acquires the lock again if {@code ownerId} already holds it through this node in a mode that
+     * covers {@code mode}.
+     *
+     * @return true if the nested acquire was recorded and the store does not need to be asked
+     */
+    public boolean reenter(String resourceLockId, String ownerId, ResourceLockMode mode) {
+        Hold hold =
+                holds.computeIfPresent(
+                        new HoldKey(resourceLockId, ownerId),
+                        (key, held) ->
+                                held.mode.covers(mode)
+                                        ? held.with(held.mode, held.count + 1)
+                                        : held);
+        return hold != null && hold.mode.covers(mode);
+    }
+
+    /**
+     * Releases one nested acquire.
+     *
+     * @return true if the owner still holds the lock through an outer acquire, false if this is the
+     *     outermost release, or the lock was not acquired through this node, and the lock has to be
+     *     released in the store
+     */
+    public boolean exit(String resourceLockId, String ownerId) {
+        AtomicBoolean nested = new AtomicBoolean();
+        holds.computeIfPresent(
+                new HoldKey(resourceLockId, ownerId),
+                (key, held) -> {
+                    if (held.count == 1) {
+                        return held;
+                    }
+                    nested.set(true);
+                    return held.with(held.mode, held.count - 1);
+                });
+        return nested.get();
+    }
+
+    /** @return how long the lock was held, or -1 if it was not acquired through this node */
+    public long released(String resourceLockId, String ownerId) {
+        Hold hold = holds.remove(new HoldKey(resourceLockId, ownerId));
+        if (hold == null) {
+            return -1;
+        }
+        for (Listener listener : listeners) {
+            listener.holdRemoved(resourceLockId, ownerId);
+        }
+        return System.nanoTime() - hold.acquiredNanos;
+    }
+
+    /**
+     * Drops the hold if it is still of {@code generation}, as seen in a {@link #snapshot}, and not
+     * a hold the owner took again since.
+     *
+     * @return true if the hold was dropped
+     */
+    public boolean releasedIf(HoldKey key, long generation) {
+        AtomicBoolean removed = new AtomicBoolean();
+        holds.computeIfPresent(
+                key,
+                (k, held) -> {
+                    if (held.generation != generation) {
+                        return held;
+                    }
+                    removed.set(true);
+                    return null;
+                });
+        if (removed.get()) {
+            for (Listener listener : listeners) {
+                listener.holdRemoved(key.getResourceLockId(), key.getOwnerId());
+            }
+        }
+        return removed.get();
+    }
+
+    /** @return the mode {@code ownerId} holds the lock in, or null if it does not hold it */
+    public ResourceLockMode mode(String resourceLockId, String ownerId) {
+        Hold hold = holds.get(new HoldKey(resourceLockId, ownerId));
+        return hold == null ? null : hold.mode;
+    }
+
+    /** @return the number of unreleased acquires of the lock by {@code ownerId}, 0 if none */
+    public int count(String resourceLockId, String ownerId) {
+        Hold hold = holds.get(new HoldKey(resourceLockId, ownerId));
+        return hold == null ? 0 : hold.count;
+    }
+
+    /** @return the locks currently held through this node, each with the generation of its hold */
+    public Map<HoldKey, Long> snapshot() {
+        Map<HoldKey, Long> snapshot = new HashMap<>();
+        holds.forEach((key, hold) -> snapshot.put(key, hold.generation));
+        return snapshot;
+    }
+
+    public int size() {
+        return holds.size();
+    }
+
+    /**
+     * Told when an owner starts or stops holding a lock. Calls for the same hold may arrive out of
+     * order when they race, so listeners check {@link #count} for the current state.
+     */
+    public interface Listener {
+
+        /** The owner started holding the lock, or holds it in a stronger mode. */
+        void holdAdded(String resourceLockId, String ownerId);
+
+        void holdRemoved(String resourceLockId, String ownerId);
+    }
+
+    @Value
+    public static class HoldKey {
+        String resourceLockId;
+        String ownerId;
+    }
+
+    private static final class Hold {
+
+        private final long acquiredNanos;
+        private final long generation;
+        private final ResourceLockMode mode;
+        private final int count;
+
+        private Hold(long acquiredNanos, long generation, ResourceLockMode mode, int count) {
+            this.acquiredNanos = acquiredNanos;
+            this.generation = generation;
+            this.mode = mode;
+            this.count = count;
+        }
+
+        private Hold with(ResourceLockMode mode, int count) {
+            return new Hold(acquiredNanos, generation, mode, count);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.dropwizard.lifecycle.Managed;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Append-only journal of the lock events of this node, with queries over the hold history and the
+ * contention of each resource.
+ *
+ * <p>Lock callers only put events into a bounded {@link ResourceLockEventRing}. A background
+ * writer drains it in batches and appends them to the journal file. When the buffer is full the
+ * event is dropped and counted in {@link #getDroppedEvents()}, so a slow disk never slows down
+ * locking. The journal is disabled when {@link ResourceLockingFrameworkOptions#getJournalFile()}
+ * is not set.
+ *
+ * <p>Once the file reaches {@link ResourceLockingFrameworkOptions#getJournalMaxBytes()} it is
+ * rotated, and queries read the rotated file and the current one. Lines that cannot be read, such
+ * as one torn by a crash, are skipped and counted in {@link #getUnreadableLines()}.
+ */
+@Slf4j
+public final class ResourceLockJournal implements Managed {
+
+    static final int BATCH_SIZE = 1024;
+
+    private final Path file;
+    private final Path rotatedFile;
+    private final ResourceLockingFrameworkOptions options;
+    private final ResourceLockEventRing ring;
+    private final LongAdder droppedEvents = new LongAdder();
+    private final ReentrantLock writerLock = new ReentrantLock();
+
+    private ScheduledExecutorService executor;
+    private BufferedWriter writer;
+    private long reportedDrops;
+    private volatile long unreadableLines;
+
+    public ResourceLockJournal(ResourceLockingFrameworkOptions options) {
+        this.file = options.getJournalFile();
+        this.rotatedFile = file == null ? null : file.resolveSibling(file.getFileName() + ".1");
+        this.options = options;
+        this.ring = file == null ? null : new ResourceLockEventRing(options.getJournalBufferSize());
+    }
+
+    public boolean isEnabled() {
+        return file != null;
+    }
+
+    /** Adds an event to the journal without blocking, or drops it if the buffer is full. */
+    public void publish(
+            ResourceLockEvent.Type type, String resourceLockId, String ownerId, long nanos) {
+
+        if (ring == null) {
+            return;
+        }
+        ResourceLockEvent event =
+                new ResourceLockEvent(
+                        System.currentTimeMillis(), type, resourceLockId, ownerId, nanos);
+        if (!ring.offer(event)) {
+            droppedEvents.increment();
+        }
+    }
+
+    /** Number of events dropped because the buffer was full. */
+    public long getDroppedEvents() {
+        return droppedEvents.sum();
+    }
+
+    /** Number of lines the last query skipped because they were not journaled events. */
+    public long getUnreadableLines() {
+        return unreadableLines;
+    }
+
+    @Override
+    public void start() throws IOException {
+
+        writerLock.lock();
+        try {
+            if (!isEnabled() || executor != null) {
+                return;
+            }
+
+            writer = openWriter();
+            if (endsTorn()) {
+                // The last line was cut short by a crash, the next event starts a line of its own
+                writer.newLine();
+            }
+            executor =
+                    Executors.newSingleThreadScheduledExecutor(
+                            new ThreadFactoryBuilder()
+                                    .setDaemon(true)
+                                    .setNameFormat("resource-lock-journal-%d")
+                                    .build());
+            long interval = options.getJournalFlushIntervalMillis();
+            executor.scheduleWithFixedDelay(
+                    this::flush, interval, interval, TimeUnit.MILLISECONDS);
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    @Override
+    public void stop() throws IOException {
+
+        writerLock.lock();
+        try {
+            if (executor == null) {
+                return;
+            }
+            executor.shutdownNow();
+            executor = null;
+            flush();
+            writer.close();
+            writer = null;
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    /**
+     * Writes every buffered event to the journal file.
+     *
+     * @return the number of events written
+     */
+    public int flush() {
+
+        // A lock rather than a monitor: queries flush from the caller's thread, which may be a
+        // virtual thread, and the writes below block on the disk
+        writerLock.lock();
+        try {
+            if (writer == null) {
+                return 0;
+            }
+
+            int written = 0;
+            try {
+                int drained;
+                do {
+                    drained = ring.drain(this::write, BATCH_SIZE);
+                    written += drained;
+                } while (drained == BATCH_SIZE);
+                writer.flush();
+                if (Files.size(file) >= options.getJournalMaxBytes()) {
+                    rotate();
+                }
+            } catch (UncheckedIOException | IOException e) {
+                log.error("Failed to write the resource lock journal {}", file, e);
+            }
+
+            long dropped = droppedEvents.sum();
+            if (dropped > reportedDrops) {
+                log.warn(
+                        "(LOCK) {} resource lock events dropped, the journal buffer was full",
+                        dropped - reportedDrops);
+                reportedDrops = dropped;
+            }
+            return written;
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    /** Every journaled event of {@code resourceLockId}, oldest first. */
+    public List<ResourceLockEvent> history(String resourceLockId) {
+        return read(event -> event.getResourceLockId().equals(resourceLockId));
+    }
+
+    /**
+     * Who held {@code resourceLockId} and for how long: its {@link ResourceLockEvent.Type#RELEASED}
+     * events, oldest first, each carrying the hold time of its owner.
+     */
+    public List<ResourceLockEvent> holdHistory(String resourceLockId) {
+        return read(
+                event ->
+                        event.getType() == ResourceLockEvent.Type.RELEASED
+                                && event.getResourceLockId().equals(resourceLockId));
+    }
+
+    /**
+     * The {@code limit} resources owners competed for the most, by the number of timeouts,
+     * deadlock victims and commit conflicts, then by the time spent waiting for them.
+     */
+    public List<HotSpot> hotSpots(int limit) {
+
+        // Acquisitions, contentions and wait time of each resource
+        Map<String, long[]> totals = new HashMap<>();
+        for (ResourceLockEvent event : read(event -> true)) {
+            ResourceLockEvent.Type type = event.getType();
+            if (type == ResourceLockEvent.Type.RELEASED) {
+                continue;
+            }
+            long[] total = totals.computeIfAbsent(event.getResourceLockId(), id -> new long[3]);
+            if (type.isContention()) {
+                total[1]++;
+            } else {
+                total[0]++;
+            }
+            if (type != ResourceLockEvent.Type.CONFLICT) {
+                total[2] += event.getNanos();
+            }
+        }
+
+        List<HotSpot> hotSpots = new ArrayList<>();
+        for (Map.Entry<String, long[]> total : totals.entrySet()) {
+            long[] counts = total.getValue();
+            if (counts[1] > 0) {
+                hotSpots.add(new HotSpot(total.getKey(), counts[0], counts[1], counts[2]));
+            }
+        }
+        hotSpots.sort(
+                Comparator.comparingLong(HotSpot::getContentions)
+                        .thenComparingLong(HotSpot::getWaitNanos)
+                        .reversed());
+        return hotSpots.subList(0, Math.min(limit, hotSpots.size()));
+    }
+
+    /**
+     * Reads the journaled events matching {@code filter}, after writing the buffered ones. The
+     * writer does not rotate the file in the meantime.
+     */
+    private List<ResourceLockEvent> read(Predicate<ResourceLockEvent> filter) {
+
+        if (!isEnabled()) {
+            return Collections.emptyList();
+        }
+
+        writerLock.lock();
+        try {
+            flush();
+            List<ResourceLockEvent> events = new ArrayList<>();
+            long unreadable = 0;
+            for (Path journal : new Path[] {rotatedFile, file}) {
+                if (!Files.exists(journal)) {
+                    continue;
+                }
+                try (BufferedReader reader =
+                        Files.newBufferedReader(journal, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        ResourceLockEvent event;
+                        try {
+                            event = ResourceLockEvent.fromLine(line);
+                        } catch (IllegalArgumentException e) {
+                            unreadable++;
+                            continue;
+                        }
+                        if (filter.test(event)) {
+                            events.add(event);
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            if (unreadable > 0) {
+                log.warn(
+                        "(LOCK) Skipped {} unreadable lines of the resource lock journal {}",
+                        unreadable,
+                        file);
+            }
+            unreadableLines = unreadable;
+            return events;
+        } finally {
+            writerLock.unlock();
+        }
+    }
+
+    private BufferedWriter openWriter() throws IOException {
+        return Files.newBufferedWriter(
+                file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /** Moves the journal file aside, replacing the file rotated before it. */
+    private void rotate() throws IOException {
+        writer.close();
+        try {
+            Files.move(file, rotatedFile, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            writer = openWriter();
+        }
+    }
+
+    /** Whether the journal file does not end with a line break. */
+    private boolean endsTorn() throws IOException {
+
+        try (SeekableByteChannel channel = Files.newByteChannel(file, StandardOpenOption.READ)) {
+            if (channel.size() == 0) {
+                return false;
+            }
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.position(channel.size() - 1);
+            channel.read(last);
+            return last.get(0) != '\n';
+        }
+    }
+
+    private void write(ResourceLockEvent event) {
+        try {
+            writer.write(event.toLine());
+            writer.newLine();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Contention of one resource, as recorded in the journal. */
+    @Value
+    public static class HotSpot {
+
+        String resourceLockId;
+
+        /** Number of times the lock was acquired. */
+        long acquisitions;
+
+        /** Number of timeouts, deadlock victims and commit conflicts. */
+        long contentions;
+
+        /** Time owners waited for the lock, whether they got it or not. */
+        long waitNanos;
+    }
+}
@@ -0,0 +1,149 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.oracle.pic.sfw.dal.exceptions.TransactionCommitConflictException;
+import io.dropwizard.lifecycle.Managed;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Heartbeat that keeps the leases of the locks held through this node alive.
+ *
+ * <p>Every {@link ResourceLockingFrameworkOptions#getLeaseRenewIntervalMillis()} the leases of all
+ * the holds of the node are extended in a single transaction. When that transaction keeps
+ * conflicting with other writers, which gets likelier the more locks the node holds, each lease is
+ * renewed in a transaction of its own, so that a busy row does not keep the other leases from
+ * being renewed. A hold that is no longer in the store lost its lease, it is dropped from the
+ * node's holds and reported to the metrics, unless the owner released the lock and took it again
+ * while the leases were being renewed.
+ */
+@Slf4j
+public final class ResourceLockLeaseRenewer implements Managed {
+
+    /** Attempts at renewing every lease in one transaction before renewing them one by one. */
+    static final int RENEW_ATTEMPTS = 3;
+
+    private final ResourceLockStore lockStore;
+    private final ResourceLockHolds holds;
+    private final ResourceLockingFrameworkOptions options;
+
+    private volatile ScheduledExecutorService executor;
+
+    public ResourceLockLeaseRenewer(
+            ResourceLockStore lockStore,
+            ResourceLockHolds holds,
+            ResourceLockingFrameworkOptions options) {
+        this.lockStore = lockStore;
+        this.holds = holds;
+        this.options = options;
+    }
+
+    @Override
+    public synchronized void start() {
+
+        if (!options.isLeaseEnabled() || executor != null) {
+            return;
+        }
+
+        executor =
+                Executors.newSingleThreadScheduledExecutor(
+                        new ThreadFactoryBuilder()
+                                .setDaemon(true)
+                                .setNameFormat("resource-lock-lease-renewer-%d")
+                                .build());
+        long interval = options.getLeaseRenewIntervalMillis();
+        executor.scheduleWithFixedDelay(this::renew, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void stop() {
+
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /** Whether the leases are being renewed in the background. */
+    public boolean isRunning() {
+        return executor != null;
+    }
+
+    /** Renews the leases of every hold of this node once. */
+    public void renew() {
+
+        Map<ResourceLockHolds.HoldKey, Long> current = holds.snapshot();
+        if (current.isEmpty()) {
+            return;
+        }
+
+        List<ResourceLockHolds.HoldKey> lost;
+        try {
+            lost = renewAll(current.keySet());
+        } catch (RuntimeException e) {
+            log.error("Failed to renew {} resource lock leases", current.size(), e);
+            return;
+        }
+
+        for (ResourceLockHolds.HoldKey hold : lost) {
+            if (!holds.releasedIf(hold, current.get(hold))) {
+                // Released and acquired again since the snapshot, under a lease of its own
+                continue;
+            }
+            options.getMetrics().leaseLost(hold.getResourceLockId());
+            log.warn(
+                    "(LOCK) Owner [{}] lost its lease on resource [{}]",
+                    hold.getOwnerId(),
+                    hold.getResourceLockId());
+        }
+    }
+
+    /**
+     * Renews the leases in one transaction, retried {@link #RENEW_ATTEMPTS} times while it
+     * conflicts, then each lease on its own.
+     *
+     * @return the holds whose lock is no longer held by their owner
+     */
+    private List<ResourceLockHolds.HoldKey> renewAll(Set<ResourceLockHolds.HoldKey> current) {
+
+        for (int attempts = 1; attempts <= RENEW_ATTEMPTS; attempts++) {
+            try {
+                return lockStore.renewLeases(current, leaseUntil());
+            } catch (TransactionCommitConflictException e) {
+                log.debug(
+                        "Conflict renewing {} resource lock leases, attempt {}",
+                        current.size(),
+                        attempts);
+            }
+        }
+
+        log.warn(
+                "(LOCK) Renewing {} resource lock leases kept conflicting,"
+                        + " renewing them one by one",
+                current.size());
+        List<ResourceLockHolds.HoldKey> lost = new ArrayList<>();
+        for (ResourceLockHolds.HoldKey hold : current) {
+            try {
+                lost.addAll(lockStore.renewLeases(Collections.singleton(hold), leaseUntil()));
+            } catch (TransactionCommitConflictException e) {
+                log.warn(
+                        "(LOCK) Conflict renewing the lease of owner [{}] on resource [{}],"
+                                + " retrying at the next renewal",
+                        hold.getOwnerId(),
+                        hold.getResourceLockId());
+            }
+        }
+        return lost;
+    }
+
+    private long leaseUntil() {
+        return System.currentTimeMillis() + options.getLeaseDurationMillis();
+    }
+}
@@ -0,0 +1,185 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import com.google.common.util.concurrent.Striped;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Node-local queues of owners waiting for the same resource lock.
+ *
+ * <p>For each resource lock ID only one owner of this JVM, the contender, talks to the store. The
+ * other owners wait in FIFO order without touching the store. When the contender gives up or
+ * releases the lock, the next owner in the queue becomes the contender, or, when the lock is handed
+ * off, becomes the holder directly.
+ */
+public final class ResourceLockLocalQueues {
+
+    /** How an owner left the local queue. */
+    public enum Turn {
+        /** The owner is now the contender and has to acquire the lock from the store. */
+        ELECTED,
+
+        /** The previous holder transferred the lock to the owner, it already holds it. */
+        HANDED_OFF
+    }
+
+    private final Striped<Lock> stripes = Striped.lock(64);
+    private final Map<String, LocalQueue> queues = new ConcurrentHashMap<>();
+
+    /**
+     * Enters the queue of {@code resourceLockId}.
+     *
+     * @return the queued owner, whose turn completes when it becomes the contender or receives the
+     *     lock
+     */
+    public Waiter enter(String resourceLockId, String ownerId, String operation) {
+
+        Lock stripe = stripes.get(resourceLockId);
+        stripe.lock();
+        try {
+            LocalQueue queue = queues.computeIfAbsent(resourceLockId, id -> new LocalQueue());
+            Waiter waiter = new Waiter(resourceLockId, ownerId, operation);
+
+            if (queue.contender == null || queue.contender.equals(ownerId)) {
+                queue.contender = ownerId;
+                waiter.turn.complete(Turn.ELECTED);
+            } else {
+                queue.waiters.addLast(waiter);
+            }
+            return waiter;
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Removes a waiter that gave up before its turn.
+     *
+     * @return false if the turn was already given to the waiter, which then has to honour it
+     */
+    public boolean abandon(Waiter waiter) {
+
+        Lock stripe = stripes.get(waiter.resourceLockId);
+        stripe.lock();
+        try {
+            LocalQueue queue = queues.get(waiter.resourceLockId);
+            return queue != null && queue.waiters.remove(waiter);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Called by the contender when it no longer holds or waits for the lock. The next waiter, if
+     * any, becomes the contender.
+     */
+    public void leave(String resourceLockId, String ownerId) {
+
+        Lock stripe = stripes.get(resourceLockId);
+        stripe.lock();
+        try {
+            LocalQueue queue = queues.get(resourceLockId);
+            if (queue == null || !ownerId.equals(queue.contender)) {
+                return;
+            }
+
+            queue.handoffs = 0;
+            Waiter next = queue.waiters.pollFirst();
+            if (next == null) {
+                queues.remove(resourceLockId);
+                return;
+            }
+            queue.contender = next.ownerId;
+            next.turn.complete(Turn.ELECTED);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Takes the waiter the lock of {@code ownerId} can be handed off to. Returns null if there is
+     * none, or if {@code maxHandoffs} consecutive handoffs already happened and the lock has to go
+     * back to the store so that other nodes get a chance.
+     *
+     * <p>The returned waiter can no longer abandon the queue; the caller must complete the handoff
+     * with {@link #handedOff}.
+     */
+    public Waiter pollHandoff(String resourceLockId, String ownerId, int maxHandoffs) {
+
+        Lock stripe = stripes.get(resourceLockId);
+        stripe.lock();
+        try {
+            LocalQueue queue = queues.get(resourceLockId);
+            if (queue == null
+                    || !ownerId.equals(queue.contender)
+                    || queue.handoffs >= maxHandoffs) {
+                return null;
+            }
+            return queue.waiters.pollFirst();
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    /**
+     * Makes {@code next} the contender after {@link #pollHandoff}.
+     *
+     * @param transferred whether the lock was transferred to {@code next} in the store; if not,
+     *     {@code next} is only elected and acquires the lock itself
+     */
+    public void handedOff(String resourceLockId, Waiter next, boolean transferred) {
+
+        Lock stripe = stripes.get(resourceLockId);
+        stripe.lock();
+        try {
+            LocalQueue queue = queues.computeIfAbsent(resourceLockId, id -> new LocalQueue());
+            queue.contender = next.ownerId;
+            queue.handoffs = transferred ? queue.handoffs + 1 : 0;
+            next.turn.complete(transferred ? Turn.HANDED_OFF : Turn.ELECTED);
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    int size() {
+        return queues.size();
+    }
+
+    /** An owner queued for a resource lock. */
+    public static final class Waiter {
+
+        private final String resourceLockId;
+        private final String ownerId;
+        private final String operation;
+        private final CompletableFuture<Turn> turn = new CompletableFuture<>();
+
+        private Waiter(String resourceLockId, String ownerId, String operation) {
+            this.resourceLockId = resourceLockId;
+            this.ownerId = ownerId;
+            this.operation = operation;
+        }
+
+        public String getOwnerId() {
+            return ownerId;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public CompletableFuture<Turn> getTurn() {
+            return turn;
+        }
+    }
+
+    private static final class LocalQueue {
+
+        private String contender;
+        private int handoffs;
+        private final Deque<Waiter> waiters = new ArrayDeque<>();
+    }
+}
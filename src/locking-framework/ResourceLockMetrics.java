@@ -0,0 +1,67 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+/**
+ * Sink for the lock metrics of {@link ResourceLockingFramework}.
+ *
+ * <p>Implementations are called on the lock path and must not block.
+ */
+public interface ResourceLockMetrics {
+
+    /** Records nothing. */
+    ResourceLockMetrics NOOP =
+            new ResourceLockMetrics() {
+                @Override
+                public void lockAcquired(String resourceLockId, long waitNanos, int attempts) {}
+
+                @Override
+                public void lockTimedOut(String resourceLockId, long waitNanos, int attempts) {}
+
+                @Override
+                public void deadlockVictim(String resourceLockId, long waitNanos, int attempts) {}
+
+                @Override
+                public void commitConflict(String resourceLockId) {}
+
+                @Override
+                public void lockReleased(String resourceLockId, long holdNanos) {}
+
+                @Override
+                public void leaseLost(String resourceLockId) {}
+
+                @Override
+                public void leasesReclaimed(int count) {}
+
+                @Override
+                public void pendingReleases(int count) {}
+            };
+
+    /**
+     * @param waitNanos time from the lock request until the lock was acquired
+     * @param attempts store attempts it took, zero when the lock was handed off locally
+     */
+    void lockAcquired(String resourceLockId, long waitNanos, int attempts);
+
+    /** The lock request gave up without acquiring the lock. */
+    void lockTimedOut(String resourceLockId, long waitNanos, int attempts);
+
+    /** The lock request gave up to break a deadlock it was part of. */
+    void deadlockVictim(String resourceLockId, long waitNanos, int attempts);
+
+    /** A lock or unlock transaction failed with a commit conflict. */
+    void commitConflict(String resourceLockId);
+
+    /** @param holdNanos time the lock was held by the releasing owner on this node */
+    void lockReleased(String resourceLockId, long holdNanos);
+
+    /** A lock held through this node was found held by someone else when renewing its lease. */
+    void leaseLost(String resourceLockId);
+
+    /** The reaper removed {@code count} expired holds from the store. */
+    void leasesReclaimed(int count);
+
+    /**
+     * The number of releases waiting in the {@link ResourceLockReleaseQueue} after conflicting in
+     * the unlock call changed to {@code count}.
+     */
+    void pendingReleases(int count);
+}
@@ -0,0 +1,102 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import java.util.Set;
+
+/**
+ * Mode in which an owner holds a resource lock.
+ *
+ * <p>The intent modes are taken on the ancestors of a data path locked in {@link #SHARED} or
+ * {@link #EXCLUSIVE} mode: they are compatible with each other, so locks on different parts of the
+ * tree do not block each other, but they block a coarse lock on the ancestor that would cover the
+ * locked path.
+ */
+public enum ResourceLockMode {
+
+    /** Held together with other shared holders, used by read-only operations. */
+    SHARED("S"),
+
+    /** Held by a single owner. */
+    EXCLUSIVE("X"),
+
+    /** Held on an ancestor of a data path locked in shared mode. */
+    INTENT_SHARED("IS"),
+
+    /** Held on an ancestor of a data path locked in exclusive mode. */
+    INTENT_EXCLUSIVE("IX"),
+
+    /**
+     * One of the permits of a lock used as a counting semaphore, held together with the other
+     * permit holders up to the permit count of the request.
+     */
+    PERMIT("P");
+
+    private final String code;
+
+    ResourceLockMode(String code) {
+        this.code = code;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * Whether two different owners may hold the lock in these modes at the same time, which does
+     * not depend on their order. Permits are only compatible with each other.
+     */
+    public boolean isCompatibleWith(ResourceLockMode other) {
+        switch (this) {
+            case SHARED:
+                return other == SHARED || other == INTENT_SHARED;
+            case INTENT_SHARED:
+                return other != EXCLUSIVE && other != PERMIT;
+            case INTENT_EXCLUSIVE:
+                return other == INTENT_SHARED || other == INTENT_EXCLUSIVE;
+            case PERMIT:
+                return other == PERMIT;
+            default:
+                return false;
+        }
+    }
+
+    /** Whether holding the lock in this mode already grants {@code other}. */
+    public boolean covers(ResourceLockMode other) {
+        return this == EXCLUSIVE
+                || this == other
+                || (other == INTENT_SHARED && (this == SHARED || this == INTENT_EXCLUSIVE));
+    }
+
+    /**
+     * The weakest mode that grants both this mode and {@code other}, for an owner that acquires the
+     * lock again in another mode. Shared plus intent exclusive has no such mode short of exclusive.
+     */
+    public ResourceLockMode combinedWith(ResourceLockMode other) {
+        if (covers(other)) {
+            return this;
+        }
+        return other.covers(this) ? other : EXCLUSIVE;
+    }
+
+    /** Whether the mode is taken by operations that modify the resource or its descendants. */
+    public boolean isWrite() {
+        return this == EXCLUSIVE || this == INTENT_EXCLUSIVE;
+    }
+
+    /** Mode taken on the ancestors of a data path locked in this mode. */
+    public ResourceLockMode toIntent() {
+        return isWrite() ? INTENT_EXCLUSIVE : INTENT_SHARED;
+    }
+
+    public static ResourceLockMode forOperation(String operation, Set<String> sharedOperations) {
+        return sharedOperations.contains(operation) ? SHARED : EXCLUSIVE;
+    }
+
+    public static ResourceLockMode fromCode(String code) {
+        for (ResourceLockMode mode : values()) {
+            if (mode.code.equals(code)) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown resource lock mode: " + code);
+    }
+}
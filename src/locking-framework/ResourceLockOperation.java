@@ -0,0 +1,179 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A single-row acquire or release applied through {@link ResourceLockStore#applyAll}, together
+ * with operations of other owners. Each operation keeps its own result, which is completed once
+ * the batch it belongs to is written.
+ *
+ * @param <T> whether the lock was granted for an acquire, the lock it was left in for a release
+ */
+public abstract class ResourceLockOperation<T> {
+
+    private final String resourceLockId;
+    private final String ownerId;
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+    private T staged;
+
+    private ResourceLockOperation(String resourceLockId, String ownerId) {
+        this.resourceLockId = resourceLockId;
+        this.ownerId = ownerId;
+    }
+
+    /** {@link ResourceLockStore#acquireIfUnlocked} of a single lock. */
+    public static ResourceLockOperation<Boolean> acquire(
+            String resourceLockId, ResourceLockRequest request) {
+        return new Acquire(resourceLockId, request);
+    }
+
+    /**
+     * {@link ResourceLockStore#releaseAllIfOwner} of a single lock, whose result is the lock it
+     * was left in, or null if {@code ownerId} did not hold it.
+     */
+    public static ResourceLockOperation<ResourceLockRecord> release(
+            String resourceLockId, String ownerId) {
+        return new Release(resourceLockId, ownerId);
+    }
+
+    public String getResourceLockId() {
+        return resourceLockId;
+    }
+
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    public abstract boolean isAcquire();
+
+    /**
+     * Applies the operation to {@code current}, the lock as left by the operations before it in
+     * the batch, and stages its result until {@link #commit}.
+     *
+     * @return the lock to write, or null if the row does not change
+     */
+    public abstract ResourceLockRecord stage(ResourceLockRecord current, long now);
+
+    /** Completes the operation with the result staged by its last {@link #stage}. */
+    public void commit() {
+        result.complete(staged);
+    }
+
+    /** Applies the operation on its own and completes it with the result or the failure. */
+    public void applyAlone(ResourceLockStore store) {
+        try {
+            result.complete(applyOn(store));
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    public void fail(Throwable cause) {
+        result.completeExceptionally(cause);
+    }
+
+    public boolean isDone() {
+        return result.isDone();
+    }
+
+    /**
+     * Waits for the result of the operation.
+     *
+     * @throws RuntimeException the failure of the write the operation was part of
+     */
+    public T join() {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Waits up to {@code timeoutNanos} for the result of the operation.
+     *
+     * @throws TimeoutException if the operation was not completed in time, or the wait was
+     *     interrupted
+     * @throws RuntimeException the failure of the write the operation was part of
+     */
+    public T join(long timeoutNanos) throws TimeoutException {
+        try {
+            return result.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TimeoutException("Interrupted waiting for " + resourceLockId);
+        }
+    }
+
+    abstract T applyOn(ResourceLockStore store);
+
+    void setStaged(T staged) {
+        this.staged = staged;
+    }
+
+    private static final class Acquire extends ResourceLockOperation<Boolean> {
+
+        private final ResourceLockRequest request;
+
+        private Acquire(String resourceLockId, ResourceLockRequest request) {
+            super(resourceLockId, request.getOwnerId());
+            this.request = request;
+        }
+
+        @Override
+        public boolean isAcquire() {
+            return true;
+        }
+
+        @Override
+        public ResourceLockRecord stage(ResourceLockRecord current, long now) {
+            ResourceLockRecord.Transition transition =
+                    current.acquire(request.forResource(getResourceLockId()), now);
+            setStaged(transition.isGranted());
+            return transition.getNext();
+        }
+
+        @Override
+        Boolean applyOn(ResourceLockStore store) {
+            return store.acquireIfUnlocked(getResourceLockId(), request);
+        }
+    }
+
+    private static final class Release extends ResourceLockOperation<ResourceLockRecord> {
+
+        private Release(String resourceLockId, String ownerId) {
+            super(resourceLockId, ownerId);
+        }
+
+        @Override
+        public boolean isAcquire() {
+            return false;
+        }
+
+        @Override
+        public ResourceLockRecord stage(ResourceLockRecord current, long now) {
+            ResourceLockRecord next = current.release(getOwnerId(), now);
+            setStaged(next);
+            return next;
+        }
+
+        @Override
+        ResourceLockRecord applyOn(ResourceLockStore store) {
+            return store.releaseAllIfOwner(Collections.singleton(getResourceLockId()), getOwnerId())
+                    .get(getResourceLockId());
+        }
+    }
+}
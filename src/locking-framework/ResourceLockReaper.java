@@ -0,0 +1,105 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.oracle.pic.sfw.dal.exceptions.TransactionCommitConflictException;
+import io.dropwizard.lifecycle.Managed;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Background sweep that removes expired leases from the lock rows.
+ *
+ * <p>Acquiring a lock already ignores expired holders, so the reaper is not needed for
+ * correctness. It keeps the rows, and {@link ResourceLockingFramework#isLocked}, accurate for locks
+ * nobody asks for again. The sweep pages through every row of the store with {@link
+ * ResourceLockStore#listResourceLockIds}, {@link #BATCH_SIZE} rows per transaction, so it does not
+ * run over a store that {@link ResourceLockStore#canListResourceLockIds cannot list} its rows.
+ */
+@Slf4j
+public final class ResourceLockReaper implements Managed {
+
+    static final int BATCH_SIZE = 100;
+
+    private final ResourceLockStore lockStore;
+    private final ResourceLockingFrameworkOptions options;
+
+    private ScheduledExecutorService executor;
+
+    public ResourceLockReaper(
+            ResourceLockStore lockStore, ResourceLockingFrameworkOptions options) {
+        this.lockStore = lockStore;
+        this.options = options;
+    }
+
+    @Override
+    public synchronized void start() {
+
+        if (!options.isLeaseEnabled() || options.getReapIntervalMillis() <= 0 || executor != null) {
+            return;
+        }
+        if (!lockStore.canListResourceLockIds()) {
+            log.warn(
+                    "(LOCK) {} cannot list resource lock rows, expired leases are not reaped",
+                    lockStore.getClass().getSimpleName());
+            return;
+        }
+
+        executor =
+                Executors.newSingleThreadScheduledExecutor(
+                        new ThreadFactoryBuilder()
+                                .setDaemon(true)
+                                .setNameFormat("resource-lock-reaper-%d")
+                                .build());
+        long interval = options.getReapIntervalMillis();
+        executor.scheduleWithFixedDelay(this::reap, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void stop() {
+
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Sweeps the lock rows once.
+     *
+     * @return the number of expired holds removed, zero if the store cannot list its rows
+     */
+    public int reap() {
+
+        if (!lockStore.canListResourceLockIds()) {
+            return 0;
+        }
+        int reclaimed = 0;
+        List<String> batch = lockStore.listResourceLockIds(null, BATCH_SIZE);
+        for (; !batch.isEmpty(); batch = nextBatch(batch)) {
+            try {
+                reclaimed += lockStore.reapExpired(batch);
+            } catch (TransactionCommitConflictException e) {
+                // A concurrent writer already rewrote one of the rows, it is swept next time
+                log.debug("Conflict reaping {} resource locks, skipping the batch", batch.size());
+            } catch (RuntimeException e) {
+                log.error("Failed to reap {} resource locks", batch.size(), e);
+            }
+        }
+
+        if (reclaimed > 0) {
+            options.getMetrics().leasesReclaimed(reclaimed);
+            log.info("(LOCK) Reclaimed {} expired resource lock leases", reclaimed);
+        }
+        return reclaimed;
+    }
+
+    private List<String> nextBatch(List<String> batch) {
+        return batch.size() < BATCH_SIZE
+                ? Collections.emptyList()
+                : lockStore.listResourceLockIds(batch.get(batch.size() - 1), BATCH_SIZE);
+    }
+}
@@ -0,0 +1,657 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import com.oracle.pic.project.commons.contract.api.ResourceLockParams;
+import com.oracle.pic.project.commons.contract.api.ResourceLockState;
+import com.oracle.pic.project.commons.contract.api.UpdateResourceLockParams;
+import com.oracle.pic.project.model.ResourceLockEntity;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Immutable view of a resource lock row, and the state transitions applied to it.
+ *
+ * <p>The row only has state, owner and operation columns. A lock held exclusively by one owner is
+ * stored exactly as before: the owner ID and the operation. Anything else is encoded on those same
+ * columns so that it is read and written atomically with the lock:
+ *
+ * <ul>
+ *   <li>the owner column lists every holder, separated by {@code ','}
+ *   <li>the operation column is followed by {@code ;key=value} attributes, for example the mode
+ *       and lease expiry of each holder, the time a leased lock was acquired, or a pending writer
+ *       reservation
+ * </ul>
+ *
+ * <p>A holder whose lease expired no longer counts as a holder: acquirers may take the lock over,
+ * and {@link #withoutExpired} drops it from the record.
+ *
+ * <p>When owners queue with {@link ResourceLockTicket tickets}, only the owner of the oldest live
+ * ticket may acquire the lock, and {@link #release} hands the lock straight to it.
+ */
+public final class ResourceLockRecord {
+
+    static final String MODES = "modes";
+    static final String LEASES = "leases";
+    static final String WRITER = "writer";
+    static final String WRITER_UNTIL = "writerUntil";
+    static final String TICKETS = "tickets";
+    static final String PERMITS = "permits";
+    static final String HELD_SINCE = "heldSince";
+
+    private static final ResourceLockRecord ABSENT =
+            new ResourceLockRecord(
+                    false,
+                    null,
+                    new LinkedHashMap<>(),
+                    new LinkedHashMap<>(),
+                    new LinkedHashMap<>());
+
+    private final boolean locked;
+    private final String operation;
+    private final Map<String, ResourceLockMode> holders;
+    private final Map<String, Long> leases;
+    private final Map<String, String> attributes;
+
+    private ResourceLockRecord(
+            boolean locked,
+            String operation,
+            Map<String, ResourceLockMode> holders,
+            Map<String, Long> leases,
+            Map<String, String> attributes) {
+        this.locked = locked;
+        this.operation = operation;
+        this.holders = holders;
+        this.leases = leases;
+        this.attributes = attributes;
+    }
+
+    /** State of a resource lock that has no row yet. */
+    public static ResourceLockRecord absent() {
+        return ABSENT;
+    }
+
+    public static ResourceLockRecord fromEntity(ResourceLockEntity entity) {
+
+        Map<String, String> attributes = new LinkedHashMap<>();
+        String operation = null;
+
+        if (entity.getOperation() != null) {
+            String[] parts = entity.getOperation().split(";", -1);
+            operation = parts[0].isEmpty() ? null : unescape(parts[0]);
+            for (int i = 1; i < parts.length; i++) {
+                int separator = parts[i].indexOf('=');
+                attributes.put(
+                        parts[i].substring(0, separator),
+                        unescape(parts[i].substring(separator + 1)));
+            }
+        }
+
+        Map<String, ResourceLockMode> holders = new LinkedHashMap<>();
+        Map<String, Long> leases = new LinkedHashMap<>();
+        String[] modeCodes = splitList(attributes.remove(MODES));
+        String[] leaseExpiries = splitList(attributes.remove(LEASES));
+
+        if (entity.isLocked() && entity.getOwnerId() != null) {
+            String[] owners = entity.getOwnerId().split(",", -1);
+            for (int i = 0; i < owners.length; i++) {
+                String owner = unescape(owners[i]);
+                holders.put(
+                        owner,
+                        i < modeCodes.length
+                                ? ResourceLockMode.fromCode(modeCodes[i])
+                                : ResourceLockMode.EXCLUSIVE);
+                if (i < leaseExpiries.length && !"0".equals(leaseExpiries[i])) {
+                    leases.put(owner, Long.parseLong(leaseExpiries[i]));
+                }
+            }
+        }
+
+        return new ResourceLockRecord(entity.isLocked(), operation, holders, leases, attributes);
+    }
+
+    public boolean isLocked() {
+        return locked;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public Map<String, ResourceLockMode> getHolders() {
+        return Collections.unmodifiableMap(holders);
+    }
+
+    /** The holder of the lock, or the first of them when it is held in shared mode. */
+    public String getOwner() {
+        return holders.isEmpty() ? null : holders.keySet().iterator().next();
+    }
+
+    public boolean isHeldBy(String ownerId) {
+        return holders.containsKey(ownerId);
+    }
+
+    public String getAttribute(String key) {
+        return attributes.get(key);
+    }
+
+    /** Lease expiry of {@code ownerId} in epoch milliseconds, or 0 if it holds no lease. */
+    public long getLeaseUntil(String ownerId) {
+        Long leaseUntil = leases.get(ownerId);
+        return leaseUntil == null ? 0 : leaseUntil;
+    }
+
+    /**
+     * Epoch millisecond at which the lock was last acquired while it was free, recorded next to
+     * the leases when it was acquired with one, 0 if it is free or that time is not recorded.
+     */
+    public long getHeldSince() {
+        String heldSince = attributes.get(HELD_SINCE);
+        return heldSince == null || holders.isEmpty() ? 0 : Long.parseLong(heldSince);
+    }
+
+    /** Permit count of the lock when it is used as a counting semaphore, 0 otherwise. */
+    public int getPermits() {
+        String permits = attributes.get(PERMITS);
+        return permits == null ? 0 : Integer.parseInt(permits);
+    }
+
+    /** Live tickets of the lock queue, oldest first. */
+    public List<ResourceLockTicket> getTickets(long now) {
+
+        List<ResourceLockTicket> tickets = new ArrayList<>();
+        for (String entry : splitList(attributes.get(TICKETS))) {
+            String[] fields = entry.split(";", -1);
+            ResourceLockTicket ticket =
+                    new ResourceLockTicket(
+                            unescape(fields[0]),
+                            unescape(fields[1]),
+                            ResourceLockMode.fromCode(fields[2]),
+                            Long.parseLong(fields[3]),
+                            Long.parseLong(fields[4]));
+            if (!ticket.isExpired(now)) {
+                tickets.add(ticket);
+            }
+        }
+        return tickets;
+    }
+
+    /** @return this record without the holders whose lease expired before {@code now} */
+    public ResourceLockRecord withoutExpired(long now) {
+
+        Map<String, ResourceLockMode> liveHolders = new LinkedHashMap<>(holders);
+        Map<String, Long> liveLeases = new LinkedHashMap<>(leases);
+        for (Map.Entry<String, Long> lease : leases.entrySet()) {
+            if (lease.getValue() <= now) {
+                liveHolders.remove(lease.getKey());
+                liveLeases.remove(lease.getKey());
+            }
+        }
+
+        if (liveHolders.size() == holders.size()) {
+            return this;
+        }
+        if (liveHolders.isEmpty()) {
+            return new ResourceLockRecord(false, null, liveHolders, liveLeases, attributes);
+        }
+        return new ResourceLockRecord(true, operation, liveHolders, liveLeases, attributes);
+    }
+
+    /**
+     * Extends the lease of {@code ownerId}.
+     *
+     * @return the renewed record, or null if {@code ownerId} is no longer a live holder
+     */
+    public ResourceLockRecord renew(String ownerId, long leaseUntil, long now) {
+
+        ResourceLockRecord live = withoutExpired(now);
+        if (!live.holders.containsKey(ownerId)) {
+            return null;
+        }
+
+        Map<String, Long> newLeases = new LinkedHashMap<>(live.leases);
+        newLeases.put(ownerId, leaseUntil);
+        return new ResourceLockRecord(
+                live.locked, live.operation, live.holders, newLeases, live.attributes);
+    }
+
+    /**
+     * Applies an acquire request. Holders whose lease expired before {@code now} are ignored, and
+     * dropped from the record when the lock is granted.
+     */
+    public Transition acquire(ResourceLockRequest request, long now) {
+
+        ResourceLockRecord live = withoutExpired(now);
+        String ownerId = request.getOwnerId();
+        ResourceLockMode mode = request.getMode();
+
+        String writer = attributes.get(WRITER);
+        boolean reservedByOther =
+                writer != null
+                        && !writer.equals(ownerId)
+                        && Long.parseLong(attributes.get(WRITER_UNTIL)) > now;
+
+        if (mode == ResourceLockMode.PERMIT
+                && !live.holders.isEmpty()
+                && live.getPermits() != 0
+                && live.getPermits() != request.getPermits()) {
+            // The semaphore was created with another permit count
+            return Transition.refused(null);
+        }
+
+        ResourceLockMode held = live.holders.get(ownerId);
+        if (held != null) {
+            if (held.covers(mode)) {
+                return Transition.granted(null);
+            }
+            if (!reservedByOther && live.isCompatibleWithOthers(ownerId, held.combinedWith(mode))) {
+                return Transition.granted(live.withHolder(request, now));
+            }
+            return Transition.refused(null);
+        }
+
+        List<ResourceLockTicket> tickets = live.getTickets(now);
+        boolean queuedBehindOther =
+                !tickets.isEmpty() && !tickets.get(0).getOwnerId().equals(ownerId);
+
+        if (reservedByOther || queuedBehindOther) {
+            return Transition.refused(live.enqueue(request, tickets, now));
+        }
+
+        if (mode == ResourceLockMode.PERMIT && live.holders.size() >= request.getPermits()) {
+            return Transition.refused(live.enqueue(request, tickets, now));
+        }
+
+        for (ResourceLockMode holderMode : live.holders.values()) {
+            if (!holderMode.isCompatibleWith(mode)) {
+                return Transition.refused(
+                        request.getQueueUntil() != 0
+                                ? live.enqueue(request, tickets, now)
+                                : live.reserve(request, holderMode, now));
+            }
+        }
+
+        tickets.removeIf(ticket -> ticket.getOwnerId().equals(ownerId));
+        return Transition.granted(live.withTickets(tickets).withHolder(request, now));
+    }
+
+    /**
+     * Removes what {@code ownerId} left on the lock while waiting for it: its ticket in the lock
+     * queue and its writer reservation.
+     *
+     * @return the record without them, or null if {@code ownerId} has neither
+     */
+    public ResourceLockRecord withoutWaiter(String ownerId, long now) {
+
+        List<ResourceLockTicket> tickets = getTickets(now);
+        boolean queued = tickets.removeIf(ticket -> ticket.getOwnerId().equals(ownerId));
+        boolean reserved = ownerId.equals(attributes.get(WRITER));
+        if (!queued && !reserved) {
+            return null;
+        }
+
+        Map<String, String> newAttributes = new LinkedHashMap<>(attributes);
+        if (reserved) {
+            newAttributes.remove(WRITER);
+            newAttributes.remove(WRITER_UNTIL);
+        }
+        return new ResourceLockRecord(locked, operation, holders, leases, newAttributes)
+                .withTickets(tickets);
+    }
+
+    /**
+     * Releases the lock of {@code ownerId}. When it was the last holder and owners are queued, the
+     * lock is handed to the oldest live ticket, together with the tickets right behind it whose
+     * modes are compatible with it, for example a run of shared tickets.
+     *
+     * @return the record after the release, or null if {@code ownerId} is not a holder
+     */
+    public ResourceLockRecord release(String ownerId, long now) {
+
+        if (!holders.containsKey(ownerId)) {
+            return null;
+        }
+
+        Map<String, ResourceLockMode> remaining = new LinkedHashMap<>(holders);
+        remaining.remove(ownerId);
+        Map<String, Long> remainingLeases = new LinkedHashMap<>(leases);
+        remainingLeases.remove(ownerId);
+
+        if (!remaining.isEmpty()) {
+            return new ResourceLockRecord(true, operation, remaining, remainingLeases, attributes);
+        }
+
+        List<ResourceLockTicket> tickets = getTickets(now);
+        if (tickets.isEmpty()) {
+            Map<String, String> newAttributes = new LinkedHashMap<>(attributes);
+            newAttributes.remove(HELD_SINCE);
+            newAttributes.remove(PERMITS);
+            return new ResourceLockRecord(false, null, remaining, remainingLeases, newAttributes)
+                    .withTickets(tickets);
+        }
+
+        ResourceLockTicket head = tickets.get(0);
+        List<ResourceLockTicket> handedOff = new ArrayList<>();
+        handedOff.add(tickets.remove(0));
+        while (!tickets.isEmpty()
+                && isCompatibleWithAll(tickets.get(0).getMode(), handedOff)
+                && (head.getMode() != ResourceLockMode.PERMIT || handedOff.size() < getPermits())) {
+            handedOff.add(tickets.remove(0));
+        }
+
+        for (ResourceLockTicket ticket : handedOff) {
+            remaining.put(ticket.getOwnerId(), ticket.getMode());
+            if (ticket.getLeaseMillis() != 0) {
+                remainingLeases.put(ticket.getOwnerId(), now + ticket.getLeaseMillis());
+            }
+        }
+
+        Map<String, String> newAttributes = new LinkedHashMap<>(attributes);
+        String writer = newAttributes.get(WRITER);
+        if (writer != null && remaining.containsKey(writer)) {
+            newAttributes.remove(WRITER);
+            newAttributes.remove(WRITER_UNTIL);
+        }
+        if (head.getMode() != ResourceLockMode.PERMIT) {
+            newAttributes.remove(PERMITS);
+        }
+        if (remainingLeases.isEmpty()) {
+            newAttributes.remove(HELD_SINCE);
+        } else {
+            newAttributes.put(HELD_SINCE, Long.toString(now));
+        }
+        return new ResourceLockRecord(
+                        true, head.getOperation(), remaining, remainingLeases, newAttributes)
+                .withTickets(tickets);
+    }
+
+    /**
+     * Moves an exclusive lock from {@code fromOwnerId} to {@code toOwnerId} without unlocking it.
+     *
+     * @return the record after the transfer, or null if {@code fromOwnerId} is not the exclusive
+     *     holder
+     */
+    public ResourceLockRecord transfer(String fromOwnerId, ResourceLockRequest to) {
+
+        if (holders.size() != 1 || holders.get(fromOwnerId) != ResourceLockMode.EXCLUSIVE) {
+            return null;
+        }
+
+        Map<String, ResourceLockMode> newHolders = new LinkedHashMap<>();
+        newHolders.put(to.getOwnerId(), ResourceLockMode.EXCLUSIVE);
+        Map<String, Long> newLeases = new LinkedHashMap<>();
+        if (to.getLeaseUntil() != 0) {
+            newLeases.put(to.getOwnerId(), to.getLeaseUntil());
+        }
+        return new ResourceLockRecord(true, to.getOperation(), newHolders, newLeases, attributes);
+    }
+
+    public ResourceLockParams toCreateParams(String resourceLockId) {
+        return ResourceLockParams.builder()
+                .resourceLockId(resourceLockId)
+                .resourceLockState(stateColumn())
+                .ownerId(ownerIdColumn())
+                .operation(operationColumn())
+                .build();
+    }
+
+    public UpdateResourceLockParams toUpdateParams() {
+        return UpdateResourceLockParams.builder()
+                .resourceLockState(stateColumn())
+                .ownerId(ownerIdColumn())
+                .operation(operationColumn())
+                .build();
+    }
+
+    String stateColumn() {
+        return locked ? ResourceLockState.LOCKED.toString() : ResourceLockState.UNLOCKED.toString();
+    }
+
+    String ownerIdColumn() {
+        if (holders.isEmpty()) {
+            return null;
+        }
+        List<String> owners = new ArrayList<>();
+        for (String owner : holders.keySet()) {
+            owners.add(escape(owner));
+        }
+        return String.join(",", owners);
+    }
+
+    String operationColumn() {
+
+        Map<String, String> columnAttributes = new LinkedHashMap<>();
+        if (holders.values().stream().anyMatch(mode -> mode != ResourceLockMode.EXCLUSIVE)) {
+            List<String> modes = new ArrayList<>();
+            for (ResourceLockMode mode : holders.values()) {
+                modes.add(mode.getCode());
+            }
+            columnAttributes.put(MODES, String.join(",", modes));
+        }
+        if (!leases.isEmpty()) {
+            List<String> expiries = new ArrayList<>();
+            for (String owner : holders.keySet()) {
+                expiries.add(Long.toString(getLeaseUntil(owner)));
+            }
+            columnAttributes.put(LEASES, String.join(",", expiries));
+        }
+        columnAttributes.putAll(attributes);
+
+        if (operation == null && columnAttributes.isEmpty()) {
+            return null;
+        }
+
+        StringBuilder column = new StringBuilder(operation == null ? "" : escape(operation));
+        for (Map.Entry<String, String> attribute : columnAttributes.entrySet()) {
+            column.append(';')
+                    .append(attribute.getKey())
+                    .append('=')
+                    .append(escape(attribute.getValue()));
+        }
+        return column.toString();
+    }
+
+    private ResourceLockRecord withHolder(ResourceLockRequest request, long now) {
+
+        String ownerId = request.getOwnerId();
+
+        Map<String, ResourceLockMode> newHolders = new LinkedHashMap<>(holders);
+        newHolders.merge(ownerId, request.getMode(), ResourceLockMode::combinedWith);
+
+        Map<String, Long> newLeases = new LinkedHashMap<>(leases);
+        if (request.getLeaseUntil() != 0) {
+            newLeases.put(ownerId, request.getLeaseUntil());
+        }
+
+        Map<String, String> newAttributes = new LinkedHashMap<>(attributes);
+        if (ownerId.equals(newAttributes.get(WRITER))) {
+            newAttributes.remove(WRITER);
+            newAttributes.remove(WRITER_UNTIL);
+        }
+        if (request.getPermits() != 0) {
+            newAttributes.put(PERMITS, Integer.toString(request.getPermits()));
+        } else if (holders.isEmpty()) {
+            newAttributes.remove(PERMITS);
+        }
+        if (holders.isEmpty()) {
+            if (request.getLeaseUntil() != 0) {
+                newAttributes.put(HELD_SINCE, Long.toString(now));
+            } else {
+                newAttributes.remove(HELD_SINCE);
+            }
+        }
+
+        boolean soleHolder =
+                holders.isEmpty() || (holders.size() == 1 && holders.containsKey(ownerId));
+
+        return new ResourceLockRecord(
+                true,
+                soleHolder ? request.getOperation() : operation,
+                newHolders,
+                newLeases,
+                newAttributes);
+    }
+
+    /**
+     * Gives {@code request} a ticket at the end of the queue.
+     *
+     * @return the record to write, or null if the request does not queue or its ticket is already
+     *     in the queue
+     */
+    private ResourceLockRecord enqueue(
+            ResourceLockRequest request, List<ResourceLockTicket> tickets, long now) {
+
+        if (request.getQueueUntil() == 0) {
+            return null;
+        }
+        for (ResourceLockTicket ticket : tickets) {
+            if (ticket.getOwnerId().equals(request.getOwnerId())) {
+                return null;
+            }
+        }
+
+        List<ResourceLockTicket> newTickets = new ArrayList<>(tickets);
+        newTickets.add(ResourceLockTicket.forRequest(request, now));
+        return withTickets(newTickets);
+    }
+
+    private ResourceLockRecord withTickets(List<ResourceLockTicket> tickets) {
+
+        Map<String, String> newAttributes = new LinkedHashMap<>(attributes);
+        if (tickets.isEmpty()) {
+            if (newAttributes.remove(TICKETS) == null) {
+                return this;
+            }
+        } else {
+            List<String> entries = new ArrayList<>();
+            for (ResourceLockTicket ticket : tickets) {
+                entries.add(
+                        String.join(
+                                ";",
+                                escape(ticket.getOwnerId()),
+                                escape(ticket.getOperation()),
+                                ticket.getMode().getCode(),
+                                Long.toString(ticket.getExpiresAt()),
+                                Long.toString(ticket.getLeaseMillis())));
+            }
+            newAttributes.put(TICKETS, String.join(",", entries));
+        }
+        return new ResourceLockRecord(locked, operation, holders, leases, newAttributes);
+    }
+
+    /**
+     * Reserves the lock for the writer of {@code request} until its {@code reserveUntil}. The
+     * writer's own reservation is only renewed once less than half of it is left, so a writer
+     * retrying often does not rewrite the row on every attempt.
+     */
+    private ResourceLockRecord reserve(
+            ResourceLockRequest request, ResourceLockMode blockedBy, long now) {
+
+        String ownerId = request.getOwnerId();
+        long reserveUntil = request.getReserveUntil();
+
+        if (reserveUntil == 0
+                || !request.getMode().isWrite()
+                || blockedBy.isWrite()
+                || (ownerId.equals(attributes.get(WRITER))
+                        && Long.parseLong(attributes.get(WRITER_UNTIL)) - now
+                                >= (reserveUntil - now) / 2)) {
+            return null;
+        }
+
+        Map<String, String> newAttributes = new LinkedHashMap<>(attributes);
+        newAttributes.put(WRITER, ownerId);
+        newAttributes.put(WRITER_UNTIL, Long.toString(reserveUntil));
+        return new ResourceLockRecord(locked, operation, holders, leases, newAttributes);
+    }
+
+    /** Whether every holder other than {@code ownerId} may keep the lock next to {@code mode}. */
+    private boolean isCompatibleWithOthers(String ownerId, ResourceLockMode mode) {
+        for (Map.Entry<String, ResourceLockMode> holder : holders.entrySet()) {
+            if (!holder.getKey().equals(ownerId) && !holder.getValue().isCompatibleWith(mode)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isCompatibleWithAll(
+            ResourceLockMode mode, List<ResourceLockTicket> tickets) {
+        for (ResourceLockTicket ticket : tickets) {
+            if (!ticket.getMode().isCompatibleWith(mode)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String[] splitList(String value) {
+        return value == null ? new String[0] : value.split(",", -1);
+    }
+
+    private static String escape(String value) {
+        return value.replace("%", "%25")
+                .replace(",", "%2C")
+                .replace(";", "%3B")
+                .replace("=", "%3D");
+    }
+
+    private static String unescape(String value) {
+        return value.replace("%3D", "=")
+                .replace("%3B", ";")
+                .replace("%2C", ",")
+                .replace("%25", "%");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ResourceLockRecord)) {
+            return false;
+        }
+        ResourceLockRecord that = (ResourceLockRecord) o;
+        return locked == that.locked
+                && Objects.equals(operation, that.operation)
+                && holders.equals(that.holders)
+                && leases.equals(that.leases)
+                && attributes.equals(that.attributes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(locked, operation, holders, leases, attributes);
+    }
+
+    /** Outcome of {@link #acquire}: whether the lock was granted and what to write, if anything. */
+    public static final class Transition {
+
+        private final boolean granted;
+        private final ResourceLockRecord next;
+
+        private Transition(boolean granted, ResourceLockRecord next) {
+            this.granted = granted;
+            this.next = next;
+        }
+
+        static Transition granted(ResourceLockRecord next) {
+            return new Transition(true, next);
+        }
+
+        static Transition refused(ResourceLockRecord next) {
+            return new Transition(false, next);
+        }
+
+        public boolean isGranted() {
+            return granted;
+        }
+
+        /** The record to write, or null if the row does not change. */
+        public ResourceLockRecord getNext() {
+            return next;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import java.util.function.Consumer;
+
+/**
+ * Cross-node notification channel for resource lock releases.
+ *
+ * <p>Every {@link ResourceLockingFramework} publishes the resource lock ID on each release and
+ * subscribes to wake its own waiters when another node releases a lock. Delivery is best effort:
+ * waiters still re-check the store on their retry interval when nothing arrives.
+ */
+public interface ResourceLockReleaseChannel {
+
+    void publish(String resourceLockId);
+
+    void subscribe(Consumer<String> listener);
+}
@@ -0,0 +1,330 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.oracle.pic.sfw.dal.exceptions.TransactionCommitConflictException;
+import io.dropwizard.lifecycle.Managed;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Releases that kept failing with commit conflicts in the unlock call, completed in the
+ * background.
+ *
+ * <p>An unlock makes {@link ResourceLockingFrameworkOptions#getUnlockAttempts()} store attempts.
+ * When they all conflict, the release is queued here and the caller returns as if the lock had
+ * been released. Every {@link ResourceLockingFrameworkOptions#getReleaseQueueIntervalMillis()} the
+ * queue writes up to {@link #BATCH_SIZE} pending releases through one {@link
+ * ResourceLockStore#applyAll}; the ones that conflict again stay queued for the next drain. A
+ * release that fails {@link #MAX_WRITE_FAILURES} times for another reason is given up on, and the
+ * row keeps the owner until its lease expires. The number of pending releases is reported through
+ * {@link ResourceLockMetrics#pendingReleases}.
+ *
+ * <p>The row still lists the owner until its release is written, so an owner that locks the
+ * resource again first {@link #takeOver takes over} its pending release: a queued release is
+ * dropped and the owner keeps the lock, and a release a drain is writing is waited for, so that it
+ * never undoes the new acquire.
+ *
+ * <p>Until the queue is started, and after it is stopped, pending releases are drained from the
+ * shared scheduler of the framework instead, so that they are never left behind. {@link #stop()}
+ * makes a last attempt at the releases still pending. Drains may overlap, each pending release is
+ * only written by one of them.
+ */
+@Slf4j
+public final class ResourceLockReleaseQueue implements Managed {
+
+    static final int BATCH_SIZE = 100;
+
+    /** Failures other than commit conflicts after which a release is given up on. */
+    static final int MAX_WRITE_FAILURES = 5;
+
+    private final ResourceLockStore lockStore;
+    private final ResourceLockingFrameworkOptions options;
+    private final BiConsumer<String, ResourceLockRecord> onReleased;
+    private final ConcurrentLinkedQueue<ResourceLockHolds.HoldKey> pending =
+            new ConcurrentLinkedQueue<>();
+    private final ConcurrentMap<ResourceLockHolds.HoldKey, Release> releases =
+            new ConcurrentHashMap<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicBoolean fallbackScheduled = new AtomicBoolean();
+    private final AtomicReference<ScheduledExecutorService> executor = new AtomicReference<>();
+
+    /**
+     * @param onReleased called with the ID and the new state of every lock released by the queue
+     */
+    public ResourceLockReleaseQueue(
+            ResourceLockStore lockStore,
+            ResourceLockingFrameworkOptions options,
+            BiConsumer<String, ResourceLockRecord> onReleased) {
+        this.lockStore = lockStore;
+        this.options = options;
+        this.onReleased = onReleased;
+    }
+
+    @Override
+    public void start() {
+
+        if (executor.get() != null) {
+            return;
+        }
+
+        ScheduledExecutorService started =
+                Executors.newSingleThreadScheduledExecutor(
+                        new ThreadFactoryBuilder()
+                                .setDaemon(true)
+                                .setNameFormat("resource-lock-release-queue-%d")
+                                .build());
+        if (!executor.compareAndSet(null, started)) {
+            // Started concurrently
+            started.shutdownNow();
+            return;
+        }
+        long interval = options.getReleaseQueueIntervalMillis();
+        started.scheduleWithFixedDelay(this::drain, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void stop() {
+
+        ScheduledExecutorService stopped = executor.getAndSet(null);
+        if (stopped != null) {
+            stopped.shutdownNow();
+            drain();
+            if (getPendingReleases() > 0) {
+                scheduleFallbackDrain();
+            }
+        }
+    }
+
+    /** Queues the release of the lock of {@code ownerId} on {@code resourceLockId}. */
+    public void add(String resourceLockId, String ownerId) {
+
+        ResourceLockHolds.HoldKey key = new ResourceLockHolds.HoldKey(resourceLockId, ownerId);
+        if (releases.putIfAbsent(key, new Release(0)) != null) {
+            // Already pending, or being written, which releases the lock all the same
+            return;
+        }
+        pending.add(key);
+        options.getMetrics().pendingReleases(pendingCount.incrementAndGet());
+        if (executor.get() == null) {
+            scheduleFallbackDrain();
+        }
+    }
+
+    /**
+     * Takes over the pending release of the lock of {@code ownerId} on {@code resourceLockId},
+     * before the owner acquires the lock again. A queued release is dropped, so the owner keeps the
+     * lock; a release being written by a drain is waited for, up to {@code timeoutNanos}, and the
+     * owner acquires the lock anew once it is written.
+     *
+     * @return false if a release being written was not written in time, or the wait was
+     *     interrupted, in which case the owner must not acquire the lock yet
+     */
+    public boolean takeOver(String resourceLockId, String ownerId, long timeoutNanos) {
+
+        if (pendingCount.get() == 0) {
+            return true;
+        }
+        long deadlineNanos = System.nanoTime() + timeoutNanos;
+        ResourceLockHolds.HoldKey key = new ResourceLockHolds.HoldKey(resourceLockId, ownerId);
+        while (true) {
+            AtomicBoolean dropped = new AtomicBoolean();
+            Release release =
+                    releases.computeIfPresent(
+                            key,
+                            (k, current) -> {
+                                if (current.writing) {
+                                    return current;
+                                }
+                                // Inside the compute, so a release queued again is not removed
+                                pending.remove(key);
+                                dropped.set(true);
+                                return null;
+                            });
+            if (dropped.get()) {
+                options.getMetrics().pendingReleases(pendingCount.decrementAndGet());
+                return true;
+            }
+            if (release == null) {
+                return true;
+            }
+            // Queued again if the write conflicts, in which case it is dropped on the next pass
+            try {
+                release.written.get(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+    }
+
+    public int getPendingReleases() {
+        return pendingCount.get();
+    }
+
+    /**
+     * Writes the pending releases once, in batches of {@link #BATCH_SIZE}.
+     *
+     * @return the number of releases written
+     */
+    public int drain() {
+
+        int written = 0;
+        int remaining = pendingCount.get();
+        while (remaining > 0) {
+            int size = Math.min(BATCH_SIZE, remaining);
+            List<ResourceLockOperation<?>> batch = new ArrayList<>(size);
+            while (batch.size() < size) {
+                ResourceLockHolds.HoldKey key = pending.poll();
+                if (key == null) {
+                    break;
+                }
+                if (releases.computeIfPresent(key, (k, current) -> current.startWriting())
+                        == null) {
+                    // Taken over by its owner
+                    continue;
+                }
+                batch.add(ResourceLockOperation.release(key.getResourceLockId(), key.getOwnerId()));
+            }
+            if (batch.isEmpty()) {
+                break;
+            }
+            remaining -= batch.size();
+            written += write(batch);
+        }
+        return written;
+    }
+
+    private int write(List<ResourceLockOperation<?>> batch) {
+
+        try {
+            lockStore.applyAll(batch);
+        } catch (TransactionCommitConflictException e) {
+            // Only the rows that conflict stay pending, the others are released one by one
+            for (ResourceLockOperation<?> operation : batch) {
+                operation.applyAlone(lockStore);
+            }
+        } catch (RuntimeException e) {
+            log.warn("(LOCK) Failed to release {} pending resource locks", batch.size(), e);
+            for (ResourceLockOperation<?> operation : batch) {
+                operation.fail(e);
+            }
+        }
+
+        int written = 0;
+        for (ResourceLockOperation<?> operation : batch) {
+            ResourceLockHolds.HoldKey key =
+                    new ResourceLockHolds.HoldKey(
+                            operation.getResourceLockId(), operation.getOwnerId());
+            Release release = releases.get(key);
+            ResourceLockRecord next;
+            try {
+                next = (ResourceLockRecord) operation.join();
+            } catch (RuntimeException e) {
+                int failures = release.failures;
+                if (e instanceof TransactionCommitConflictException) {
+                    options.getMetrics().commitConflict(operation.getResourceLockId());
+                } else if (++failures >= MAX_WRITE_FAILURES) {
+                    log.error(
+                            "(LOCK) Giving up on the release of owner [{}] on resource [{}] after"
+                                    + " {} failures, the lock is held until its lease expires",
+                            operation.getOwnerId(),
+                            operation.getResourceLockId(),
+                            failures,
+                            e);
+                    releases.remove(key, release);
+                    options.getMetrics().pendingReleases(pendingCount.decrementAndGet());
+                    release.written.complete(null);
+                    continue;
+                }
+                // Stays pending until the next drain, unless its owner takes it over first
+                releases.replace(key, release, new Release(failures));
+                pending.add(key);
+                release.written.complete(null);
+                continue;
+            }
+            written++;
+            releases.remove(key, release);
+            options.getMetrics().pendingReleases(pendingCount.decrementAndGet());
+            release.written.complete(null);
+            if (next != null) {
+                onReleased.accept(operation.getResourceLockId(), next);
+            }
+        }
+        return written;
+    }
+
+    /** Drains the queue from the shared scheduler while the queue is not running. */
+    private void scheduleFallbackDrain() {
+
+        if (!fallbackScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        options.getScheduler()
+                .schedule(
+                        this::submitFallbackDrain,
+                        options.getReleaseQueueIntervalMillis(),
+                        TimeUnit.MILLISECONDS);
+    }
+
+    private void submitFallbackDrain() {
+        try {
+            options.getStoreExecutor().execute(this::fallbackDrain);
+        } catch (RejectedExecutionException e) {
+            // The store executor is saturated, try again at the next interval
+            fallbackScheduled.set(false);
+            scheduleFallbackDrain();
+        }
+    }
+
+    /** A pending release, which its owner can no longer take over once a drain writes it. */
+    private static final class Release {
+
+        private final CompletableFuture<Void> written = new CompletableFuture<>();
+
+        /** Earlier attempts at writing the release that failed other than by a commit conflict. */
+        private final int failures;
+
+        /** Only read and written inside {@link ConcurrentMap#computeIfPresent} of its key. */
+        private boolean writing;
+
+        private Release(int failures) {
+            this.failures = failures;
+        }
+
+        private Release startWriting() {
+            writing = true;
+            return this;
+        }
+    }
+
+    private void fallbackDrain() {
+
+        fallbackScheduled.set(false);
+        if (executor.get() != null) {
+            return;
+        }
+        drain();
+        if (getPendingReleases() > 0) {
+            scheduleFallbackDrain();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import java.util.Map;
+import lombok.Builder;
+import lombok.NonNull;
+import lombok.Singular;
+import lombok.Value;
+
+/** What an owner asks for when it tries to acquire a resource lock. */
+@Value
+@Builder(toBuilder = true)
+public class ResourceLockRequest {
+
+    @NonNull String ownerId;
+
+    @NonNull String operation;
+
+    @Builder.Default @NonNull ResourceLockMode mode = ResourceLockMode.EXCLUSIVE;
+
+    /**
+     * When non-zero, an exclusive request blocked by shared holders reserves the lock until this
+     * time in epoch milliseconds, so that no new shared holder is admitted in the meantime.
+     */
+    long reserveUntil;
+
+    /** When non-zero, the lock is granted with a lease that expires at this epoch millisecond. */
+    long leaseUntil;
+
+    /**
+     * When non-zero, a refused request takes a {@link ResourceLockTicket} in the FIFO queue of the
+     * lock, valid until this time in epoch milliseconds.
+     */
+    long queueUntil;
+
+    /**
+     * Number of owners that may hold the lock at the same time in {@link ResourceLockMode#PERMIT}
+     * mode, when the lock is used as a counting semaphore.
+     */
+    int permits;
+
+    /**
+     * When non-zero, the epoch millisecond after which the caller stops waiting for the request to
+     * be written by a {@link GroupCommitResourceLockStore} batch; a request not picked up by a
+     * batch by then is refused.
+     */
+    long waitUntil;
+
+    /**
+     * Modes of the resources of a multi-resource request that are not locked in {@link #mode}, for
+     * example the intent modes taken on the ancestors of a data path.
+     */
+    @Singular Map<String, ResourceLockMode> resourceModes;
+
+    /** The request as it applies to one of the resources it locks. */
+    public ResourceLockRequest forResource(String resourceLockId) {
+        ResourceLockMode resourceMode = resourceModes.get(resourceLockId);
+        if (resourceMode == null) {
+            return this;
+        }
+        return toBuilder().mode(resourceMode).clearResourceModes().build();
+    }
+}
@@ -0,0 +1,22 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+/** Outcome of a lock request. */
+public enum ResourceLockResult {
+
+    /** The owner holds the lock. */
+    ACQUIRED,
+
+    /** The lock was still held by others when the timeout ran out. */
+    TIMED_OUT,
+
+    /**
+     * The owner was waiting in a cycle of owners that each wait for a lock held by the next one,
+     * and was chosen to give up so that the others can go on. It should release the locks it holds
+     * before retrying.
+     */
+    DEADLOCK_VICTIM;
+
+    public boolean isAcquired() {
+        return this == ACQUIRED;
+    }
+}
@@ -0,0 +1,27 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long a lock request waits between two attempts when the lock is held by someone else.
+ *
+ * <p>A waiter is woken earlier when the lock is released through this node or the release channel,
+ * so the delay only bounds how long it sleeps when no release is signalled. Implementations are
+ * called on the lock path and must not block.
+ */
+public interface ResourceLockRetryPolicy {
+
+    /** Retries every {@code retryTime} milliseconds, ignoring the predicted release. */
+    ResourceLockRetryPolicy FIXED =
+            (attempts, retryTime, predictedWaitNanos) ->
+                    TimeUnit.MILLISECONDS.toNanos(retryTime);
+
+    /**
+     * @param attempts failed attempts so far, from 1
+     * @param retryTime retry time the caller passed, in milliseconds
+     * @param predictedWaitNanos how long until the lock is expected to be released, from the hold
+     *     times seen for the resource, or -1 if there is no prediction yet
+     * @return the time to wait before the next attempt, in nanoseconds
+     */
+    long delayNanos(int attempts, long retryTime, long predictedWaitNanos);
+}
@@ -0,0 +1,76 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded read-through cache of lock rows for the read API of {@link ResourceLockingFramework}.
+ *
+ * <p>An entry is at most {@code stalenessMillis} old. Lock transitions made through this node, and
+ * releases announced on the {@link ResourceLockReleaseChannel}, invalidate the entry right away, so
+ * only changes made by other nodes without a release notification can be observed late.
+ *
+ * <p>A read may still be loading the row when the entry is invalidated. Every invalidation bumps a
+ * version of the key, and a load only fills the cache if the version did not change since it
+ * started, so a row read before the invalidation never comes back after it. Versions are kept in
+ * {@link #VERSION_STRIPES} stripes shared by many keys; an invalidation of another key of the
+ * stripe only costs a load its caching.
+ */
+public final class ResourceLockStateCache {
+
+    static final int VERSION_STRIPES = 1024;
+
+    private final ResourceLockStore lockStore;
+    private final Cache<String, ResourceLockRecord> records;
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+
+    public ResourceLockStateCache(
+            ResourceLockStore lockStore, long maximumSize, long stalenessMillis) {
+        this.lockStore = lockStore;
+        this.records =
+                CacheBuilder.newBuilder()
+                        .maximumSize(maximumSize)
+                        .expireAfterWrite(stalenessMillis, TimeUnit.MILLISECONDS)
+                        .build();
+    }
+
+    public ResourceLockRecord get(String resourceLockId) {
+
+        ResourceLockRecord cached = records.getIfPresent(resourceLockId);
+        if (cached != null) {
+            return cached;
+        }
+
+        int stripe = stripe(resourceLockId);
+        long version = versions.get(stripe);
+        ResourceLockRecord record = lockStore.read(resourceLockId);
+
+        // Checked and written under the lock of the entry, which invalidate() takes as well
+        records.asMap()
+                .compute(
+                        resourceLockId,
+                        (id, current) -> versions.get(stripe) == version ? record : current);
+        return record;
+    }
+
+    public void invalidate(String resourceLockId) {
+        int stripe = stripe(resourceLockId);
+        records.asMap()
+                .compute(
+                        resourceLockId,
+                        (id, current) -> {
+                            versions.incrementAndGet(stripe);
+                            return null;
+                        });
+    }
+
+    long size() {
+        return records.size();
+    }
+
+    private static int stripe(String resourceLockId) {
+        return Math.floorMod(resourceLockId.hashCode(), VERSION_STRIPES);
+    }
+}
@@ -0,0 +1,157 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import com.oracle.pic.sfw.dal.exceptions.TransactionCommitConflictException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Storage of resource lock rows used by {@link ResourceLockingFramework}.
+ *
+ * <p>Every operation is an atomic compare-and-set over one or more rows. The transitions are those
+ * of {@link ResourceLockRecord}, so every backend grants, refuses, queues and hands off locks the
+ * same way; backends only differ in how the rows are stored. A backend that detects a concurrent
+ * writer instead of retrying reports it with {@link TransactionCommitConflictException}.
+ */
+public interface ResourceLockStore {
+
+    /**
+     * Creates the lock, or joins or takes it over if it is UNLOCKED, held in a compatible mode or
+     * only held by owners whose lease expired.
+     *
+     * @return true if the requesting owner holds the lock after the call
+     * @throws TransactionCommitConflictException if another writer changed the row concurrently
+     */
+    default boolean acquireIfUnlocked(String resourceLockId, ResourceLockRequest request) {
+        return acquireAllIfUnlocked(Collections.singleton(resourceLockId), request);
+    }
+
+    /**
+     * Acquires every lock in {@code resourceLockIds} atomically, or none of them. When the request
+     * is refused, only the writer reservations and tickets of {@link ResourceLockRecord#acquire}
+     * are written.
+     *
+     * @return true if the requesting owner holds all the locks after the call
+     * @throws TransactionCommitConflictException if another writer changed a row concurrently
+     */
+    boolean acquireAllIfUnlocked(Collection<String> resourceLockIds, ResourceLockRequest request);
+
+    /**
+     * Releases the lock if {@code ownerId} is one of its holders.
+     *
+     * @return true if the lock was released by this call
+     * @throws TransactionCommitConflictException if another writer changed the row concurrently
+     */
+    default boolean releaseIfOwner(String resourceLockId, String ownerId) {
+        return !releaseAllIfOwner(Collections.singleton(resourceLockId), ownerId).isEmpty();
+    }
+
+    /**
+     * Releases, atomically, every lock in {@code resourceLockIds} held by {@code ownerId}. A lock
+     * with queued owners is handed to the next of them in the same write.
+     *
+     * @return the resource lock IDs released by this call, each with the lock it was left in
+     * @throws TransactionCommitConflictException if another writer changed a row concurrently
+     */
+    Map<String, ResourceLockRecord> releaseAllIfOwner(
+            Collection<String> resourceLockIds, String ownerId);
+
+    /**
+     * Applies single-row acquires and releases of possibly different owners, each completed with
+     * its own result as if it had been applied alone, in list order. Backends that can write them
+     * in one transaction override this; by default they are applied one by one.
+     *
+     * @throws TransactionCommitConflictException if another writer changed a row concurrently, in
+     *     which case none of the operations was applied or completed
+     */
+    default void applyAll(List<ResourceLockOperation<?>> operations) {
+        for (ResourceLockOperation<?> operation : operations) {
+            operation.applyAlone(this);
+        }
+    }
+
+    /**
+     * Takes the ticket of {@code ownerId} out of the lock queue, and drops its writer reservation,
+     * when it stops waiting.
+     *
+     * @return true if the lock was handed to {@code ownerId} before it left the queue, in which
+     *     case it holds the lock and must release it
+     * @throws TransactionCommitConflictException if another writer changed the row concurrently
+     */
+    boolean leaveQueue(String resourceLockId, String ownerId);
+
+    /**
+     * {@link #leaveQueue Leaves the queue} of every lock in {@code resourceLockIds}, one row at a
+     * time.
+     *
+     * @return the resource lock IDs that were handed to {@code ownerId} before it left
+     * @throws TransactionCommitConflictException if another writer changed a row concurrently; the
+     *     rows before it were left already
+     */
+    default Set<String> leaveQueues(Collection<String> resourceLockIds, String ownerId) {
+        Set<String> handedOff = new TreeSet<>();
+        for (String resourceLockId : resourceLockIds) {
+            if (leaveQueue(resourceLockId, ownerId)) {
+                handedOff.add(resourceLockId);
+            }
+        }
+        return handedOff;
+    }
+
+    /**
+     * Transfers the lock from its exclusive holder {@code fromOwnerId} to the owner of {@code to}.
+     *
+     * @return true if the lock now belongs to the owner of {@code to}
+     * @throws TransactionCommitConflictException if another writer changed the row concurrently
+     */
+    boolean transferIfOwner(String resourceLockId, String fromOwnerId, ResourceLockRequest to);
+
+    /**
+     * Extends, atomically, the leases of the given holds to {@code leaseUntil}.
+     *
+     * @return the holds whose lock is no longer held by their owner
+     * @throws TransactionCommitConflictException if another writer changed a row concurrently
+     */
+    List<ResourceLockHolds.HoldKey> renewLeases(
+            Collection<ResourceLockHolds.HoldKey> holds, long leaseUntil);
+
+    /**
+     * Removes the holders whose lease expired from the given locks.
+     *
+     * @return the number of holds reclaimed
+     * @throws TransactionCommitConflictException if another writer changed a row concurrently
+     */
+    int reapExpired(Collection<String> resourceLockIds);
+
+    /**
+     * Whether the store can {@link #listResourceLockIds list its rows}, which the {@link
+     * ResourceLockReaper} and the resharding of a {@link ShardedResourceLockStore} need.
+     */
+    default boolean canListResourceLockIds() {
+        return false;
+    }
+
+    /**
+     * Lists the lock rows of the store, a page at a time.
+     *
+     * @param startAfter ID the page starts after, null for the first page
+     * @param limit maximum number of IDs returned
+     * @return the IDs of up to {@code limit} rows following {@code startAfter}, in ascending order;
+     *     fewer than {@code limit} only on the last page
+     * @throws UnsupportedOperationException if the store {@link #canListResourceLockIds cannot
+     *     list} its rows
+     */
+    default List<String> listResourceLockIds(String startAfter, int limit) {
+        throw new UnsupportedOperationException(
+                getClass().getSimpleName() + " cannot list resource lock rows");
+    }
+
+    /** Reads the lock, {@link ResourceLockRecord#absent()} if it has no row. */
+    ResourceLockRecord read(String resourceLockId);
+
+    /** Number of store calls issued through this instance. */
+    long getStoreRoundTrips();
+}
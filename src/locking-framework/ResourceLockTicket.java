@@ -0,0 +1,37 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import lombok.Value;
+
+/**
+ * Place of an owner in the FIFO queue of a resource lock.
+ *
+ * <p>The ticket carries everything needed to hand the lock to its owner without the owner taking
+ * part: the operation and mode it asked for, and the lease it wants. A ticket whose owner stopped
+ * waiting expires at {@link #getExpiresAt()} and is skipped.
+ */
+@Value
+public class ResourceLockTicket {
+
+    String ownerId;
+    String operation;
+    ResourceLockMode mode;
+
+    /** Epoch millisecond after which the owner no longer waits for the lock. */
+    long expiresAt;
+
+    /** Lease granted to the owner when the lock is handed to it, zero for none. */
+    long leaseMillis;
+
+    public boolean isExpired(long now) {
+        return expiresAt <= now;
+    }
+
+    static ResourceLockTicket forRequest(ResourceLockRequest request, long now) {
+        return new ResourceLockTicket(
+                request.getOwnerId(),
+                request.getOperation(),
+                request.getMode(),
+                request.getQueueUntil(),
+                request.getLeaseUntil() == 0 ? 0 : Math.max(1, request.getLeaseUntil() - now));
+    }
+}
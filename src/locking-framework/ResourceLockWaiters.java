@@ -0,0 +1,114 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Registry of threads waiting for a resource lock to be released, keyed by resource lock ID.
+ *
+ * <p>A waiter registers a release signal with {@link #register} before it tries the lock, so a
+ * release that happens between a failed attempt and the wait is never missed. {@link
+ * #signal(String)} completes the signals registered under the key and wakes every waiter of that
+ * resource at once. Each attempt has its own signal and ends it with {@link #done}, so nothing is
+ * left behind for a resource that is never released through this node, however long its waiters
+ * wait.
+ */
+public final class ResourceLockWaiters {
+
+    private final ConcurrentMap<String, Set<Signal>> signals = new ConcurrentHashMap<>();
+
+    public Signal register(String key) {
+        return register(Collections.singleton(key));
+    }
+
+    /** Registers a signal completed by the first release of any of {@code keys}. */
+    public Signal register(Collection<String> keys) {
+        Signal signal = new Signal(keys);
+        for (String key : signal.keys) {
+            signals.compute(
+                    key,
+                    (k, registered) -> {
+                        Set<Signal> next = registered == null ? new HashSet<>() : registered;
+                        next.add(signal);
+                        return next;
+                    });
+        }
+        return signal;
+    }
+
+    /** Removes a signal once its attempt ended, whether or not it was completed. */
+    public void done(Signal signal) {
+        if (signal == null) {
+            return;
+        }
+        for (String key : signal.keys) {
+            signals.computeIfPresent(
+                    key,
+                    (k, registered) -> {
+                        registered.remove(signal);
+                        return registered.isEmpty() ? null : registered;
+                    });
+        }
+    }
+
+    public void signal(String key) {
+        Set<Signal> released = signals.remove(key);
+        if (released != null) {
+            for (Signal signal : released) {
+                signal.released.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Waits for the given release signal for at most {@code maxWait}.
+     *
+     * @return true if the resource was released, false if the wait timed out
+     */
+    public static boolean awaitRelease(
+            CompletableFuture<Void> release, long maxWait, TimeUnit unit)
+            throws InterruptedException {
+
+        if (maxWait <= 0) {
+            return release.isDone();
+        }
+        try {
+            release.get(maxWait, unit);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            return true;
+        }
+    }
+
+    /** Number of keys some waiter is registered under. */
+    int size() {
+        return signals.size();
+    }
+
+    /** The release signal of one attempt. */
+    public static final class Signal {
+
+        private final Set<String> keys;
+        private final CompletableFuture<Void> released = new CompletableFuture<>();
+
+        private Signal(Collection<String> keys) {
+            this.keys = new LinkedHashSet<>(keys);
+        }
+
+        /** Completes when one of the keys is signalled, or when the waiter is woken otherwise. */
+        public CompletableFuture<Void> getReleased() {
+            return released;
+        }
+    }
+}
@@ -3,29 +3,63 @@ package com.oracle.pic.project.worker.lockingframework;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.inject.Inject;
-import com.oracle.pic.project.commons.contract.api.ResourceLockParams;
-import com.oracle.pic.project.commons.contract.api.ResourceLockState;
-import com.oracle.pic.project.commons.contract.api.UpdateResourceLockParams;
 import com.oracle.pic.project.dao.DataPathsDao;
 import com.oracle.pic.project.dao.ResourceLocksDao;
 import com.oracle.pic.project.lockingframework.ResourceLockOperationTypes;
-import com.oracle.pic.project.model.ResourceLockEntity;
 import com.oracle.pic.project.utils.FailsafeHelper;
 import com.oracle.pic.project.worker.config.ResourceLocksConfig;
-import com.oracle.pic.sfw.dal.Transaction;
 import com.oracle.pic.sfw.dal.TransactionProvider;
 import com.oracle.pic.sfw.dal.exceptions.TransactionCommitConflictException;
+import io.dropwizard.lifecycle.Managed;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
-public final class ResourceLockingFramework {
+public final class ResourceLockingFramework implements Managed {
 
     @Getter private final ResourceLocksDao resourceLocksDao;
     @Getter private final TransactionProvider transactor;
     @Getter private final DataPathsDao dataPathsDao;
     @Getter private final ResourceLocksConfig resourceLocksConfig;
     @Getter private final FailsafeHelper failsafeHelper;
+    @Getter private final ResourceLockStore lockStore;
+    @Getter private final ResourceLockWaiters waiters;
+    @Getter private final ResourceLockLocalQueues localQueues;
+    @Getter private final ResourceLockHolds holds;
+    @Getter private final ResourceLockingFrameworkOptions options;
+    @Getter private final ResourceLockReleaseChannel releaseChannel;
+    @Getter private final ScheduledExecutorService scheduler;
+    @Getter private final Executor storeExecutor;
+    @Getter private final ResourceLockMetrics metrics;
+    @Getter private final ResourceLockLeaseRenewer leaseRenewer;
+    @Getter private final ResourceLockReaper reaper;
+    @Getter private final ResourceLockReleaseQueue releaseQueue;
+    @Getter private final ResourceLockStateCache lockStateCache;
+    @Getter private final ResourceLockDeadlockDetector deadlockDetector;
+    @Getter private final ResourceLockJournal journal;
+    @Getter private final ResourceLockHoldPredictor holdPredictor;
 
     @Inject
     public ResourceLockingFramework(
@@ -35,29 +69,206 @@ public final class ResourceLockingFramework {
             ResourceLocksConfig resourceLocksConfig,
             FailsafeHelper failsafeHelper) {
 
+        this(
+                resourceLocksDao,
+                transactor,
+                dataPathsDao,
+                resourceLocksConfig,
+                failsafeHelper,
+                ResourceLockingFrameworkOptions.defaults());
+    }
+
+    public ResourceLockingFramework(
+            ResourceLocksDao resourceLocksDao,
+            TransactionProvider transactor,
+            DataPathsDao dataPathsDao,
+            ResourceLocksConfig resourceLocksConfig,
+            FailsafeHelper failsafeHelper,
+            ResourceLockingFrameworkOptions options) {
+
+        this(
+                new ConditionalResourceLocksDao(resourceLocksDao, transactor),
+                resourceLocksDao,
+                transactor,
+                dataPathsDao,
+                resourceLocksConfig,
+                failsafeHelper,
+                options);
+    }
+
+    /**
+     * Creates a framework over any {@link ResourceLockStore}, for example an {@link
+     * InMemoryResourceLockStore} for a single node. {@link #getResourceLocksDao()} and {@link
+     * #getTransactor()} are null.
+     */
+    public ResourceLockingFramework(
+            ResourceLockStore lockStore,
+            DataPathsDao dataPathsDao,
+            ResourceLocksConfig resourceLocksConfig,
+            FailsafeHelper failsafeHelper,
+            ResourceLockingFrameworkOptions options) {
+
+        this(
+                lockStore,
+                null,
+                null,
+                dataPathsDao,
+                resourceLocksConfig,
+                failsafeHelper,
+                options);
+    }
+
+    private ResourceLockingFramework(
+            ResourceLockStore lockStore,
+            ResourceLocksDao resourceLocksDao,
+            TransactionProvider transactor,
+            DataPathsDao dataPathsDao,
+            ResourceLocksConfig resourceLocksConfig,
+            FailsafeHelper failsafeHelper,
+            ResourceLockingFrameworkOptions options) {
+
         this.resourceLocksDao = resourceLocksDao;
         this.transactor = transactor;
         this.dataPathsDao = dataPathsDao;
         this.resourceLocksConfig = resourceLocksConfig;
         this.failsafeHelper = failsafeHelper;
+        this.lockStore =
+                options.isGroupCommitEnabled()
+                        ? new GroupCommitResourceLockStore(
+                                lockStore,
+                                options.getGroupCommitWindowMicros(),
+                                options.getGroupCommitMaxBatchSize())
+                        : lockStore;
+        this.options = options;
+        this.waiters = new ResourceLockWaiters();
+        this.localQueues = new ResourceLockLocalQueues();
+        this.holds = new ResourceLockHolds();
+        this.lockStateCache =
+                options.isLockStateCacheEnabled()
+                        ? new ResourceLockStateCache(
+                                this.lockStore,
+                                options.getLockStateCacheMaximumSize(),
+                                options.getLockStateCacheStalenessMillis())
+                        : null;
+        this.deadlockDetector =
+                options.isDeadlockDetection() ? new ResourceLockDeadlockDetector(holds) : null;
+        this.releaseChannel = options.getReleaseChannel();
+        this.releaseChannel.subscribe(this::onReleaseNotification);
+        this.scheduler = options.getScheduler();
+        this.storeExecutor = options.getStoreExecutor();
+        this.metrics = options.getMetrics();
+        this.leaseRenewer = new ResourceLockLeaseRenewer(this.lockStore, holds, options);
+        this.reaper = new ResourceLockReaper(this.lockStore, options);
+        this.releaseQueue =
+                new ResourceLockReleaseQueue(this.lockStore, options, this::onDeferredRelease);
+        this.journal = new ResourceLockJournal(options);
+        this.holdPredictor = new ResourceLockHoldPredictor(options.getHoldTimeHistorySize());
+    }
+
+    /**
+     * Starts the background work of the framework: the lease renewer and the reaper when leases
+     * are enabled, the release queue, and the journal when it is enabled. Locks cannot be taken
+     * with leases enabled until the framework is started.
+     */
+    @Override
+    public void start() throws Exception {
+        getLeaseRenewer().start();
+        getReaper().start();
+        getReleaseQueue().start();
+        getJournal().start();
     }
 
+    @Override
+    public void stop() throws Exception {
+        getReleaseQueue().stop();
+        getReaper().stop();
+        getLeaseRenewer().stop();
+        getJournal().stop();
+    }
+
+    /**
+     * A lock only held by owners whose lease expired is reported as unlocked.
+     *
+     * <p>The answer may come from the lock state cache, see {@link #isLocked(String, boolean)}.
+     */
     public boolean isLocked(String resourceLockId) {
-        if (getResourceLocksDao().isResourceLockPresent(resourceLockId)) {
-            return getResourceLocksDao().get(resourceLockId).isLocked();
-        }
-        return false;
+        return isLocked(resourceLockId, false);
+    }
+
+    /**
+     * @param strict whether to read the store even when the lock state cache is enabled, for
+     *     callers that cannot act on an answer up to the cache staleness bound old
+     */
+    public boolean isLocked(String resourceLockId, boolean strict) {
+        return readLive(resourceLockId, strict).isLocked();
     }
 
     public boolean isUnlocked(String resourceLockId) {
         return !isLocked(resourceLockId);
     }
 
+    /**
+     * Returns the owner of the lock, or one of the owners when it is held in shared mode by
+     * several of them.
+     */
     public String getOwner(String resourceLockId) {
-        if (isUnlocked(resourceLockId)) {
-            return null;
+        return getOwner(resourceLockId, false);
+    }
+
+    public String getOwner(String resourceLockId, boolean strict) {
+        ResourceLockRecord record = readLive(resourceLockId, strict);
+        return record.isLocked() ? record.getOwner() : null;
+    }
+
+    public Set<String> getOwners(String resourceLockId) {
+        return getOwners(resourceLockId, false);
+    }
+
+    public Set<String> getOwners(String resourceLockId, boolean strict) {
+        ResourceLockRecord record = readLive(resourceLockId, strict);
+        return record.isLocked() ? record.getHolders().keySet() : Collections.emptySet();
+    }
+
+    /** Reads the lock with a single store read, or none when it is cached. */
+    private ResourceLockRecord readLive(String resourceLockId, boolean strict) {
+
+        ResourceLockRecord record =
+                strict || getLockStateCache() == null
+                        ? getLockStore().read(resourceLockId)
+                        : getLockStateCache().get(resourceLockId);
+        return record.withoutExpired(System.currentTimeMillis());
+    }
+
+    private void invalidateLockState(String resourceLockId) {
+        if (getLockStateCache() != null) {
+            getLockStateCache().invalidate(resourceLockId);
         }
-        return getResourceLocksDao().get(resourceLockId).getOwnerId();
+    }
+
+    /** A lock was released or handed off on another node, or on this one. */
+    private void onReleaseNotification(String key) {
+
+        getWaiters().signal(key);
+        int handoff = key.indexOf('\0');
+        invalidateLockState(handoff < 0 ? key : key.substring(0, handoff));
+    }
+
+    /** Shared for the read-only operations of {@link ResourceLockingFrameworkOptions}. */
+    public ResourceLockMode getLockMode(String operation) {
+        return ResourceLockMode.forOperation(operation, getOptions().getSharedOperations());
+    }
+
+    private ResourceLockMode getLockMode(String operation, int permits) {
+        return permits > 0 ? ResourceLockMode.PERMIT : getLockMode(operation);
+    }
+
+    public boolean lockResource(String resourceLockId, String ownerId, String operation) {
+        return lockResource(
+                resourceLockId,
+                ownerId,
+                operation,
+                getResourceLocksConfig().getDataPathResourceLockTimeoutLimit(),
+                getResourceLocksConfig().getDataPathLockRetryTime());
     }
 
     public boolean lockResource(
@@ -66,6 +277,117 @@ public final class ResourceLockingFramework {
             String operation,
             long timeoutTime,
             long retryTime) {
+        return tryLockResource(resourceLockId, ownerId, operation, timeoutTime, retryTime)
+                .isAcquired();
+    }
+
+    /**
+     * Tries to lock the resource until {@code timeoutTime} milliseconds have passed.
+     *
+     * <p>Between attempts the caller waits for the resource to be released, either by this node
+     * or through the {@link ResourceLockReleaseChannel}. The {@link
+     * ResourceLockingFrameworkOptions#getRetryPolicy() retry policy} bounds each wait so that the
+     * store is still polled when no release notification arrives; the default backs off with
+     * jitter up to {@code retryTime}. With {@link
+     * ResourceLockingFrameworkOptions#isFailFastOnPredictedTimeout()}, a request gives up early
+     * when the past hold times of the lock say it will not be released before the timeout.
+     *
+     * <p>With {@link ResourceLockingFrameworkOptions#isCoalesceLocalWaiters()}, exclusive requests
+     * of this JVM first queue locally, and only the owner at the head of the queue polls the store.
+     *
+     * <p>The lock is reentrant: when the owner already holds it through this node, the call only
+     * counts the nested acquire, and the lock is released by the matching outermost unlock.
+     *
+     * <p>With {@link ResourceLockingFrameworkOptions#isDeadlockDetection()}, an owner that waits in
+     * a deadlock with other owners of this node may give up early with {@link
+     * ResourceLockResult#DEADLOCK_VICTIM}.
+     */
+    public ResourceLockResult tryLockResource(
+            String resourceLockId,
+            String ownerId,
+            String operation,
+            long timeoutTime,
+            long retryTime) {
+        return tryAcquire(resourceLockId, ownerId, operation, 0, timeoutTime, retryTime);
+    }
+
+    public boolean acquirePermit(
+            String resourceLockId, String ownerId, String operation, int permits) {
+        return acquirePermit(
+                resourceLockId,
+                ownerId,
+                operation,
+                permits,
+                getResourceLocksConfig().getDataPathResourceLockTimeoutLimit(),
+                getResourceLocksConfig().getDataPathLockRetryTime());
+    }
+
+    /**
+     * Takes one of the {@code permits} permits of the resource, so that at most {@code permits}
+     * owners work on it at the same time, waiting until {@code timeoutTime} milliseconds have
+     * passed like {@link #lockResource(String, String, String, long, long)}.
+     *
+     * <p>The permit holders are stored on the lock row of the resource like shared holders, with
+     * the permit count, so permits and exclusive locks on the same resource exclude each other. An
+     * owner holds at most one permit; acquiring it again only counts the nested acquire.
+     */
+    public boolean acquirePermit(
+            String resourceLockId,
+            String ownerId,
+            String operation,
+            int permits,
+            long timeoutTime,
+            long retryTime) {
+
+        Preconditions.checkArgument(permits > 0, "Resource lock permits must be positive");
+        return tryAcquire(resourceLockId, ownerId, operation, permits, timeoutTime, retryTime)
+                .isAcquired();
+    }
+
+    /** Non-blocking variant of {@link #acquirePermit(String, String, String, int, long, long)}. */
+    public CompletableFuture<Boolean> acquirePermitAsync(
+            String resourceLockId,
+            String ownerId,
+            String operation,
+            int permits,
+            long timeoutTime,
+            long retryTime) {
+
+        Preconditions.checkArgument(permits > 0, "Resource lock permits must be positive");
+        return toAcquired(
+                tryAcquireAsync(
+                        resourceLockId, ownerId, operation, permits, timeoutTime, retryTime));
+    }
+
+    /**
+     * Gives back the permit of {@code ownerId}.
+     *
+     * @return 0 if the permit was released, or left to the {@link ResourceLockReleaseQueue}, 1 if
+     *     {@code ownerId} does not hold a permit
+     */
+    public int releasePermit(String resourceLockId, String ownerId) {
+        return unlockResource(resourceLockId, ownerId);
+    }
+
+    /**
+     * Refuses to take locks with leases that nothing renews, which would be lost after one lease
+     * duration while their owners still think they hold them.
+     */
+    private void checkLeasesRenewed() {
+        Preconditions.checkState(
+                !getOptions().isLeaseEnabled() || getLeaseRenewer().isRunning(),
+                "Resource lock leases are enabled but the lease renewer is not running, start"
+                        + " the framework first");
+    }
+
+    /** @param permits permit count when acquiring a permit, 0 when locking the resource */
+    private ResourceLockResult tryAcquire(
+            String resourceLockId,
+            String ownerId,
+            String operation,
+            int permits,
+            long timeoutTime,
+            long retryTime) {
 
         Preconditions.checkArgument(
                 !Strings.isNullOrEmpty(resourceLockId), "Resource lock ID is required");
@@ -76,106 +398,1232 @@ public final class ResourceLockingFramework {
         Preconditions.checkArgument(
                 !Strings.isNullOrEmpty(operation), "Resource lock Operation type is required");
 
-        timeoutTime = timeoutTime + System.currentTimeMillis();
+        checkLeasesRenewed();
 
-        do {
-            if (getLockOnResource(resourceLockId, ownerId, operation)) {
-                log.info(
-                        "(LOCK) Owner [{}] successfully acquired lock on resource [{}]",
-                        ownerId,
-                        resourceLockId);
+        if (reenter(resourceLockId, ownerId, getLockMode(operation, permits))) {
+            return ResourceLockResult.ACQUIRED;
+        }
 
-                return true;
-            }
-            try {
-                Thread.sleep(retryTime);
-            } catch (InterruptedException e) {
-                break;
-            }
-        } while (System.currentTimeMillis() < timeoutTime);
+        long startNanos = System.nanoTime();
+        ResourceLockDeadline deadline = ResourceLockDeadline.after(timeoutTime);
 
-        return false;
+        if (!isCoalesced(operation, permits)) {
+            return acquireUntil(
+                    resourceLockId, ownerId, operation, permits, startNanos, deadline, retryTime);
+        }
+
+        ResourceLockLocalQueues.Waiter waiter =
+                getLocalQueues().enter(resourceLockId, ownerId, operation);
+        ResourceLockLocalQueues.Turn turn = awaitTurn(waiter, deadline);
+
+        if (turn == null) {
+            timedOut(resourceLockId, ownerId, System.nanoTime() - startNanos, 0);
+            return ResourceLockResult.TIMED_OUT;
+        }
+        if (turn == ResourceLockLocalQueues.Turn.HANDED_OFF) {
+            onLockAcquired(resourceLockId, ownerId, operation, startNanos, 0);
+            return ResourceLockResult.ACQUIRED;
+        }
+
+        ResourceLockResult result =
+                acquireUntil(
+                        resourceLockId, ownerId, operation, 0, startNanos, deadline, retryTime);
+        if (!result.isAcquired()) {
+            getLocalQueues().leave(resourceLockId, ownerId);
+        }
+        return result;
     }
 
-    public int unlockResource(String resourceLockId, String ownerId) {
+    private ResourceLockResult acquireUntil(
+            String resourceLockId,
+            String ownerId,
+            String operation,
+            int permits,
+            long startNanos,
+            ResourceLockDeadline deadline,
+            long retryTime) {
 
-        try (Transaction txn = getTransactor().beginTransaction("UnlockResourceLock")) {
+        int attempts = 0;
+        ResourceLockDeadlockDetector.Wait wait = null;
+        ResourceLockWaiters.Signal release = null;
+        try {
+            do {
+                getWaiters().done(release);
+                release = nextRelease(resourceLockId, ownerId);
 
-            if (!getResourceLocksDao().isResourceLockPresent(txn, resourceLockId)) {
-                txn.commit();
-                return 1;
-            }
+                attempts++;
+                if (getLockOnResource(resourceLockId, ownerId, operation, permits, deadline)) {
+                    onLockAcquired(
+                            resourceLockId,
+                            ownerId,
+                            getLockMode(operation, permits),
+                            startNanos,
+                            attempts);
+                    return ResourceLockResult.ACQUIRED;
+                }
 
-            ResourceLockEntity currentLock = getResourceLocksDao().get(txn, resourceLockId);
+                wait =
+                        awaitLocks(
+                                ownerId,
+                                Collections.singletonMap(
+                                        resourceLockId, getLockMode(operation, permits)));
+                if (isVictim(wait)) {
+                    break;
+                }
+                long delayNanos =
+                        retryDelayNanos(
+                                Collections.singleton(resourceLockId),
+                                ownerId,
+                                attempts,
+                                retryTime,
+                                deadline);
+                if (delayNanos < 0) {
+                    break;
+                }
+                try {
+                    ResourceLockWaiters.awaitRelease(
+                            orVictim(release, wait), delayNanos, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            } while (!isVictim(wait) && !deadline.isExpired());
+        } finally {
+            getWaiters().done(release);
+            doneWaiting(wait);
+        }
+
+        if (leaveQueue(resourceLockId, ownerId, getLockMode(operation, permits))) {
+            onLockAcquired(
+                    resourceLockId,
+                    ownerId,
+                    getLockMode(operation, permits),
+                    startNanos,
+                    attempts);
+            return ResourceLockResult.ACQUIRED;
+        }
+        return gaveUp(resourceLockId, ownerId, startNanos, attempts, wait);
+    }
 
-            if (!currentLock.isLocked() || !currentLock.getOwnerId().equals(ownerId)) {
-                txn.commit();
-                return 1;
+    /**
+     * Time to wait before the next attempt on locks held by someone else, never past the deadline.
+     *
+     * @return the delay, or -1 if the locks are not expected to be released before the deadline
+     *     and the owner should give up now
+     */
+    private long retryDelayNanos(
+            Collection<String> resourceLockIds,
+            String ownerId,
+            int attempts,
+            long retryTime,
+            ResourceLockDeadline deadline) {
+
+        for (String resourceLockId : resourceLockIds) {
+            // Since when the current holder has the lock, wherever it acquired it, as long as the
+            // row is cached: a refused attempt is not worth another store read
+            if (getLockStateCache() != null && getHoldPredictor().canPredict(resourceLockId)) {
+                getHoldPredictor()
+                        .refused(resourceLockId, readLive(resourceLockId, false).getHeldSince());
             }
+        }
+        long predictedWaitNanos = getHoldPredictor().predictedWaitNanos(resourceLockIds);
+        long remainingNanos = deadline.remainingNanos();
 
-            UpdateResourceLockParams params =
-                    UpdateResourceLockParams.builder()
-                            .resourceLockState(ResourceLockState.UNLOCKED.toString())
-                            .ownerId(null)
-                            .operation(null)
-                            .build();
-            getResourceLocksDao().update(txn, resourceLockId, params);
-            txn.commit();
+        if (getOptions().isFailFastOnPredictedTimeout() && predictedWaitNanos > remainingNanos) {
+            log.debug(
+                    "(LOCK) Owner [{}] gave up early on {}, expected to be held past its deadline",
+                    ownerId,
+                    resourceLockIds);
+            return -1;
+        }
+        long delayNanos =
+                getOptions().getRetryPolicy().delayNanos(attempts, retryTime, predictedWaitNanos);
+        if (getOptions().isWriterPreference()) {
+            // A waiting writer comes back before its reservation lapses, to renew it
+            delayNanos =
+                    Math.min(
+                            delayNanos,
+                            TimeUnit.MILLISECONDS.toNanos(getOptions().getWriterReservationMillis())
+                                    / 2);
+        }
+        return Math.max(0, Math.min(remainingNanos, delayNanos));
+    }
 
-        } catch (TransactionCommitConflictException e) {
+    /**
+     * Records that the owner waits for the locks, in the given modes, so that deadlocks it takes
+     * part in are found.
+     *
+     * @return the wait, or null when deadlock detection is disabled
+     */
+    private ResourceLockDeadlockDetector.Wait awaitLocks(
+            String ownerId, Map<String, ResourceLockMode> resourceModes) {
+        return getDeadlockDetector() == null
+                ? null
+                : getDeadlockDetector().await(ownerId, resourceModes);
+    }
+
+    private void doneWaiting(ResourceLockDeadlockDetector.Wait wait) {
+        if (wait != null) {
+            getDeadlockDetector().done(wait);
+        }
+    }
+
+    private static boolean isVictim(ResourceLockDeadlockDetector.Wait wait) {
+        return wait != null && wait.isVictim();
+    }
+
+    /**
+     * The future of the release signal, also completed when the waiter is chosen as the victim of a
+     * deadlock.
+     */
+    private static CompletableFuture<Void> orVictim(
+            ResourceLockWaiters.Signal release, ResourceLockDeadlockDetector.Wait wait) {
+        if (wait != null) {
+            wait.wakeOnVictim(release.getReleased());
+        }
+        return release.getReleased();
+    }
+
+    private ResourceLockResult gaveUp(
+            String resourceLockId,
+            String ownerId,
+            long startNanos,
+            int attempts,
+            ResourceLockDeadlockDetector.Wait wait) {
+
+        long waitNanos = System.nanoTime() - startNanos;
+        if (isVictim(wait)) {
+            getMetrics().deadlockVictim(resourceLockId, waitNanos, attempts);
+            getJournal()
+                    .publish(
+                            ResourceLockEvent.Type.DEADLOCK_VICTIM,
+                            resourceLockId,
+                            ownerId,
+                            waitNanos);
+            log.warn(
+                    "(LOCK) Owner [{}] gave up waiting for resource [{}] to break a deadlock",
+                    ownerId,
+                    resourceLockId);
+            return ResourceLockResult.DEADLOCK_VICTIM;
+        }
+        timedOut(resourceLockId, ownerId, waitNanos, attempts);
+        return ResourceLockResult.TIMED_OUT;
+    }
+
+    private void timedOut(String resourceLockId, String ownerId, long waitNanos, int attempts) {
+        getMetrics().lockTimedOut(resourceLockId, waitNanos, attempts);
+        getJournal().publish(ResourceLockEvent.Type.TIMED_OUT, resourceLockId, ownerId, waitNanos);
+    }
 
+    private void commitConflict(String resourceLockId, String ownerId) {
+        getMetrics().commitConflict(resourceLockId);
+        getJournal().publish(ResourceLockEvent.Type.CONFLICT, resourceLockId, ownerId, 0);
+    }
+
+    /**
+     * Release signal to wait for between attempts, to be ended with {@link
+     * ResourceLockWaiters#done} once the attempt is over. In fair mode the owner is also woken
+     * when the lock is handed to it, while the other waiters keep sleeping.
+     */
+    private ResourceLockWaiters.Signal nextRelease(String resourceLockId, String ownerId) {
+
+        if (!getOptions().isFairQueue()) {
+            return getWaiters().register(resourceLockId);
+        }
+        return getWaiters()
+                .register(Arrays.asList(resourceLockId, handoffKey(resourceLockId, ownerId)));
+    }
+
+    /**
+     * Takes the ticket and the writer reservation of a waiter that gives up off the lock, so that
+     * the lock is neither handed to an owner that stopped waiting nor kept from readers for it.
+     *
+     * @return true if the lock was handed to the owner in the meantime
+     */
+    private boolean leaveQueue(String resourceLockId, String ownerId, ResourceLockMode mode) {
+
+        if (!leavesWaiterState(mode)) {
+            return false;
+        }
+        ResourceLockStore lockStore = getLockStore();
+        try {
+            return lockStore.leaveQueue(resourceLockId, ownerId);
+        } catch (TransactionCommitConflictException e) {
+            commitConflict(resourceLockId, ownerId);
             return getFailsafeHelper()
-                    .runWithRetryOnCommitConflict(() -> unlockResource(resourceLockId, ownerId));
+                    .runWithRetryOnCommitConflict(
+                            () -> lockStore.leaveQueue(resourceLockId, ownerId));
+        }
+    }
+
+    /**
+     * Drops the writer reservations a multi-resource request that gives up left on its locks.
+     * Multi-resource requests do not queue, so none of the locks can have been handed to it.
+     */
+    private void leaveQueues(SortedSet<String> resourceLockIds, String ownerId, boolean write) {
+
+        if (!getOptions().isWriterPreference() || !write) {
+            return;
+        }
+        ResourceLockStore lockStore = getLockStore();
+        try {
+            lockStore.leaveQueues(resourceLockIds, ownerId);
+        } catch (TransactionCommitConflictException e) {
+            commitConflict(resourceLockIds.first(), ownerId);
+            getFailsafeHelper()
+                    .runWithRetryOnCommitConflict(
+                            () -> lockStore.leaveQueues(resourceLockIds, ownerId));
+        }
+    }
+
+    /** Whether a refused request in {@code mode} may leave a ticket or a writer reservation. */
+    private boolean leavesWaiterState(ResourceLockMode mode) {
+        return getOptions().isFairQueue()
+                || (getOptions().isWriterPreference() && mode.isWrite());
+    }
+
+    private static String handoffKey(String resourceLockId, String ownerId) {
+        return resourceLockId + '\0' + ownerId;
+    }
+
+    private void onLockAcquired(
+            String resourceLockId,
+            String ownerId,
+            String operation,
+            long startNanos,
+            int attempts) {
+        onLockAcquired(resourceLockId, ownerId, getLockMode(operation), startNanos, attempts);
+    }
+
+    private void onLockAcquired(
+            String resourceLockId,
+            String ownerId,
+            ResourceLockMode mode,
+            long startNanos,
+            int attempts) {
+
+        getHolds().acquired(resourceLockId, ownerId, mode);
+        getHoldPredictor().acquired(resourceLockId);
+        invalidateLockState(resourceLockId);
+        if (getOptions().isFairQueue()) {
+            getWaiters().signal(handoffKey(resourceLockId, ownerId));
         }
+        long waitNanos = System.nanoTime() - startNanos;
+        getMetrics().lockAcquired(resourceLockId, waitNanos, attempts);
+        getJournal().publish(ResourceLockEvent.Type.ACQUIRED, resourceLockId, ownerId, waitNanos);
+        logLockEvent(
+                "(LOCK) Owner [{}] successfully acquired lock on resource [{}]",
+                ownerId,
+                resourceLockId);
+    }
+
+    private void onLockReleased(String resourceLockId, String ownerId) {
 
-        log.info(
+        invalidateLockState(resourceLockId);
+        long holdNanos = getHolds().released(resourceLockId, ownerId);
+        if (holdNanos >= 0) {
+            getHoldPredictor().released(resourceLockId, holdNanos);
+            getMetrics().lockReleased(resourceLockId, holdNanos);
+            getJournal()
+                    .publish(ResourceLockEvent.Type.RELEASED, resourceLockId, ownerId, holdNanos);
+        }
+        logLockEvent(
                 "(LOCK) Owner [{}] Successfully released the lock on resource : {}",
                 ownerId,
                 resourceLockId);
+    }
 
-        return 0;
+    private boolean reenter(String resourceLockId, String ownerId, String operation) {
+        return reenter(resourceLockId, ownerId, getLockMode(operation));
+    }
+
+    private boolean reenter(String resourceLockId, String ownerId, ResourceLockMode mode) {
+
+        if (!getHolds().reenter(resourceLockId, ownerId, mode)) {
+            return false;
+        }
+        log.debug("(LOCK) Owner [{}] re-entered lock on resource [{}]", ownerId, resourceLockId);
+        return true;
+    }
+
+    /** Logs at info level for the sampled fraction of events, at debug level otherwise. */
+    private void logLockEvent(String format, Object... arguments) {
+
+        double sampleRate = getOptions().getEventLogSampleRate();
+        if (sampleRate >= 1
+                || (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate)) {
+            log.info(format, arguments);
+        } else if (log.isDebugEnabled()) {
+            log.debug(format, arguments);
+        }
+    }
+
+    /**
+     * Waits until {@code waiter} leaves the local queue.
+     *
+     * @return the turn given to the waiter, or null if it gave up first
+     */
+    private ResourceLockLocalQueues.Turn awaitTurn(
+            ResourceLockLocalQueues.Waiter waiter, ResourceLockDeadline deadline) {
+
+        try {
+            return waiter.getTurn()
+                    .get(Math.max(0, deadline.remainingNanos()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException | TimeoutException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            if (getLocalQueues().abandon(waiter)) {
+                return null;
+            }
+            // The turn was given to the waiter concurrently, it has to be taken
+            return waiter.getTurn().join();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private boolean isCoalesced(String operation, int permits) {
+        return getOptions().isCoalesceLocalWaiters()
+                && getLockMode(operation, permits) == ResourceLockMode.EXCLUSIVE;
+    }
+
+    public boolean lockResources(
+            Collection<String> resourceLockIds,
+            String ownerId,
+            String operation,
+            long timeoutTime) {
+        return lockResources(
+                resourceLockIds,
+                ownerId,
+                operation,
+                timeoutTime,
+                getResourceLocksConfig().getDataPathLockRetryTime());
+    }
+
+    public boolean lockResources(
+            Collection<String> resourceLockIds,
+            String ownerId,
+            String operation,
+            long timeoutTime,
+            long retryTime) {
+        return tryLockResources(resourceLockIds, ownerId, operation, timeoutTime, retryTime)
+                .isAcquired();
+    }
+
+    /**
+     * Locks every resource in {@code resourceLockIds}, or none of them.
+     *
+     * <p>The IDs are sorted and each attempt takes all the locks in a single transaction, so two
+     * owners locking overlapping sets never hold part of each other's set. Between attempts the
+     * caller waits for any of the resources to be released, bounded by {@code retryTime}.
+     */
+    public ResourceLockResult tryLockResources(
+            Collection<String> resourceLockIds,
+            String ownerId,
+            String operation,
+            long timeoutTime,
+            long retryTime) {
+
+        SortedSet<String> sortedIds = sortedResourceLockIds(resourceLockIds);
+
+        Preconditions.checkArgument(
+                !Strings.isNullOrEmpty(ownerId), "Resource lock owner ID is required");
+
+        Preconditions.checkArgument(
+                !Strings.isNullOrEmpty(operation), "Resource lock Operation type is required");
+
+        return lockAll(
+                sortedIds, ownerId, operation, Collections.emptyMap(), timeoutTime, retryTime);
+    }
+
+    public boolean lockDataPath(String dataPath, String ownerId, String operation) {
+        return lockDataPath(
+                dataPath,
+                ownerId,
+                operation,
+                getResourceLocksConfig().getDataPathResourceLockTimeoutLimit(),
+                getResourceLocksConfig().getDataPathLockRetryTime());
+    }
+
+    /**
+     * Locks the data path and, with it, everything below it.
+     *
+     * <p>The path is locked in the mode of {@code operation} and each of its ancestors in the
+     * matching intent mode, all in one store call. Locking {@code /a} therefore takes a single row
+     * however many resources lie below it, and locks on {@code /a/b} and {@code /a/c} only share
+     * intent locks on {@code /a}, which do not block each other. The IDs of data path locks are
+     * the paths themselves, so they should only be locked through this method.
+     */
+    public boolean lockDataPath(
+            String dataPath, String ownerId, String operation, long timeoutTime, long retryTime) {
+
+        List<String> lockIds = dataPathLockIds(dataPath);
+
+        Preconditions.checkArgument(
+                !Strings.isNullOrEmpty(ownerId), "Resource lock owner ID is required");
+
+        Preconditions.checkArgument(
+                !Strings.isNullOrEmpty(operation), "Resource lock Operation type is required");
+
+        ResourceLockMode intent = getLockMode(operation).toIntent();
+        Map<String, ResourceLockMode> resourceModes = new HashMap<>();
+        for (String ancestor : lockIds.subList(0, lockIds.size() - 1)) {
+            resourceModes.put(ancestor, intent);
+        }
+
+        return lockAll(
+                        new TreeSet<>(lockIds),
+                        ownerId,
+                        operation,
+                        resourceModes,
+                        timeoutTime,
+                        retryTime)
+                .isAcquired();
+    }
+
+    /**
+     * Releases a lock taken with {@link #lockDataPath}, together with its intent locks.
+     *
+     * @return 0 if the lock was released, or left to the {@link ResourceLockReleaseQueue}, 1 if
+     *     {@code ownerId} did not hold all of it
+     */
+    public int unlockDataPath(String dataPath, String ownerId) {
+        return unlockResources(dataPathLockIds(dataPath), ownerId);
+    }
+
+    /** The ancestors of the data path, outermost first, followed by the path itself. */
+    static List<String> dataPathLockIds(String dataPath) {
+
+        Preconditions.checkArgument(
+                !Strings.isNullOrEmpty(dataPath) && dataPath.startsWith("/"),
+                "Data path must be absolute");
+
+        List<String> lockIds = new ArrayList<>();
+        StringBuilder prefix = new StringBuilder();
+        for (String segment : dataPath.split("/")) {
+            if (!segment.isEmpty()) {
+                lockIds.add(prefix.append('/').append(segment).toString());
+            }
+        }
+
+        Preconditions.checkArgument(!lockIds.isEmpty(), "Data path must not be the root");
+        return lockIds;
+    }
+
+    /** @param resourceModes modes of the resources not locked in the mode of {@code operation} */
+    private ResourceLockResult lockAll(
+            SortedSet<String> sortedIds,
+            String ownerId,
+            String operation,
+            Map<String, ResourceLockMode> resourceModes,
+            long timeoutTime,
+            long retryTime) {
+
+        checkLeasesRenewed();
+
+        ResourceLockMode mode = getLockMode(operation);
+        if (reenterAll(sortedIds, ownerId, mode, resourceModes)) {
+            return ResourceLockResult.ACQUIRED;
+        }
+
+        long startNanos = System.nanoTime();
+        ResourceLockDeadline deadline = ResourceLockDeadline.after(timeoutTime);
+        Map<String, ResourceLockMode> waitedModes = new LinkedHashMap<>();
+        for (String resourceLockId : sortedIds) {
+            waitedModes.put(resourceLockId, resourceModes.getOrDefault(resourceLockId, mode));
+        }
+
+        int attempts = 0;
+        ResourceLockDeadlockDetector.Wait wait = null;
+        ResourceLockWaiters.Signal release = null;
+        try {
+            do {
+                getWaiters().done(release);
+                release = getWaiters().register(sortedIds);
+
+                attempts++;
+                if (getLocksOnResources(sortedIds, ownerId, operation, resourceModes, deadline)) {
+                    for (String resourceLockId : sortedIds) {
+                        onLockAcquired(
+                                resourceLockId,
+                                ownerId,
+                                resourceModes.getOrDefault(resourceLockId, mode),
+                                startNanos,
+                                attempts);
+                    }
+                    return ResourceLockResult.ACQUIRED;
+                }
+
+                wait = awaitLocks(ownerId, waitedModes);
+                if (isVictim(wait)) {
+                    break;
+                }
+                long delayNanos =
+                        retryDelayNanos(sortedIds, ownerId, attempts, retryTime, deadline);
+                if (delayNanos < 0) {
+                    break;
+                }
+                try {
+                    ResourceLockWaiters.awaitRelease(
+                            orVictim(release, wait), delayNanos, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            } while (!isVictim(wait) && !deadline.isExpired());
+        } finally {
+            getWaiters().done(release);
+            doneWaiting(wait);
+        }
+
+        boolean write = mode.isWrite();
+        for (ResourceLockMode resourceMode : resourceModes.values()) {
+            write |= resourceMode.isWrite();
+        }
+        leaveQueues(sortedIds, ownerId, write);
+        return gaveUp(sortedIds.first(), ownerId, startNanos, attempts, wait);
+    }
+
+    /** Re-enters every lock of the set, or none of them. */
+    private boolean reenterAll(
+            SortedSet<String> resourceLockIds,
+            String ownerId,
+            ResourceLockMode mode,
+            Map<String, ResourceLockMode> resourceModes) {
+
+        List<String> reentered = new ArrayList<>();
+        for (String resourceLockId : resourceLockIds) {
+            ResourceLockMode resourceMode = resourceModes.getOrDefault(resourceLockId, mode);
+            if (!reenter(resourceLockId, ownerId, resourceMode)) {
+                for (String undo : reentered) {
+                    getHolds().exit(undo, ownerId);
+                }
+                return false;
+            }
+            reentered.add(resourceLockId);
+        }
+        return true;
+    }
+
+    /**
+     * Releases, in one transaction, every resource in {@code resourceLockIds} locked by {@code
+     * ownerId}. Locks still held through an outer acquire only have their nested acquire
+     * released.
+     *
+     * <p>When the release keeps conflicting with other writers it is completed in the background
+     * by the {@link ResourceLockReleaseQueue}. The locks are no longer held by {@code ownerId} as
+     * far as this node is concerned, but other owners only get them once the queue wrote the
+     * release; deferred releases are only reported through {@link
+     * ResourceLockMetrics#pendingReleases}.
+     *
+     * @return 0 if all the locks were released, or left to the release queue, 1 if some of them
+     *     were not held by {@code ownerId}
+     */
+    public int unlockResources(Collection<String> resourceLockIds, String ownerId) {
+
+        SortedSet<String> sortedIds = sortedResourceLockIds(resourceLockIds);
+        sortedIds.removeIf(resourceLockId -> getHolds().exit(resourceLockId, ownerId));
+        if (sortedIds.isEmpty()) {
+            return 0;
+        }
+
+        Map<String, ResourceLockRecord> released = releaseInStore(sortedIds, ownerId);
+        if (released == null) {
+            deferRelease(sortedIds, ownerId);
+            return 0;
+        }
+
+        for (String resourceLockId : sortedIds) {
+            getLocalQueues().leave(resourceLockId, ownerId);
+            ResourceLockRecord next = released.get(resourceLockId);
+            if (next != null) {
+                onLockReleased(resourceLockId, ownerId, next);
+            } else {
+                // Not held in the store, for example because the lease was lost
+                getHolds().released(resourceLockId, ownerId);
+            }
+        }
+
+        return released.size() == sortedIds.size() ? 0 : 1;
+    }
+
+    /**
+     * Non-blocking variant of {@link #lockResource(String, String, String, long, long)}.
+     *
+     * <p>No thread is parked between attempts: each attempt runs on the store executor and the
+     * next one is scheduled on the shared scheduler, or started right away when the resource is
+     * released. The future completes with false once {@code timeoutTime} milliseconds have passed.
+     */
+    public CompletableFuture<Boolean> lockResourceAsync(
+            String resourceLockId,
+            String ownerId,
+            String operation,
+            long timeoutTime,
+            long retryTime) {
+
+        return toAcquired(
+                tryLockResourceAsync(resourceLockId, ownerId, operation, timeoutTime, retryTime));
+    }
+
+    /** Whether the lock was acquired; cancelling the returned future cancels the request. */
+    private static CompletableFuture<Boolean> toAcquired(
+            CompletableFuture<ResourceLockResult> result) {
+
+        CompletableFuture<Boolean> acquired = result.thenApply(ResourceLockResult::isAcquired);
+        acquired.whenComplete(
+                (locked, error) -> {
+                    if (acquired.isCancelled()) {
+                        result.cancel(false);
+                    }
+                });
+        return acquired;
+    }
+
+    /**
+     * Runs a blocking store call on the store executor. A call the executor rejects, because its
+     * queue is full, fails the returned future instead of throwing on the caller's thread.
+     */
+    private <T> CompletableFuture<T> onStoreExecutor(Supplier<T> storeCall) {
+        try {
+            return CompletableFuture.supplyAsync(storeCall, getStoreExecutor());
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /** Non-blocking variant of {@link #tryLockResource}. */
+    public CompletableFuture<ResourceLockResult> tryLockResourceAsync(
+            String resourceLockId,
+            String ownerId,
+            String operation,
+            long timeoutTime,
+            long retryTime) {
+        return tryAcquireAsync(resourceLockId, ownerId, operation, 0, timeoutTime, retryTime);
+    }
+
+    private CompletableFuture<ResourceLockResult> tryAcquireAsync(
+            String resourceLockId,
+            String ownerId,
+            String operation,
+            int permits,
+            long timeoutTime,
+            long retryTime) {
+
+        Preconditions.checkArgument(
+                !Strings.isNullOrEmpty(resourceLockId), "Resource lock ID is required");
+
+        Preconditions.checkArgument(
+                !Strings.isNullOrEmpty(ownerId), "Resource lock owner ID is required");
+
+        Preconditions.checkArgument(
+                !Strings.isNullOrEmpty(operation), "Resource lock Operation type is required");
+
+        checkLeasesRenewed();
+
+        if (reenter(resourceLockId, ownerId, getLockMode(operation, permits))) {
+            return CompletableFuture.completedFuture(ResourceLockResult.ACQUIRED);
+        }
+
+        long startNanos = System.nanoTime();
+        ResourceLockDeadline deadline = ResourceLockDeadline.after(timeoutTime);
+        AsyncLockAttempt attempt =
+                new AsyncLockAttempt(
+                        resourceLockId,
+                        ownerId,
+                        operation,
+                        permits,
+                        startNanos,
+                        deadline,
+                        retryTime);
+
+        if (!isCoalesced(operation, permits)) {
+            attempt.run();
+            return attempt.result;
+        }
+
+        CompletableFuture<ResourceLockResult> result = new CompletableFuture<>();
+        ResourceLockLocalQueues.Waiter waiter =
+                getLocalQueues().enter(resourceLockId, ownerId, operation);
+
+        ScheduledFuture<?> timeout =
+                getScheduler()
+                        .schedule(
+                                () -> {
+                                    if (getLocalQueues().abandon(waiter)) {
+                                        timedOut(
+                                                resourceLockId,
+                                                ownerId,
+                                                System.nanoTime() - startNanos,
+                                                0);
+                                        result.complete(ResourceLockResult.TIMED_OUT);
+                                    }
+                                },
+                                Math.max(0, deadline.remainingNanos()),
+                                TimeUnit.NANOSECONDS);
+
+        waiter.getTurn()
+                .thenAccept(
+                        turn -> {
+                            timeout.cancel(false);
+                            if (turn == ResourceLockLocalQueues.Turn.HANDED_OFF) {
+                                onLockAcquired(resourceLockId, ownerId, operation, startNanos, 0);
+                                result.complete(ResourceLockResult.ACQUIRED);
+                                return;
+                            }
+                            attempt.run();
+                            attempt.result.whenComplete(
+                                    (acquired, error) -> {
+                                        if (acquired != ResourceLockResult.ACQUIRED) {
+                                            getLocalQueues().leave(resourceLockId, ownerId);
+                                        }
+                                        if (error != null) {
+                                            result.completeExceptionally(error);
+                                        } else {
+                                            result.complete(acquired);
+                                        }
+                                    });
+                        });
+        return result;
     }
 
-    private boolean getLockOnResource(String resourceLockId, String ownerId, String operation) {
+    public CompletableFuture<Integer> unlockResourceAsync(String resourceLockId, String ownerId) {
+        return onStoreExecutor(() -> unlockResource(resourceLockId, ownerId));
+    }
+
+    /**
+     * Releases one acquire of the lock by {@code ownerId}. The lock is released in the store by the
+     * outermost unlock only.
+     *
+     * <p>When the release keeps conflicting with other writers it is completed in the background
+     * by the {@link ResourceLockReleaseQueue}. The lock is no longer held by {@code ownerId} as far
+     * as this node is concerned, but other owners only get it once the queue wrote the release;
+     * deferred releases are only reported through {@link ResourceLockMetrics#pendingReleases}.
+     *
+     * @return 0 if the acquire was released, or left to the release queue, 1 if {@code ownerId}
+     *     does not hold the lock
+     */
+    public int unlockResource(String resourceLockId, String ownerId) {
+
+        if (getHolds().exit(resourceLockId, ownerId)) {
+            return 0;
+        }
+
+        if (handOffLocally(resourceLockId, ownerId)) {
+            return 0;
+        }
 
-        ResourceLockEntity resourceLock;
-        try (Transaction txn = getTransactor().beginTransaction("AcquireResourceLock")) {
+        Set<String> resourceLockIds = Collections.singleton(resourceLockId);
+        Map<String, ResourceLockRecord> releasedAll = releaseInStore(resourceLockIds, ownerId);
+        if (releasedAll == null) {
+            deferRelease(resourceLockIds, ownerId);
+            return 0;
+        }
 
-            if (!getResourceLocksDao().isResourceLockPresent(txn, resourceLockId)) {
+        getLocalQueues().leave(resourceLockId, ownerId);
+        ResourceLockRecord released = releasedAll.get(resourceLockId);
+        if (released == null) {
+            getHolds().released(resourceLockId, ownerId);
+            return 1;
+        }
+        onLockReleased(resourceLockId, ownerId, released);
+        return 0;
+    }
 
-                ResourceLockParams params =
-                        ResourceLockParams.builder()
-                                .resourceLockId(resourceLockId)
-                                .resourceLockState(ResourceLockState.LOCKED.toString())
-                                .ownerId(ownerId)
-                                .operation(operation)
-                                .build();
+    /**
+     * Releases the locks in the store, making up to {@link
+     * ResourceLockingFrameworkOptions#getUnlockAttempts()} attempts while they fail with a commit
+     * conflict. Each attempt reads the rows again, so it sees the write it conflicted with.
+     *
+     * @return the locks as returned by {@link ResourceLockStore#releaseAllIfOwner}, or null if
+     *     every attempt conflicted
+     */
+    private Map<String, ResourceLockRecord> releaseInStore(
+            Collection<String> resourceLockIds, String ownerId) {
 
-                getResourceLocksDao().create(txn, params);
-                txn.commit();
-                return true;
+        for (int attempts = 1; ; attempts++) {
+            try {
+                return getLockStore().releaseAllIfOwner(resourceLockIds, ownerId);
+            } catch (TransactionCommitConflictException e) {
+                commitConflict(resourceLockIds.iterator().next(), ownerId);
+                if (attempts >= getOptions().getUnlockAttempts()) {
+                    return null;
+                }
             }
+        }
+    }
+
+    /**
+     * Leaves the release of locks that kept conflicting to the release queue. The owner no longer
+     * holds them as far as this node is concerned; their waiters are woken once the queue released
+     * them in the store.
+     */
+    private void deferRelease(Collection<String> resourceLockIds, String ownerId) {
+
+        log.warn(
+                "(LOCK) Owner [{}] kept conflicting releasing {}, releasing in the background",
+                ownerId,
+                resourceLockIds);
+        for (String resourceLockId : resourceLockIds) {
+            getLocalQueues().leave(resourceLockId, ownerId);
+            getReleaseQueue().add(resourceLockId, ownerId);
+            onLockReleased(resourceLockId, ownerId);
+        }
+    }
 
-            resourceLock = getResourceLocksDao().get(txn, resourceLockId);
+    private void onLockReleased(String resourceLockId, String ownerId, ResourceLockRecord next) {
+        signalReleased(resourceLockId, next);
+        onLockReleased(resourceLockId, ownerId);
+    }
+
+    /** The release queue released a lock whose unlock call kept conflicting. */
+    private void onDeferredRelease(String resourceLockId, ResourceLockRecord next) {
+        invalidateLockState(resourceLockId);
+        signalReleased(resourceLockId, next);
+    }
+
+    /**
+     * Wakes the waiters of a released lock. A lock handed to queued owners only wakes those
+     * owners; the others could not take it anyway.
+     */
+    private void signalReleased(String resourceLockId, ResourceLockRecord next) {
 
-            if (resourceLock.isLocked()) {
-                txn.commit();
-                return resourceLock.getOwnerId().equals(ownerId);
+        if (next.isLocked() && getOptions().isFairQueue()) {
+            for (String holder : next.getHolders().keySet()) {
+                getWaiters().signal(handoffKey(resourceLockId, holder));
+                getReleaseChannel().publish(handoffKey(resourceLockId, holder));
             }
+        } else {
+            getWaiters().signal(resourceLockId);
+            getReleaseChannel().publish(resourceLockId);
+        }
+    }
+
+    /**
+     * Transfers the lock of {@code ownerId} straight to the next owner of this JVM queued for it.
+     *
+     * @return true if the lock was handed off, false if it still has to be released
+     */
+    private boolean handOffLocally(String resourceLockId, String ownerId) {
+
+        if (!getOptions().isCoalesceLocalWaiters()) {
+            return false;
+        }
+
+        ResourceLockLocalQueues.Waiter next =
+                getLocalQueues()
+                        .pollHandoff(resourceLockId, ownerId, getOptions().getMaxLocalHandoffs());
+        if (next == null) {
+            return false;
+        }
 
-            UpdateResourceLockParams updateParams =
-                    UpdateResourceLockParams.builder()
-                            .ownerId(ownerId)
-                            .resourceLockState(ResourceLockState.LOCKED.toString())
-                            .operation(operation)
+        boolean transferred;
+        try {
+            transferred =
+                    getLockStore()
+                            .transferIfOwner(
+                                    resourceLockId,
+                                    ownerId,
+                                    newRequest(next.getOwnerId(), next.getOperation(), 0));
+        } catch (TransactionCommitConflictException e) {
+            commitConflict(resourceLockId, ownerId);
+            transferred = false;
+        }
+        getLocalQueues().handedOff(resourceLockId, next, transferred);
+
+        if (transferred) {
+            onLockReleased(resourceLockId, ownerId);
+        }
+        return transferred;
+    }
+
+    private boolean getLockOnResource(
+            String resourceLockId,
+            String ownerId,
+            String operation,
+            int permits,
+            ResourceLockDeadline deadline) {
+
+        ResourceLockRequest request = newRequest(ownerId, operation, deadline.getWallMillis());
+        if (permits > 0) {
+            // A ticket would only be served once every permit is back, so permits do not queue
+            request =
+                    request.toBuilder()
+                            .mode(ResourceLockMode.PERMIT)
+                            .permits(permits)
+                            .queueUntil(0)
                             .build();
+        }
+        // The row still lists an owner whose release is pending, which must not undo this acquire
+        if (!getReleaseQueue().takeOver(resourceLockId, ownerId, deadline.remainingNanos())) {
+            return false;
+        }
+        try {
+            return getLockStore().acquireIfUnlocked(resourceLockId, request);
+        } catch (TransactionCommitConflictException e) {
+            commitConflict(resourceLockId, ownerId);
+            return false;
+        }
+    }
 
-            getResourceLocksDao().update(txn, resourceLockId, updateParams);
-            txn.commit();
-            return true;
+    private boolean getLocksOnResources(
+            SortedSet<String> resourceLockIds,
+            String ownerId,
+            String operation,
+            Map<String, ResourceLockMode> resourceModes,
+            ResourceLockDeadline deadline) {
 
+        for (String resourceLockId : resourceLockIds) {
+            if (!getReleaseQueue().takeOver(resourceLockId, ownerId, deadline.remainingNanos())) {
+                return false;
+            }
+        }
+        try {
+            // Tickets on several rows could hand over part of the set, so no queueing here
+            ResourceLockRequest request =
+                    newRequest(ownerId, operation, deadline.getWallMillis()).toBuilder()
+                            .queueUntil(0)
+                            .resourceModes(resourceModes)
+                            .build();
+            return getLockStore().acquireAllIfUnlocked(resourceLockIds, request);
         } catch (TransactionCommitConflictException e) {
+            commitConflict(resourceLockIds.first(), ownerId);
             return false;
         }
     }
+
+    /**
+     * @param deadline when the caller gives up, the latest its writer reservation may last and
+     *     its request may wait to be batched; zero for no reservation and no limit
+     */
+    private ResourceLockRequest newRequest(String ownerId, String operation, long deadline) {
+
+        long now = System.currentTimeMillis();
+        long leaseUntil =
+                getOptions().isLeaseEnabled() ? now + getOptions().getLeaseDurationMillis() : 0;
+        long reserveUntil =
+                getOptions().isWriterPreference() && deadline != 0
+                        ? Math.min(deadline, now + getOptions().getWriterReservationMillis())
+                        : 0;
+
+        return ResourceLockRequest.builder()
+                .ownerId(ownerId)
+                .operation(operation)
+                .mode(getLockMode(operation))
+                .reserveUntil(reserveUntil)
+                .leaseUntil(leaseUntil)
+                .queueUntil(getOptions().isFairQueue() ? deadline : 0)
+                .waitUntil(deadline)
+                .build();
+    }
+
+    private static SortedSet<String> sortedResourceLockIds(Collection<String> resourceLockIds) {
+
+        Preconditions.checkArgument(
+                resourceLockIds != null && !resourceLockIds.isEmpty(),
+                "Resource lock IDs are required");
+
+        SortedSet<String> sortedIds = new TreeSet<>();
+        for (String resourceLockId : resourceLockIds) {
+            Preconditions.checkArgument(
+                    !Strings.isNullOrEmpty(resourceLockId), "Resource lock ID is required");
+            sortedIds.add(resourceLockId);
+        }
+        return sortedIds;
+    }
+
+    /** One {@link #lockResourceAsync} call, re-run until it acquires the lock or times out. */
+    private final class AsyncLockAttempt implements Runnable {
+
+        private final String resourceLockId;
+        private final String ownerId;
+        private final String operation;
+        private final int permits;
+        private final long startNanos;
+        private final ResourceLockDeadline deadline;
+        private final long retryTime;
+        private final CompletableFuture<ResourceLockResult> result = new CompletableFuture<>();
+        private int attempts;
+        private volatile ResourceLockDeadlockDetector.Wait wait;
+
+        private AsyncLockAttempt(
+                String resourceLockId,
+                String ownerId,
+                String operation,
+                int permits,
+                long startNanos,
+                ResourceLockDeadline deadline,
+                long retryTime) {
+            this.resourceLockId = resourceLockId;
+            this.ownerId = ownerId;
+            this.operation = operation;
+            this.permits = permits;
+            this.startNanos = startNanos;
+            this.deadline = deadline;
+            this.retryTime = retryTime;
+            result.whenComplete(
+                    (acquired, error) -> {
+                        doneWaiting(wait);
+                        if (result.isCancelled()) {
+                            withdraw();
+                        }
+                    });
+        }
+
+        @Override
+        public void run() {
+            if (result.isDone()) {
+                return;
+            }
+            if (isVictim(wait)) {
+                giveUp();
+                return;
+            }
+
+            ResourceLockWaiters.Signal release = nextRelease(resourceLockId, ownerId);
+
+            attempts++;
+            onStoreExecutor(
+                            () ->
+                                    getLockOnResource(
+                                            resourceLockId,
+                                            ownerId,
+                                            operation,
+                                            permits,
+                                            deadline))
+                    .whenComplete(
+                            (acquired, error) -> {
+                                if (error != null) {
+                                    getWaiters().done(release);
+                                    result.completeExceptionally(error);
+                                } else if (acquired) {
+                                    getWaiters().done(release);
+                                    onAcquired();
+                                } else {
+                                    scheduleRetry(release);
+                                }
+                            });
+        }
+
+        private void onAcquired() {
+            onLockAcquired(
+                    resourceLockId,
+                    ownerId,
+                    getLockMode(operation, permits),
+                    startNanos,
+                    attempts);
+
+            if (!result.complete(ResourceLockResult.ACQUIRED)) {
+                // Cancelled by the caller while the attempt was in flight
+                unlockResourceAsync(resourceLockId, ownerId);
+            }
+        }
+
+        private void giveUp() {
+
+            ResourceLockMode mode = getLockMode(operation, permits);
+            if (!leavesWaiterState(mode)) {
+                onTimedOut();
+                return;
+            }
+            onStoreExecutor(() -> leaveQueue(resourceLockId, ownerId, mode))
+                    .whenComplete(
+                            (handedOff, error) -> {
+                                if (error != null) {
+                                    result.completeExceptionally(error);
+                                } else if (handedOff) {
+                                    onAcquired();
+                                } else {
+                                    onTimedOut();
+                                }
+                            });
+        }
+
+        private void onTimedOut() {
+            result.complete(gaveUp(resourceLockId, ownerId, startNanos, attempts, wait));
+        }
+
+        /**
+         * Takes what a cancelled request left on the lock off it, and releases the lock if it was
+         * handed to the owner in the meantime.
+         */
+        private void withdraw() {
+
+            ResourceLockMode mode = getLockMode(operation, permits);
+            if (!leavesWaiterState(mode)) {
+                return;
+            }
+            onStoreExecutor(() -> leaveQueue(resourceLockId, ownerId, mode))
+                    .whenComplete(
+                            (handedOff, error) -> {
+                                if (error != null) {
+                                    log.warn(
+                                            "(LOCK) Owner [{}] failed to leave the queue of"
+                                                    + " resource [{}] after cancelling",
+                                            ownerId,
+                                            resourceLockId,
+                                            error);
+                                } else if (handedOff) {
+                                    onLockAcquired(
+                                            resourceLockId, ownerId, mode, startNanos, attempts);
+                                    unlockResourceAsync(resourceLockId, ownerId);
+                                }
+                            });
+        }
+
+        private void scheduleRetry(ResourceLockWaiters.Signal release) {
+
+            boolean expired = deadline.isExpired();
+            if (!expired) {
+                wait =
+                        awaitLocks(
+                                ownerId,
+                                Collections.singletonMap(
+                                        resourceLockId, getLockMode(operation, permits)));
+                if (result.isDone()) {
+                    // Cancelled by the caller while the attempt was in flight, which may have
+                    // written a reservation after the cancellation withdrew the earlier one
+                    getWaiters().done(release);
+                    doneWaiting(wait);
+                    withdraw();
+                    return;
+                }
+            }
+            if (expired || isVictim(wait)) {
+                getWaiters().done(release);
+                giveUp();
+                return;
+            }
+            long delayNanos =
+                    retryDelayNanos(
+                            Collections.singleton(resourceLockId),
+                            ownerId,
+                            attempts,
+                            retryTime,
+                            deadline);
+            if (delayNanos < 0) {
+                getWaiters().done(release);
+                giveUp();
+                return;
+            }
+
+            AtomicBoolean retried = new AtomicBoolean();
+            Runnable retry =
+                    () -> {
+                        if (retried.compareAndSet(false, true)) {
+                            getWaiters().done(release);
+                            run();
+                        }
+                    };
+
+            ScheduledFuture<?> timer =
+                    getScheduler().schedule(retry, delayNanos, TimeUnit.NANOSECONDS);
+            orVictim(release, wait)
+                    .thenRun(
+                            () -> {
+                                timer.cancel(false);
+                                retry.run();
+                            });
+        }
+    }
 }
@@ -0,0 +1,194 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import lombok.Builder;
+import lombok.Getter;
+
+/** Optional collaborators and switches of {@link ResourceLockingFramework}. */
+@Getter
+@Builder
+public final class ResourceLockingFrameworkOptions {
+
+    public static final String READ_OPERATION = "READ";
+
+    /** Channel used to wake waiters on other nodes when a lock is released. */
+    @Builder.Default
+    private final ResourceLockReleaseChannel releaseChannel =
+            new InProcessResourceLockReleaseChannel();
+
+    /** Operations that take the lock in {@link ResourceLockMode#SHARED} mode. */
+    @Builder.Default
+    private final Set<String> sharedOperations = Collections.singleton(READ_OPERATION);
+
+    /**
+     * Whether an exclusive request blocked by shared holders reserves the lock while it waits, so
+     * that new shared holders are refused and writers are not starved by readers. A writer that
+     * gives up drops its reservation.
+     */
+    @Builder.Default private final boolean writerPreference = true;
+
+    /**
+     * How long a writer reservation lasts, in milliseconds. Each attempt of the waiting writer
+     * renews it, never past the writer's timeout, so the reservation of a writer that disappears
+     * without giving up lapses after this window instead of at its timeout.
+     */
+    @Builder.Default private final long writerReservationMillis = 2000;
+
+    /**
+     * Whether exclusive requests of this JVM for the same resource queue locally, so that only
+     * one of them at a time talks to the store.
+     */
+    @Builder.Default private final boolean coalesceLocalWaiters = false;
+
+    /**
+     * How many times in a row a released lock may be handed off directly to the next local
+     * waiter before it goes back to the store. Zero disables local handoff.
+     */
+    @Builder.Default private final int maxLocalHandoffs = 16;
+
+    /**
+     * Whether waiters queue in a FIFO of tickets persisted on the lock row. Only the oldest waiter
+     * may take the lock, and unlocking hands it straight to that waiter in the same write instead
+     * of waking every waiter to race for it. Multi-resource requests do not take tickets.
+     */
+    @Builder.Default private final boolean fairQueue = false;
+
+    /**
+     * Whether waiting owners of this node are checked for deadlocks. When owners wait for each
+     * other's locks in a cycle, the youngest waiter gives up right away with {@link
+     * ResourceLockResult#DEADLOCK_VICTIM} instead of every owner waiting out its timeout.
+     */
+    @Builder.Default private final boolean deadlockDetection = true;
+
+    /**
+     * How long, in microseconds, single-resource lock and unlock calls of this node wait for
+     * others to write them together in one store transaction. Each caller still gets its own
+     * result. Zero disables group commit and every call writes on its own.
+     */
+    @Builder.Default private final long groupCommitWindowMicros = 0;
+
+    /** Maximum number of calls written together by group commit, the batch is written when full. */
+    @Builder.Default private final int groupCommitMaxBatchSize = 64;
+
+    /**
+     * How long a lock request waits between attempts. The default backs off exponentially with
+     * jitter, and sleeps until the predicted release of the lock once its hold times are known.
+     */
+    @Builder.Default
+    private final ResourceLockRetryPolicy retryPolicy = new ExponentialBackoffRetryPolicy();
+
+    /**
+     * Whether a lock request gives up right away when the lock is not expected to be released,
+     * going by its past hold times, before the request times out. Locks held on other nodes are
+     * only predicted with the lock state cache enabled.
+     */
+    @Builder.Default private final boolean failFastOnPredictedTimeout = false;
+
+    /** Maximum number of resources whose hold times are kept for predicting their release. */
+    @Builder.Default private final long holdTimeHistorySize = 10_000;
+
+    /**
+     * Where lock acquire, wait, hold and conflict metrics are published. Defaults to the shared
+     * Dropwizard registry {@link DropwizardResourceLockMetrics#REGISTRY_NAME}; pass {@code new
+     * DropwizardResourceLockMetrics(registry)} to publish to the registry of the application.
+     */
+    @Builder.Default
+    private final ResourceLockMetrics metrics = DropwizardResourceLockMetrics.shared();
+
+    /**
+     * Fraction of lock and unlock events logged at info level, between 0 and 1. The other events
+     * are only logged at debug level.
+     */
+    @Builder.Default private final double eventLogSampleRate = 0;
+
+    /**
+     * Lease granted with every lock, in milliseconds. A lock whose lease expired, for example
+     * because its node crashed, is free for other owners. Zero disables leases and locks are held
+     * until they are unlocked. With leases, the framework has to be {@link
+     * ResourceLockingFramework#start() started} so that they are renewed.
+     */
+    @Builder.Default private final long leaseDurationMillis = 0;
+
+    /**
+     * How often the leases of the locks held through this node are renewed. Zero renews them every
+     * third of {@link #leaseDurationMillis}.
+     */
+    @Builder.Default private final long leaseRenewIntervalMillis = 0;
+
+    /**
+     * How often the reaper removes expired leases from the lock rows, zero to disable it. Only
+     * stores that can list their rows are reaped.
+     */
+    @Builder.Default private final long reapIntervalMillis = 0;
+
+    /**
+     * How old an answer of {@code isLocked}, {@code getOwner} and {@code getOwners} may be, in
+     * milliseconds. Lock and unlock calls of this node invalidate the cached state right away.
+     * Zero disables the lock state cache and every read goes to the store.
+     */
+    @Builder.Default private final long lockStateCacheStalenessMillis = 0;
+
+    /** Maximum number of locks in the lock state cache. */
+    @Builder.Default private final long lockStateCacheMaximumSize = 10_000;
+
+    /**
+     * File the acquire, release, timeout and conflict events of this node are appended to by the
+     * {@link ResourceLockJournal}. Null disables the journal.
+     */
+    @Builder.Default private final Path journalFile = null;
+
+    /**
+     * Number of events the journal buffers before it drops new ones, a power of two. Lock calls
+     * never wait for the journal writer.
+     */
+    @Builder.Default private final int journalBufferSize = 8192;
+
+    /** How often the journal writer appends the buffered events to the journal file. */
+    @Builder.Default private final long journalFlushIntervalMillis = 100;
+
+    /**
+     * Size at which the journal file is rotated. The previous file is kept next to it with a
+     * {@code .1} suffix and an older one is deleted, so the journal takes at most twice this size.
+     */
+    @Builder.Default private final long journalMaxBytes = 64L * 1024 * 1024;
+
+    /**
+     * Store attempts an unlock makes before its release is left to the {@link
+     * ResourceLockReleaseQueue}, when every attempt fails with a commit conflict.
+     */
+    @Builder.Default private final int unlockAttempts = 3;
+
+    /** How often the release queue writes the releases that conflicted in the unlock call. */
+    @Builder.Default private final long releaseQueueIntervalMillis = 100;
+
+    /** Fires retry timers of the asynchronous lock API. */
+    @Builder.Default
+    private final ScheduledExecutorService scheduler = ResourceLockExecutors.scheduler();
+
+    /** Runs blocking store calls of the asynchronous lock API. */
+    @Builder.Default private final Executor storeExecutor = ResourceLockExecutors.storeExecutor();
+
+    public boolean isLeaseEnabled() {
+        return leaseDurationMillis > 0;
+    }
+
+    public boolean isGroupCommitEnabled() {
+        return groupCommitWindowMicros > 0;
+    }
+
+    public boolean isLockStateCacheEnabled() {
+        return lockStateCacheStalenessMillis > 0;
+    }
+
+    public long getLeaseRenewIntervalMillis() {
+        return leaseRenewIntervalMillis > 0 ? leaseRenewIntervalMillis : leaseDurationMillis / 3;
+    }
+
+    public static ResourceLockingFrameworkOptions defaults() {
+        return ResourceLockingFrameworkOptions.builder().build();
+    }
+}
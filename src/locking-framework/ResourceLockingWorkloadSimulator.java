@@ -0,0 +1,567 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.oracle.pic.project.utils.FailsafeHelper;
+import com.oracle.pic.project.worker.config.ResourceLocksConfig;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.UnaryOperator;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Contention workload for sizing deployments, the load-test counterpart of {@link
+ * ResourceLockingFrameworkPOC}.
+ *
+ * <p>Several simulated nodes, each with its own {@link ResourceLockingFramework}, share one {@link
+ * InMemoryResourceLockStore} the way real nodes share the lock table. Every owner of every node
+ * loops for the duration of the run: it picks resources with Zipf-skewed popularity, locks them
+ * for a read, a write or a multi-resource write, holds them for a time drawn from the hold time
+ * distribution, and unlocks them. While holding, owners check that nobody else is inside the
+ * resource in a conflicting mode; any overlap is a mutual-exclusion violation. The frameworks are
+ * started for the run and stopped after it, and an owner that fails stops and is counted in the
+ * report.
+ *
+ * <p>Run {@link #main} with {@code key=value} arguments named after the fields of {@link
+ * Workload}, for example {@code nodes=8 resources=100 zipfExponent=1.2}.
+ */
+@Slf4j
+public final class ResourceLockingWorkloadSimulator {
+
+    private static final String READ = ResourceLockingFrameworkOptions.READ_OPERATION;
+    private static final String WRITE = "UPDATE";
+
+    /** How long owners hold the locks they acquire. */
+    public enum HoldTimeDistribution {
+        /** Always the mean. */
+        FIXED {
+            @Override
+            long next(long meanNanos) {
+                return meanNanos;
+            }
+        },
+
+        /** Uniform between zero and twice the mean. */
+        UNIFORM {
+            @Override
+            long next(long meanNanos) {
+                return ThreadLocalRandom.current().nextLong(2 * meanNanos + 1);
+            }
+        },
+
+        /** Exponential around the mean, mostly short holds with a long tail. */
+        EXPONENTIAL {
+            @Override
+            long next(long meanNanos) {
+                double uniform = ThreadLocalRandom.current().nextDouble();
+                return (long) (-Math.log(1 - uniform) * meanNanos);
+            }
+        };
+
+        abstract long next(long meanNanos);
+    }
+
+    /** Shape of the simulated load. */
+    @Getter
+    @Builder
+    public static final class Workload {
+
+        @Builder.Default private final int nodes = 4;
+        @Builder.Default private final int ownersPerNode = 8;
+
+        /** Number of distinct resources. */
+        @Builder.Default private final int resources = 1000;
+
+        /** Skew of resource popularity, zero for uniform; larger values make hot keys hotter. */
+        @Builder.Default private final double zipfExponent = 1.0;
+
+        @Builder.Default
+        private final HoldTimeDistribution holdTime = HoldTimeDistribution.EXPONENTIAL;
+        @Builder.Default private final long meanHoldMicros = 500;
+
+        /** Fraction of the operations that are shared reads. */
+        @Builder.Default private final double readFraction = 0.2;
+
+        /** Fraction of the operations that lock several resources at once. */
+        @Builder.Default private final double multiResourceFraction = 0.05;
+
+        @Builder.Default private final int resourcesPerMultiLock = 2;
+
+        @Builder.Default private final long durationSeconds = 10;
+        @Builder.Default private final long timeoutMillis = 1000;
+        @Builder.Default private final long retryMillis = 50;
+
+        /** Whether the nodes hear about each other's releases, as with a pub/sub channel. */
+        @Builder.Default private final boolean sharedReleaseChannel = true;
+
+        /** Applied to the options of every node, to simulate other framework settings. */
+        @Builder.Default
+        private final UnaryOperator<
+                        ResourceLockingFrameworkOptions.ResourceLockingFrameworkOptionsBuilder>
+                nodeOptions = UnaryOperator.identity();
+    }
+
+    /**
+     * Outcome of a run. The wait percentiles cover every lock request, including those that timed
+     * out or were deadlock victims.
+     */
+    @Value
+    public static class Report {
+
+        long acquires;
+        long timeouts;
+        long deadlockVictims;
+        double acquiresPerSecond;
+        long p50WaitMicros;
+        long p99WaitMicros;
+        long p999WaitMicros;
+
+        /** Fraction of the store attempts that were refused or failed with a commit conflict. */
+        double conflictRate;
+
+        long commitConflicts;
+        long violations;
+
+        /** Owners that stopped on an unexpected failure before the end of the run. */
+        long ownerFailures;
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "acquires=%d (%.0f/s) timeouts=%d deadlockVictims=%d wait p50=%dus"
+                            + " p99=%dus p999=%dus conflictRate=%.3f commitConflicts=%d"
+                            + " violations=%d ownerFailures=%d",
+                    acquires,
+                    acquiresPerSecond,
+                    timeouts,
+                    deadlockVictims,
+                    p50WaitMicros,
+                    p99WaitMicros,
+                    p999WaitMicros,
+                    conflictRate,
+                    commitConflicts,
+                    violations,
+                    ownerFailures);
+        }
+    }
+
+    private final Workload workload;
+    private final double[] popularity;
+    private final Occupancy[] occupancy;
+    private final SimulationMetrics metrics = new SimulationMetrics();
+    private final LongAdder violations = new LongAdder();
+    private final LongAdder ownerFailures = new LongAdder();
+
+    public ResourceLockingWorkloadSimulator(Workload workload) {
+
+        Preconditions.checkArgument(workload.getNodes() > 0, "nodes must be positive");
+        Preconditions.checkArgument(workload.getOwnersPerNode() > 0, "owners must be positive");
+        Preconditions.checkArgument(
+                workload.getResources() >= workload.getResourcesPerMultiLock(),
+                "resources must cover a multi-resource lock");
+        this.workload = workload;
+        this.popularity = zipfCdf(workload.getResources(), workload.getZipfExponent());
+        this.occupancy = new Occupancy[workload.getResources()];
+        for (int i = 0; i < occupancy.length; i++) {
+            occupancy[i] = new Occupancy();
+        }
+    }
+
+    /** Runs the workload for its duration and reports what the owners saw. */
+    public Report run() throws Exception {
+
+        InMemoryResourceLockStore store = new InMemoryResourceLockStore();
+        ResourceLockReleaseChannel channel = new InProcessResourceLockReleaseChannel();
+        ResourceLocksConfig resourceLocksConfig =
+                ResourceLocksConfig.builder()
+                        .recoverySystemLockRetryTime(workload.getRetryMillis())
+                        .recoverySystemResourceLockTimeoutLimit(workload.getTimeoutMillis())
+                        .dataPathResourceLockTimeoutLimit(workload.getTimeoutMillis())
+                        .dataPathLockRetryTime(workload.getRetryMillis())
+                        .build();
+
+        List<ResourceLockingFramework> frameworks = new ArrayList<>();
+        for (int node = 0; node < workload.getNodes(); node++) {
+
+            ResourceLockingFrameworkOptions.ResourceLockingFrameworkOptionsBuilder options =
+                    ResourceLockingFrameworkOptions.builder()
+                            .metrics(metrics)
+                            .releaseChannel(
+                                    workload.isSharedReleaseChannel()
+                                            ? channel
+                                            : new InProcessResourceLockReleaseChannel());
+            frameworks.add(
+                    new ResourceLockingFramework(
+                            store,
+                            null,
+                            resourceLocksConfig,
+                            new FailsafeHelper(30, 10),
+                            workload.getNodeOptions().apply(options).build()));
+        }
+
+        List<ResourceLockingFramework> started = new ArrayList<>();
+        try {
+            for (ResourceLockingFramework framework : frameworks) {
+                framework.start();
+                started.add(framework);
+            }
+            return run(frameworks);
+        } finally {
+            for (ResourceLockingFramework framework : started) {
+                try {
+                    framework.stop();
+                } catch (Exception e) {
+                    log.warn("(LOCK) Failed to stop a simulated node", e);
+                }
+            }
+        }
+    }
+
+    private Report run(List<ResourceLockingFramework> frameworks) throws InterruptedException {
+
+        long endNanos =
+                System.nanoTime() + TimeUnit.SECONDS.toNanos(workload.getDurationSeconds());
+        List<Thread> threads = new ArrayList<>();
+        List<Owner> owners = new ArrayList<>();
+        for (int node = 0; node < frameworks.size(); node++) {
+            for (int i = 0; i < workload.getOwnersPerNode(); i++) {
+                Owner owner =
+                        new Owner(frameworks.get(node), "node" + node + "-owner" + i, endNanos);
+                owners.add(owner);
+                Thread thread = new Thread(owner, owner.ownerId);
+                thread.setDaemon(true);
+                threads.add(thread);
+            }
+        }
+
+        long startNanos = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        return report(owners, elapsedNanos);
+    }
+
+    private Report report(List<Owner> owners, long elapsedNanos) {
+
+        int count = 0;
+        for (Owner owner : owners) {
+            count += owner.waitCount;
+        }
+        long[] waits = new long[count];
+        int offset = 0;
+        for (Owner owner : owners) {
+            System.arraycopy(owner.waitNanos, 0, waits, offset, owner.waitCount);
+            offset += owner.waitCount;
+        }
+        Arrays.sort(waits);
+
+        long attempts = metrics.attempts.sum();
+        long acquires = metrics.acquires.sum();
+        long commitConflicts = metrics.commitConflicts.sum();
+        long storeAcquires = acquires - metrics.handoffs.sum();
+        return new Report(
+                acquires,
+                metrics.timeouts.sum(),
+                metrics.deadlockVictims.sum(),
+                acquires / (elapsedNanos / 1e9),
+                percentileMicros(waits, 0.5),
+                percentileMicros(waits, 0.99),
+                percentileMicros(waits, 0.999),
+                attempts == 0 ? 0 : (double) (attempts - storeAcquires) / attempts,
+                commitConflicts,
+                violations.sum(),
+                ownerFailures.sum());
+    }
+
+    private static long percentileMicros(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return TimeUnit.NANOSECONDS.toMicros(sorted[Math.max(0, index)]);
+    }
+
+    /** Cumulative distribution of Zipf popularity, for inverse transform sampling. */
+    private static double[] zipfCdf(int resources, double exponent) {
+
+        double[] cumulative = new double[resources];
+        double sum = 0;
+        for (int i = 0; i < resources; i++) {
+            sum += 1 / Math.pow(i + 1, exponent);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < resources; i++) {
+            cumulative[i] /= sum;
+        }
+        return cumulative;
+    }
+
+    private int nextResource() {
+        int index = Arrays.binarySearch(popularity, ThreadLocalRandom.current().nextDouble());
+        return Math.min(index >= 0 ? index : -index - 1, popularity.length - 1);
+    }
+
+    private static String resourceLockId(int resource) {
+        return "resource" + resource;
+    }
+
+    /** One owner, looping over lock, hold and unlock until the end of the run. */
+    private final class Owner implements Runnable {
+
+        private final ResourceLockingFramework framework;
+        private final String ownerId;
+        private final long endNanos;
+
+        private long[] waitNanos = new long[1024];
+        private int waitCount;
+
+        private Owner(ResourceLockingFramework framework, String ownerId, long endNanos) {
+            this.framework = framework;
+            this.ownerId = ownerId;
+            this.endNanos = endNanos;
+        }
+
+        @Override
+        public void run() {
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            double multiResource = workload.getMultiResourceFraction();
+            double reads = multiResource + workload.getReadFraction();
+            try {
+                while (System.nanoTime() < endNanos) {
+                    double operation = random.nextDouble();
+                    if (operation < multiResource) {
+                        writeAll();
+                    } else if (operation < reads) {
+                        access(nextResource(), READ);
+                    } else {
+                        access(nextResource(), WRITE);
+                    }
+                }
+            } catch (RuntimeException e) {
+                ownerFailures.increment();
+                log.warn("(LOCK) Simulated owner [{}] failed", ownerId, e);
+            }
+        }
+
+        private void access(int resource, String operation) {
+
+            String resourceLockId = resourceLockId(resource);
+            long startNanos = System.nanoTime();
+            boolean locked =
+                    framework.lockResource(
+                            resourceLockId,
+                            ownerId,
+                            operation,
+                            workload.getTimeoutMillis(),
+                            workload.getRetryMillis());
+            recordWait(System.nanoTime() - startNanos);
+            if (!locked) {
+                return;
+            }
+
+            boolean shared = operation.equals(READ);
+            occupancy[resource].enter(shared);
+            hold();
+            occupancy[resource].exit(shared);
+            framework.unlockResource(resourceLockId, ownerId);
+        }
+
+        private void writeAll() {
+
+            List<Integer> resources = new ArrayList<>();
+            while (resources.size() < workload.getResourcesPerMultiLock()) {
+                int resource = nextResource();
+                if (!resources.contains(resource)) {
+                    resources.add(resource);
+                }
+            }
+            List<String> resourceLockIds = new ArrayList<>();
+            for (int resource : resources) {
+                resourceLockIds.add(resourceLockId(resource));
+            }
+
+            long startNanos = System.nanoTime();
+            boolean locked =
+                    framework.lockResources(
+                            resourceLockIds,
+                            ownerId,
+                            WRITE,
+                            workload.getTimeoutMillis(),
+                            workload.getRetryMillis());
+            recordWait(System.nanoTime() - startNanos);
+            if (!locked) {
+                return;
+            }
+
+            for (int resource : resources) {
+                occupancy[resource].enter(false);
+            }
+            hold();
+            for (int resource : resources) {
+                occupancy[resource].exit(false);
+            }
+            framework.unlockResources(resourceLockIds, ownerId);
+        }
+
+        private void hold() {
+            long holdNanos =
+                    workload.getHoldTime()
+                            .next(TimeUnit.MICROSECONDS.toNanos(workload.getMeanHoldMicros()));
+            if (holdNanos > 0) {
+                LockSupport.parkNanos(holdNanos);
+            }
+        }
+
+        private void recordWait(long nanos) {
+            if (waitCount == waitNanos.length) {
+                waitNanos = Arrays.copyOf(waitNanos, waitCount * 2);
+            }
+            waitNanos[waitCount++] = nanos;
+        }
+    }
+
+    /** Owners inside a resource, to catch holders in conflicting modes. */
+    private final class Occupancy {
+
+        private final AtomicInteger readers = new AtomicInteger();
+        private final AtomicInteger writers = new AtomicInteger();
+
+        private void enter(boolean shared) {
+            if (shared) {
+                readers.incrementAndGet();
+                if (writers.get() != 0) {
+                    violations.increment();
+                }
+            } else if (writers.incrementAndGet() != 1 || readers.get() != 0) {
+                violations.increment();
+            }
+        }
+
+        private void exit(boolean shared) {
+            if (shared) {
+                readers.decrementAndGet();
+            } else {
+                writers.decrementAndGet();
+            }
+        }
+    }
+
+    /** Counts what the nodes report, across all of them. */
+    private static final class SimulationMetrics implements ResourceLockMetrics {
+
+        private final LongAdder acquires = new LongAdder();
+        private final LongAdder handoffs = new LongAdder();
+        private final LongAdder attempts = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        private final LongAdder deadlockVictims = new LongAdder();
+        private final LongAdder commitConflicts = new LongAdder();
+
+        @Override
+        public void lockAcquired(String resourceLockId, long waitNanos, int attempts) {
+            acquires.increment();
+            if (attempts == 0) {
+                handoffs.increment();
+            }
+            this.attempts.add(attempts);
+        }
+
+        @Override
+        public void lockTimedOut(String resourceLockId, long waitNanos, int attempts) {
+            timeouts.increment();
+            this.attempts.add(attempts);
+        }
+
+        @Override
+        public void deadlockVictim(String resourceLockId, long waitNanos, int attempts) {
+            deadlockVictims.increment();
+            this.attempts.add(attempts);
+        }
+
+        @Override
+        public void commitConflict(String resourceLockId) {
+            commitConflicts.increment();
+        }
+
+        @Override
+        public void lockReleased(String resourceLockId, long holdNanos) {}
+
+        @Override
+        public void leaseLost(String resourceLockId) {}
+
+        @Override
+        public void leasesReclaimed(int count) {}
+
+        @Override
+        public void pendingReleases(int count) {}
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        Workload.WorkloadBuilder workload = Workload.builder();
+        for (String arg : args) {
+            List<String> option = Splitter.on('=').limit(2).splitToList(arg);
+            Preconditions.checkArgument(option.size() == 2, "Expected key=value: %s", arg);
+            String value = option.get(1);
+            switch (option.get(0)) {
+                case "nodes":
+                    workload.nodes(Integer.parseInt(value));
+                    break;
+                case "ownersPerNode":
+                    workload.ownersPerNode(Integer.parseInt(value));
+                    break;
+                case "resources":
+                    workload.resources(Integer.parseInt(value));
+                    break;
+                case "zipfExponent":
+                    workload.zipfExponent(Double.parseDouble(value));
+                    break;
+                case "holdTime":
+                    workload.holdTime(HoldTimeDistribution.valueOf(value));
+                    break;
+                case "meanHoldMicros":
+                    workload.meanHoldMicros(Long.parseLong(value));
+                    break;
+                case "readFraction":
+                    workload.readFraction(Double.parseDouble(value));
+                    break;
+                case "multiResourceFraction":
+                    workload.multiResourceFraction(Double.parseDouble(value));
+                    break;
+                case "resourcesPerMultiLock":
+                    workload.resourcesPerMultiLock(Integer.parseInt(value));
+                    break;
+                case "durationSeconds":
+                    workload.durationSeconds(Long.parseLong(value));
+                    break;
+                case "timeoutMillis":
+                    workload.timeoutMillis(Long.parseLong(value));
+                    break;
+                case "retryMillis":
+                    workload.retryMillis(Long.parseLong(value));
+                    break;
+                case "sharedReleaseChannel":
+                    workload.sharedReleaseChannel(Boolean.parseBoolean(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown workload setting: " + arg);
+            }
+        }
+
+        log.info("{}", new ResourceLockingWorkloadSimulator(workload.build()).run());
+    }
+}
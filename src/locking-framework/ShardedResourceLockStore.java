@@ -0,0 +1,714 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.oracle.pic.sfw.dal.exceptions.TransactionCommitConflictException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * {@link ResourceLockStore} that spreads resource lock IDs over independent stores, each typically
+ * a {@link ConditionalResourceLocksDao} over its own {@code ResourceLocksDao} and {@code
+ * TransactionProvider}, with consistent hashing.
+ *
+ * <p>Multi-resource operations are split per shard. Locks on one shard are taken in one atomic
+ * store call. Locks spread over several shards are taken shard by shard in shard name order, and
+ * the shards already taken are released again when a later one refuses, so the set is still
+ * acquired all or nothing, but other owners may briefly see part of it held.
+ *
+ * <p>Every shard has a topology row, {@link #TOPOLOGY_ID}, held by the name of the shard topology
+ * it is on and only written when the topology changes. A node reads it at most once per {@code
+ * topologyCheckMillis} for each shard it acquires on, and throws {@link IllegalStateException}
+ * instead of acquiring when the shard moved to a topology it cannot follow. Every node must
+ * reshard to the same shards: the first one moves the topology rows, the others throw until they
+ * reshard too.
+ *
+ * <p>Until {@link #completeResharding} succeeds, a lock whose shard changed stays on its previous
+ * shard while it is held there: its holders keep renewing, transferring and releasing it there,
+ * acquiring it again there is granted to them without a write, other owners are refused, and it is
+ * only acquired on its new shard once it is free. Before that, its row on the previous shard is
+ * taken by {@link #MOVED_OWNER}, in a conditional write of the moved rows only, so a node that has
+ * not read the new topology yet is refused there instead of acquiring a lock that moved. No hold is
+ * ever added on the previous shard, so the resharding is complete once its rows show no holder of
+ * a moved lock and every node has had the time to read the topology rows again.
+ */
+public final class ShardedResourceLockStore implements ResourceLockStore {
+
+    /** Points per shard on the hash ring; more points spread the IDs more evenly. */
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    /** How long a node acquires on a shard without reading its topology row again. */
+    public static final long DEFAULT_TOPOLOGY_CHECK_MILLIS = 1000;
+
+    /** Row of every shard holding the topology the shard is on. */
+    static final String TOPOLOGY_ID = "__resourceLockShardTopology";
+
+    /** Holder of the row a lock has on the shard it moved away from. */
+    static final String MOVED_OWNER = "__resourceLockShardMoved";
+
+    static final int LIST_PAGE_SIZE = 1000;
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+    private static final ResourceLockRequest MOVED =
+            ResourceLockRequest.builder().ownerId(MOVED_OWNER).operation(MOVED_OWNER).build();
+
+    private final int virtualNodes;
+    private final long topologyCheckMillis;
+    private final Map<String, ResourceLockStore> stores = new ConcurrentHashMap<>();
+    private final AtomicReference<Topology> topology;
+
+    public ShardedResourceLockStore(Map<String, ResourceLockStore> shards) {
+        this(shards, DEFAULT_VIRTUAL_NODES);
+    }
+
+    /** @param shards stores keyed by a name that stays the same across restarts and reshards */
+    public ShardedResourceLockStore(Map<String, ResourceLockStore> shards, int virtualNodes) {
+        this(shards, virtualNodes, DEFAULT_TOPOLOGY_CHECK_MILLIS);
+    }
+
+    /**
+     * @param shards stores keyed by a name that stays the same across restarts and reshards
+     * @param topologyCheckMillis how long the topology read from a shard is trusted; every node
+     *     must use the same value
+     */
+    public ShardedResourceLockStore(
+            Map<String, ResourceLockStore> shards, int virtualNodes, long topologyCheckMillis) {
+
+        Preconditions.checkArgument(!shards.isEmpty(), "At least one shard is required");
+        Preconditions.checkArgument(virtualNodes > 0, "Virtual nodes must be positive");
+        Preconditions.checkArgument(topologyCheckMillis > 0, "Topology check must be positive");
+
+        this.virtualNodes = virtualNodes;
+        this.topologyCheckMillis = topologyCheckMillis;
+        this.stores.putAll(shards);
+        this.topology =
+                new AtomicReference<>(new Topology(new Ring(shards.keySet(), virtualNodes), null));
+    }
+
+    /**
+     * Starts moving to {@code shards}, or follows the node that did. Shards that are not in the
+     * new map are still read and written for the locks held on them until {@link
+     * #completeResharding} succeeds. The call can be retried if it fails part way.
+     *
+     * @throws IllegalStateException if a previous resharding is not complete or was completed less
+     *     than two topology checks ago, a shard is on a topology other than this node's or the new
+     *     one, or a shard cannot list its rows, which {@link #completeResharding} needs
+     */
+    public synchronized void reshard(Map<String, ResourceLockStore> shards) {
+
+        Preconditions.checkArgument(!shards.isEmpty(), "At least one shard is required");
+        Topology current = topology.get();
+        Preconditions.checkState(current.previous == null, "Resharding already in progress");
+        stores.keySet().retainAll(current.current.shards);
+        Preconditions.checkState(
+                canListResourceLockIds()
+                        && shards.values().stream()
+                                .allMatch(ResourceLockStore::canListResourceLockIds),
+                "Resharding needs shards that can list their resource lock rows");
+
+        Topology next = new Topology(new Ring(shards.keySet(), virtualNodes), current.current);
+        Topology done = new Topology(next.current, null);
+
+        // Nodes that had not read the last topology change may still mark rows as moved
+        long now = System.currentTimeMillis();
+        Set<String> unmoved = new TreeSet<>();
+        for (String shard : current.shards()) {
+            ResourceLockRecord row = stores.get(shard).read(TOPOLOGY_ID);
+            if (current.name.equals(row.getOwner())) {
+                Preconditions.checkState(
+                        isSettled(row, now),
+                        "Shard %s changed topology less than %s ms ago",
+                        shard,
+                        2 * topologyCheckMillis);
+                unmoved.add(shard);
+            }
+        }
+        stores.putAll(shards);
+
+        boolean completed = true;
+        for (String shard : next.shards()) {
+            if (unmoved.contains(shard)) {
+                // Markers of an earlier resharding would refuse locks that moved back here
+                releaseMoved(shard);
+            }
+            String on = moveTopology(shard, current.name, next.name, done.name, now);
+            completed &= on.equals(done.name);
+        }
+        topology.set(completed ? done : next);
+    }
+
+    /**
+     * Finishes the resharding once no lock is still held on a shard it moved away from, and every
+     * node had the time to read the new topology. The rows of those shards are listed and read
+     * from the shards themselves, so holds taken through any node are seen.
+     *
+     * @return true if the resharding is complete
+     */
+    public synchronized boolean completeResharding() {
+
+        Topology current = topology.get();
+        if (current.previous == null) {
+            return true;
+        }
+
+        // Nodes still on the previous shards may acquire until they read the topology again
+        long now = System.currentTimeMillis();
+        for (String shard : current.shards()) {
+            ResourceLockRecord row = stores.get(shard).read(TOPOLOGY_ID);
+            if (current.name.equals(row.getOwner()) && !isSettled(row, now)) {
+                return false;
+            }
+        }
+
+        for (String from : current.previous.shards) {
+            ResourceLockStore store = stores.get(from);
+            List<String> page = store.listResourceLockIds(null, LIST_PAGE_SIZE);
+            while (!page.isEmpty()) {
+                for (String resourceLockId : page) {
+                    if (!TOPOLOGY_ID.equals(resourceLockId)
+                            && from.equals(previousShard(current, resourceLockId))
+                            && isHeld(readLive(from, resourceLockId, now))) {
+                        return false;
+                    }
+                }
+                if (page.size() < LIST_PAGE_SIZE) {
+                    break;
+                }
+                page = store.listResourceLockIds(page.get(page.size() - 1), LIST_PAGE_SIZE);
+            }
+        }
+
+        // No hold is added on a previous shard while resharding, so none appeared since the scan
+        Topology done = new Topology(current.current, null);
+        for (String shard : current.shards()) {
+            moveTopology(shard, current.name, done.name, done.name, now);
+        }
+        topology.set(done);
+        stores.keySet().retainAll(done.current.shards);
+        return true;
+    }
+
+    public boolean isResharding() {
+        return topology.get().previous != null;
+    }
+
+    /** Name of the shard new locks on {@code resourceLockId} are taken on. */
+    public String shardFor(String resourceLockId) {
+        return topology.get().current.shardFor(resourceLockId);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IllegalStateException if a shard is on a topology this node cannot follow, until
+     *     this node is {@link #reshard resharded} too
+     */
+    @Override
+    public boolean acquireAllIfUnlocked(
+            Collection<String> resourceLockIds, ResourceLockRequest request) {
+
+        while (true) {
+            Topology current = topology.get();
+            Attempt attempt = acquireAll(current, resourceLockIds, request);
+            if (attempt != Attempt.TOPOLOGY_CHANGED) {
+                return attempt == Attempt.GRANTED;
+            }
+        }
+    }
+
+    @Override
+    public Map<String, ResourceLockRecord> releaseAllIfOwner(
+            Collection<String> resourceLockIds, String ownerId) {
+
+        Map<String, ResourceLockRecord> released = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> shard :
+                groupByHolderShard(resourceLockIds, ownerId).entrySet()) {
+            ResourceLockStore store = stores.get(shard.getKey());
+            released.putAll(store.releaseAllIfOwner(shard.getValue(), ownerId));
+        }
+        return released;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Operations are split into one batch per shard. A shard whose batch conflicts applies its
+     * operations one by one, and a shard whose batch fails fails its own operations, without
+     * affecting the batches of the other shards. While resharding, acquires are applied one by one
+     * instead, since a lock that moved is marked on its previous shard first.
+     */
+    @Override
+    public void applyAll(List<ResourceLockOperation<?>> operations) {
+
+        Topology current = topology.get();
+        List<ResourceLockOperation<?>> acquires = new ArrayList<>();
+        Map<String, List<ResourceLockOperation<?>>> byShard = new TreeMap<>();
+        for (ResourceLockOperation<?> operation : operations) {
+            String resourceLockId = operation.getResourceLockId();
+            String shard;
+            if (!operation.isAcquire()) {
+                shard = holderShard(resourceLockId, operation.getOwnerId());
+            } else if (current.previous == null) {
+                shard = current.current.shardFor(resourceLockId);
+            } else {
+                acquires.add(operation);
+                continue;
+            }
+            byShard.computeIfAbsent(shard, s -> new ArrayList<>()).add(operation);
+        }
+
+        for (ResourceLockOperation<?> operation : acquires) {
+            operation.applyAlone(this);
+        }
+        for (Map.Entry<String, List<ResourceLockOperation<?>>> shard : byShard.entrySet()) {
+            ResourceLockStore store = stores.get(shard.getKey());
+            List<ResourceLockOperation<?>> batch = shard.getValue();
+            try {
+                if (batch.stream().anyMatch(ResourceLockOperation::isAcquire)
+                        && !onTopology(current, shard.getKey())) {
+                    batch.forEach(operation -> operation.applyAlone(this));
+                    continue;
+                }
+                store.applyAll(batch);
+            } catch (TransactionCommitConflictException e) {
+                shard.getValue().forEach(operation -> operation.applyAlone(store));
+            } catch (RuntimeException e) {
+                shard.getValue().forEach(operation -> operation.fail(e));
+            }
+        }
+    }
+
+    @Override
+    public boolean leaveQueue(String resourceLockId, String ownerId) {
+
+        Topology current = topology.get();
+        boolean handedOff =
+                stores.get(current.current.shardFor(resourceLockId))
+                        .leaveQueue(resourceLockId, ownerId);
+
+        String from = previousShard(current, resourceLockId);
+        if (from != null) {
+            handedOff |= stores.get(from).leaveQueue(resourceLockId, ownerId);
+        }
+        return handedOff;
+    }
+
+    @Override
+    public boolean transferIfOwner(
+            String resourceLockId, String fromOwnerId, ResourceLockRequest to) {
+        return stores.get(holderShard(resourceLockId, fromOwnerId))
+                .transferIfOwner(resourceLockId, fromOwnerId, to);
+    }
+
+    @Override
+    public List<ResourceLockHolds.HoldKey> renewLeases(
+            Collection<ResourceLockHolds.HoldKey> holds, long leaseUntil) {
+
+        Map<String, List<ResourceLockHolds.HoldKey>> byShard = new TreeMap<>();
+        for (ResourceLockHolds.HoldKey hold : holds) {
+            byShard.computeIfAbsent(
+                            holderShard(hold.getResourceLockId(), hold.getOwnerId()),
+                            s -> new ArrayList<>())
+                    .add(hold);
+        }
+
+        List<ResourceLockHolds.HoldKey> lost = new ArrayList<>();
+        for (Map.Entry<String, List<ResourceLockHolds.HoldKey>> shard : byShard.entrySet()) {
+            lost.addAll(stores.get(shard.getKey()).renewLeases(shard.getValue(), leaseUntil));
+        }
+        return lost;
+    }
+
+    @Override
+    public int reapExpired(Collection<String> resourceLockIds) {
+
+        Topology current = topology.get();
+        Map<String, List<String>> byShard = new TreeMap<>();
+        for (String resourceLockId : resourceLockIds) {
+            String to = current.current.shardFor(resourceLockId);
+            byShard.computeIfAbsent(to, s -> new ArrayList<>()).add(resourceLockId);
+            String from = previousShard(current, resourceLockId);
+            if (from != null) {
+                byShard.computeIfAbsent(from, s -> new ArrayList<>()).add(resourceLockId);
+            }
+        }
+
+        int reclaimed = 0;
+        for (Map.Entry<String, List<String>> shard : byShard.entrySet()) {
+            reclaimed += stores.get(shard.getKey()).reapExpired(shard.getValue());
+        }
+        return reclaimed;
+    }
+
+    @Override
+    public boolean canListResourceLockIds() {
+        return stores.values().stream().allMatch(ResourceLockStore::canListResourceLockIds);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The pages of every shard are merged, so a lock on two shards while resharding is listed
+     * once. The topology rows are not listed.
+     */
+    @Override
+    public List<String> listResourceLockIds(String startAfter, int limit) {
+        TreeSet<String> merged = new TreeSet<>();
+        for (ResourceLockStore store : stores.values()) {
+            // One more than the limit, in case the topology row is in the page
+            merged.addAll(store.listResourceLockIds(startAfter, limit + 1));
+        }
+        merged.remove(TOPOLOGY_ID);
+        List<String> page = new ArrayList<>(limit);
+        for (String resourceLockId : merged) {
+            if (page.size() == limit) {
+                break;
+            }
+            page.add(resourceLockId);
+        }
+        return page;
+    }
+
+    @Override
+    public ResourceLockRecord read(String resourceLockId) {
+
+        Topology current = topology.get();
+        String from = previousShard(current, resourceLockId);
+        if (from != null) {
+            ResourceLockRecord previous = stores.get(from).read(resourceLockId);
+            if (isHeld(previous.withoutExpired(System.currentTimeMillis()))) {
+                return previous;
+            }
+        }
+        return stores.get(current.current.shardFor(resourceLockId)).read(resourceLockId);
+    }
+
+    @Override
+    public long getStoreRoundTrips() {
+        long roundTrips = 0;
+        for (ResourceLockStore store : stores.values()) {
+            roundTrips += store.getStoreRoundTrips();
+        }
+        return roundTrips;
+    }
+
+    private Attempt acquireAll(
+            Topology current, Collection<String> resourceLockIds, ResourceLockRequest request) {
+
+        long now = System.currentTimeMillis();
+        Map<String, List<String>> byShard = new TreeMap<>();
+        Map<String, List<String>> moving = new TreeMap<>();
+        for (String resourceLockId : resourceLockIds) {
+            String from = previousShard(current, resourceLockId);
+            if (from != null) {
+                // Only the holders of a lock still held where it moved from get it, without a write
+                ResourceLockRecord previous = readLive(from, resourceLockId, now);
+                if (isHeld(previous)) {
+                    if (!previous.isHeldBy(request.getOwnerId())
+                            || !previous.acquire(request.forResource(resourceLockId), now)
+                                    .isGranted()) {
+                        return Attempt.REFUSED;
+                    }
+                    continue;
+                }
+                moving.computeIfAbsent(from, s -> new ArrayList<>()).add(resourceLockId);
+            }
+            byShard.computeIfAbsent(
+                            current.current.shardFor(resourceLockId), s -> new ArrayList<>())
+                    .add(resourceLockId);
+        }
+
+        // Refuses the moved locks to nodes still acquiring them on their previous shard
+        for (Map.Entry<String, List<String>> shard : moving.entrySet()) {
+            if (!onTopology(current, shard.getKey())) {
+                return Attempt.TOPOLOGY_CHANGED;
+            }
+            if (!stores.get(shard.getKey()).acquireAllIfUnlocked(shard.getValue(), MOVED)) {
+                return Attempt.REFUSED;
+            }
+        }
+
+        if (byShard.size() <= 1) {
+            return byShard.isEmpty()
+                    ? Attempt.GRANTED
+                    : acquireOn(current, byShard.keySet().iterator().next(), byShard, request);
+        }
+
+        // Locks the owner already held must survive a rollback
+        Set<String> heldBefore = new HashSet<>();
+        for (Map.Entry<String, List<String>> shard : byShard.entrySet()) {
+            ResourceLockStore store = stores.get(shard.getKey());
+            for (String resourceLockId : shard.getValue()) {
+                if (store.read(resourceLockId).isHeldBy(request.getOwnerId())) {
+                    heldBefore.add(resourceLockId);
+                }
+            }
+        }
+
+        Map<String, List<String>> acquired = new LinkedHashMap<>();
+        for (String shard : byShard.keySet()) {
+            Attempt attempt;
+            try {
+                attempt = acquireOn(current, shard, byShard, request);
+            } catch (RuntimeException e) {
+                rollBack(acquired, heldBefore, request.getOwnerId());
+                throw e;
+            }
+            if (attempt != Attempt.GRANTED) {
+                rollBack(acquired, heldBefore, request.getOwnerId());
+                return attempt;
+            }
+            acquired.put(shard, byShard.get(shard));
+        }
+        return Attempt.GRANTED;
+    }
+
+    private Attempt acquireOn(
+            Topology current,
+            String shard,
+            Map<String, List<String>> byShard,
+            ResourceLockRequest request) {
+
+        if (!onTopology(current, shard)) {
+            return Attempt.TOPOLOGY_CHANGED;
+        }
+        return stores.get(shard).acquireAllIfUnlocked(byShard.get(shard), request)
+                ? Attempt.GRANTED
+                : Attempt.REFUSED;
+    }
+
+    /**
+     * Checks that {@code shard} is still on the topology of this node, reading its topology row
+     * when it was last read more than {@code topologyCheckMillis} ago. Follows another node that
+     * completed the resharding this node is in.
+     *
+     * @return false if this node followed, in which case the caller tries again
+     * @throws IllegalStateException if the shard is on a topology this node cannot follow
+     */
+    private boolean onTopology(Topology current, String shard) {
+
+        long nowNanos = System.nanoTime();
+        Long checkedNanos = current.checkedNanos.get(shard);
+        if (checkedNanos != null
+                && nowNanos - checkedNanos < TimeUnit.MILLISECONDS.toNanos(topologyCheckMillis)) {
+            return true;
+        }
+
+        ResourceLockStore store = stores.get(shard);
+        while (true) {
+            String on = store.read(TOPOLOGY_ID).getOwner();
+            if (current.name.equals(on)) {
+                current.checkedNanos.put(shard, nowNanos);
+                return true;
+            }
+            if (on == null) {
+                // First acquire on the shard, which is not a topology change
+                store.acquireIfUnlocked(TOPOLOGY_ID, topologyRequest(current.name, 0));
+                continue;
+            }
+            Topology done = new Topology(current.current, null);
+            if (current.previous == null || !on.equals(done.name)) {
+                throw new IllegalStateException(
+                        "Shard "
+                                + shard
+                                + " is on topology "
+                                + on
+                                + ", this node on "
+                                + current.name
+                                + "; reshard this node to the same shards");
+            }
+            topology.compareAndSet(current, done);
+            return false;
+        }
+    }
+
+    /**
+     * Moves the topology row of {@code shard} from {@code from} to {@code to}, or creates it.
+     *
+     * @return the topology the shard is on after the call, {@code to} or {@code alsoAccepted}
+     * @throws IllegalStateException if the shard is on another topology
+     */
+    private String moveTopology(
+            String shard, String from, String to, String alsoAccepted, long movedAtMillis) {
+
+        ResourceLockStore store = stores.get(shard);
+        ResourceLockRequest moved = topologyRequest(to, movedAtMillis);
+        while (true) {
+            String on = store.read(TOPOLOGY_ID).getOwner();
+            if (to.equals(on) || alsoAccepted.equals(on)) {
+                return on;
+            }
+            if (on == null) {
+                store.acquireIfUnlocked(TOPOLOGY_ID, moved);
+            } else if (on.equals(from)) {
+                store.transferIfOwner(TOPOLOGY_ID, from, moved);
+            } else {
+                throw new IllegalStateException(
+                        "Shard " + shard + " is on topology " + on + ", expected " + from);
+            }
+        }
+    }
+
+    /**
+     * Whether every node had the time to read the topology row since it last moved: they read it
+     * again within {@code topologyCheckMillis}, and a second one covers the clock skew and the
+     * acquires still in flight.
+     */
+    private boolean isSettled(ResourceLockRecord topologyRow, long now) {
+        return now - Long.parseLong(topologyRow.getOperation()) >= 2 * topologyCheckMillis;
+    }
+
+    /** Releases the rows of {@code shard} held by {@link #MOVED_OWNER}. */
+    private void releaseMoved(String shard) {
+
+        ResourceLockStore store = stores.get(shard);
+        List<String> page = store.listResourceLockIds(null, LIST_PAGE_SIZE);
+        while (!page.isEmpty()) {
+            for (String resourceLockId : page) {
+                if (store.read(resourceLockId).isHeldBy(MOVED_OWNER)) {
+                    store.releaseIfOwner(resourceLockId, MOVED_OWNER);
+                }
+            }
+            if (page.size() < LIST_PAGE_SIZE) {
+                break;
+            }
+            page = store.listResourceLockIds(page.get(page.size() - 1), LIST_PAGE_SIZE);
+        }
+    }
+
+    /** The topology row of a shard, with the time it moved as operation. */
+    private static ResourceLockRequest topologyRequest(String name, long movedAtMillis) {
+        return ResourceLockRequest.builder()
+                .ownerId(name)
+                .operation(Long.toString(movedAtMillis))
+                .build();
+    }
+
+    /** Whether the lock is held by an owner, rather than marked as moved or free. */
+    private static boolean isHeld(ResourceLockRecord record) {
+        return !record.getHolders().isEmpty() && !record.isHeldBy(MOVED_OWNER);
+    }
+
+    /** Shard on which {@code ownerId} holds {@code resourceLockId}, if it holds it at all. */
+    private String holderShard(String resourceLockId, String ownerId) {
+
+        Topology current = topology.get();
+        String from = previousShard(current, resourceLockId);
+        if (from != null && stores.get(from).read(resourceLockId).isHeldBy(ownerId)) {
+            return from;
+        }
+        return current.current.shardFor(resourceLockId);
+    }
+
+    private Map<String, List<String>> groupByHolderShard(
+            Collection<String> resourceLockIds, String ownerId) {
+
+        Map<String, List<String>> byShard = new TreeMap<>();
+        for (String resourceLockId : resourceLockIds) {
+            byShard.computeIfAbsent(holderShard(resourceLockId, ownerId), s -> new ArrayList<>())
+                    .add(resourceLockId);
+        }
+        return byShard;
+    }
+
+    private ResourceLockRecord readLive(String shard, String resourceLockId, long now) {
+        return stores.get(shard).read(resourceLockId).withoutExpired(now);
+    }
+
+    /** @return the shard the lock is moving away from, or null if it is not moving */
+    private static String previousShard(Topology topology, String resourceLockId) {
+
+        if (topology.previous == null) {
+            return null;
+        }
+        String from = topology.previous.shardFor(resourceLockId);
+        return from.equals(topology.current.shardFor(resourceLockId)) ? null : from;
+    }
+
+    private void rollBack(
+            Map<String, List<String>> acquired, Set<String> heldBefore, String ownerId) {
+
+        for (Map.Entry<String, List<String>> shard : acquired.entrySet()) {
+            List<String> taken = new ArrayList<>(shard.getValue());
+            taken.removeAll(heldBefore);
+            if (!taken.isEmpty()) {
+                stores.get(shard.getKey()).releaseAllIfOwner(taken, ownerId);
+            }
+        }
+    }
+
+    private enum Attempt {
+        GRANTED,
+        REFUSED,
+        TOPOLOGY_CHANGED
+    }
+
+    private static final class Topology {
+
+        private final Ring current;
+        private final Ring previous;
+
+        /** Owner of the topology rows of the shards on this topology. */
+        private final String name;
+
+        /** When each shard was last seen on this topology, in {@link System#nanoTime()}. */
+        private final Map<String, Long> checkedNanos = new ConcurrentHashMap<>();
+
+        private Topology(Ring current, Ring previous) {
+            this.current = current;
+            this.previous = previous;
+            this.name = previous == null ? current.name() : previous.name() + ">" + current.name();
+        }
+
+        /** Every shard of the topology, in name order. */
+        private Set<String> shards() {
+            Set<String> shards = new TreeSet<>(current.shards);
+            if (previous != null) {
+                shards.addAll(previous.shards);
+            }
+            return shards;
+        }
+    }
+
+    /** Consistent hash ring of shard names. */
+    private static final class Ring {
+
+        private final Set<String> shards;
+        private final TreeMap<Long, String> points = new TreeMap<>();
+
+        private Ring(Collection<String> shards, int virtualNodes) {
+            this.shards = new HashSet<>(shards);
+            for (String shard : shards) {
+                for (int i = 0; i < virtualNodes; i++) {
+                    points.put(hash(shard + "#" + i), shard);
+                }
+            }
+        }
+
+        private String name() {
+            return String.join(",", new TreeSet<>(shards));
+        }
+
+        private String shardFor(String resourceLockId) {
+            SortedMap<Long, String> tail = points.tailMap(hash(resourceLockId));
+            return tail.isEmpty() ? points.firstEntry().getValue() : tail.get(tail.firstKey());
+        }
+
+        private static long hash(String value) {
+            return HASH.hashString(value, StandardCharsets.UTF_8).asLong();
+        }
+    }
+}
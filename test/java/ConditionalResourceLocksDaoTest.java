@@ -0,0 +1,64 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.oracle.pic.db.KaasStoreConfig;
+import com.oracle.pic.project.config.dbConfiguration;
+import com.oracle.pic.project.dao.DaoModule;
+import com.oracle.pic.sfw.db.dbTransactionProvider;
+import io.dropwizard.lifecycle.Managed;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ConditionalResourceLocksDaoTest extends ResourceLockStoreConformanceTest {
+
+    private final List<Managed> managedComponents = new ArrayList<>();
+    private ConditionalResourceLocksDao conditionalResourceLocksDao;
+
+    @BeforeEach
+    void setup() throws Exception {
+
+        final dbConfiguration dbConfiguration = new dbConfiguration();
+        dbConfiguration.setUsedbInMemory(true);
+        dbConfiguration.setKaasStoreConfig(
+                new KaasStoreConfig("UnitTestStore", "resourceLocking-cp"));
+
+        final DaoModule dao = new DaoModule(dbConfiguration);
+        managedComponents.add(dao);
+
+        conditionalResourceLocksDao =
+                new ConditionalResourceLocksDao(
+                        dao.getResourceLocksDao(),
+                        new dbTransactionProvider(dao.getMappedDataStore()));
+
+        for (Managed managed : managedComponents) {
+            managed.start();
+        }
+    }
+
+    @AfterEach
+    void teardown() throws Exception {
+        for (Managed managed : managedComponents) {
+            managed.stop();
+        }
+    }
+
+    @Override
+    ResourceLockStore store() {
+        return conditionalResourceLocksDao;
+    }
+
+    @Test
+    public void listingUnsupportedTest() {
+
+        // The DAO has no query over all the rows
+        assertFalse(conditionalResourceLocksDao.canListResourceLockIds());
+        assertThrows(
+                UnsupportedOperationException.class,
+                () -> conditionalResourceLocksDao.listResourceLockIds(null, 10));
+    }
+}
@@ -0,0 +1,163 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.oracle.pic.db.KaasStoreConfig;
+import com.oracle.pic.project.config.dbConfiguration;
+import com.oracle.pic.project.dao.DaoModule;
+import com.oracle.pic.sfw.db.dbTransactionProvider;
+import io.dropwizard.lifecycle.Managed;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class GroupCommitResourceLockStoreTest extends ResourceLockStoreConformanceTest {
+
+    private final List<Managed> managedComponents = new ArrayList<>();
+    private ConditionalResourceLocksDao conditionalResourceLocksDao;
+
+    @BeforeEach
+    void setup() throws Exception {
+
+        final dbConfiguration dbConfiguration = new dbConfiguration();
+        dbConfiguration.setUsedbInMemory(true);
+        dbConfiguration.setKaasStoreConfig(
+                new KaasStoreConfig("UnitTestStore", "resourceLocking-cp"));
+
+        final DaoModule dao = new DaoModule(dbConfiguration);
+        managedComponents.add(dao);
+
+        conditionalResourceLocksDao =
+                new ConditionalResourceLocksDao(
+                        dao.getResourceLocksDao(),
+                        new dbTransactionProvider(dao.getMappedDataStore()));
+
+        for (Managed managed : managedComponents) {
+            managed.start();
+        }
+    }
+
+    @AfterEach
+    void teardown() throws Exception {
+        for (Managed managed : managedComponents) {
+            managed.stop();
+        }
+    }
+
+    @Override
+    ResourceLockStore store() {
+        return new GroupCommitResourceLockStore(conditionalResourceLocksDao, 200, 16);
+    }
+
+    @Test
+    public void batchedCallersGetTheirOwnResultTest() throws Exception {
+
+        int callers = 16;
+        // The window is long enough for every caller to join the batch, the last one applies it
+        GroupCommitResourceLockStore store =
+                new GroupCommitResourceLockStore(
+                        conditionalResourceLocksDao, TimeUnit.SECONDS.toMicros(10), callers);
+        CountDownLatch start = new CountDownLatch(1);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(callers);
+        List<Future<Boolean>> futures = new ArrayList<>();
+        for (int i = 0; i < callers; i++) {
+            String owner = "owner" + i;
+            // Half of the callers contend for one lock, the others each take their own
+            String resourceLockId = i % 2 == 0 ? RESOURCE1 : "resource-" + owner;
+            futures.add(
+                    executorService.submit(
+                            () -> {
+                                start.await();
+                                return store.acquireIfUnlocked(
+                                        resourceLockId, request(owner, "UPDATE"));
+                            }));
+        }
+        start.countDown();
+
+        int granted = 0;
+        for (Future<Boolean> future : futures) {
+            if (future.get(30, TimeUnit.SECONDS)) {
+                granted++;
+            }
+        }
+        executorService.shutdown();
+
+        assertEquals(1, store.getBatchCount());
+        assertEquals(callers, store.getBatchedOperationCount());
+        assertEquals(callers / 2 + 1, granted);
+
+        // The odd owners each hold their own lock and none of them holds the contended one
+        String holder = store.read(RESOURCE1).getOwner();
+        assertFalse(conditionalResourceLocksDao.releaseIfOwner(RESOURCE1, OWNER1));
+        assertTrue(conditionalResourceLocksDao.releaseIfOwner(RESOURCE1, holder));
+        assertFalse(store.read(RESOURCE1).isLocked());
+    }
+
+    @Test
+    public void followerGivesUpAtItsDeadlineTest() throws Exception {
+
+        // The leader waits out a long window with a batch that never fills
+        GroupCommitResourceLockStore store =
+                new GroupCommitResourceLockStore(
+                        conditionalResourceLocksDao, TimeUnit.SECONDS.toMicros(1), 16);
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        Future<Boolean> leader =
+                executorService.submit(
+                        () -> store.acquireIfUnlocked(RESOURCE1, request(OWNER1, "UPDATE")));
+        Thread.sleep(100);
+
+        // A follower whose deadline comes first is withdrawn from the batch and refused
+        long start = System.nanoTime();
+        ResourceLockRequest follower =
+                request(OWNER2, "UPDATE").toBuilder()
+                        .waitUntil(System.currentTimeMillis() + 100)
+                        .build();
+        assertFalse(store.acquireIfUnlocked(RESOURCE2, follower));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 900);
+
+        assertTrue(leader.get(5, TimeUnit.SECONDS));
+        executorService.shutdown();
+        assertEquals(1, store.getBatchedOperationCount());
+        assertFalse(store.read(RESOURCE2).isLocked());
+    }
+
+    @Test
+    public void batchCompletesEveryOperationTest() {
+
+        // A backend that drops the batch without completing its operations
+        ResourceLockStore droppingBatches =
+                (ResourceLockStore)
+                        Proxy.newProxyInstance(
+                                ResourceLockStore.class.getClassLoader(),
+                                new Class<?>[] {ResourceLockStore.class},
+                                (proxy, method, args) -> {
+                                    if (method.getName().equals("applyAll")) {
+                                        return null;
+                                    }
+                                    try {
+                                        return method.invoke(conditionalResourceLocksDao, args);
+                                    } catch (InvocationTargetException e) {
+                                        throw e.getCause();
+                                    }
+                                });
+        GroupCommitResourceLockStore store =
+                new GroupCommitResourceLockStore(droppingBatches, 0, 16);
+
+        assertThrows(
+                IllegalStateException.class,
+                () -> store.acquireIfUnlocked(RESOURCE1, request(OWNER1, "UPDATE")));
+    }
+}
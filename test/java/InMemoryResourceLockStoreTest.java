@@ -0,0 +1,81 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import org.junit.jupiter.api.Test;
+
+class InMemoryResourceLockStoreTest extends ResourceLockStoreConformanceTest {
+
+    private static final String RESOURCE3 = "resource3";
+
+    @Override
+    ResourceLockStore store() {
+        return new InMemoryResourceLockStore();
+    }
+
+    @Test
+    public void overlappingMultiRowCommitsTest() throws Exception {
+
+        InMemoryResourceLockStore store = new InMemoryResourceLockStore();
+        List<List<String>> sets =
+                Arrays.asList(
+                        Arrays.asList(RESOURCE1, RESOURCE2),
+                        Arrays.asList(RESOURCE2, RESOURCE3),
+                        Arrays.asList(RESOURCE1, RESOURCE3));
+        List<String> rows = Arrays.asList(RESOURCE1, RESOURCE2, RESOURCE3);
+        AtomicIntegerArray inside = new AtomicIntegerArray(rows.size());
+        AtomicInteger violations = new AtomicInteger();
+        AtomicInteger acquired = new AtomicInteger();
+
+        // Owners take overlapping pairs of rows, so their commits keep finding each other's claims
+        ExecutorService executorService = Executors.newFixedThreadPool(9);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 9; i++) {
+            String owner = "owner" + i;
+            List<String> set = sets.get(i % sets.size());
+            ResourceLockRequest request = request(owner, "UPDATE");
+            futures.add(
+                    executorService.submit(
+                            () -> {
+                                for (int attempt = 0; attempt < 200; attempt++) {
+                                    if (!store.acquireAllIfUnlocked(set, request)) {
+                                        continue;
+                                    }
+                                    for (String row : set) {
+                                        if (inside.incrementAndGet(rows.indexOf(row)) != 1) {
+                                            violations.incrementAndGet();
+                                        }
+                                    }
+                                    acquired.incrementAndGet();
+                                    for (String row : set) {
+                                        inside.decrementAndGet(rows.indexOf(row));
+                                    }
+                                    assertEquals(2, store.releaseAllIfOwner(set, owner).size());
+                                }
+                            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        executorService.shutdown();
+
+        // No row was ever held twice, and every commit ran to its end
+        assertEquals(0, violations.get());
+        assertTrue(acquired.get() > 0);
+        for (String row : rows) {
+            assertFalse(store.read(row).isLocked());
+        }
+        assertEquals(rows, store.listResourceLockIds(null, 10));
+    }
+}
@@ -0,0 +1,363 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import com.oracle.pic.sfw.dal.exceptions.TransactionCommitConflictException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Behaviour every {@link ResourceLockStore} backend must have. Each backend runs the suite through
+ * a subclass that provides the store.
+ */
+abstract class ResourceLockStoreConformanceTest {
+
+    static final String OWNER1 = "owner1";
+    static final String OWNER2 = "owner2";
+    static final String OWNER3 = "owner3";
+    static final String RESOURCE1 = "resource1";
+    static final String RESOURCE2 = "resource2";
+
+    /** A fresh store with no lock rows. */
+    abstract ResourceLockStore store();
+
+    static ResourceLockRequest request(String ownerId, String operation) {
+        return ResourceLockRequest.builder().ownerId(ownerId).operation(operation).build();
+    }
+
+    @Test
+    public void acquireAndReleaseTest() {
+
+        ResourceLockStore store = store();
+
+        assertFalse(store.read(RESOURCE1).isLocked());
+        assertTrue(store.acquireIfUnlocked(RESOURCE1, request(OWNER1, "CREATE")));
+        assertFalse(store.acquireIfUnlocked(RESOURCE1, request(OWNER2, "UPDATE")));
+
+        // Reentrant acquire by the holder is granted without changing the row
+        assertTrue(store.acquireIfUnlocked(RESOURCE1, request(OWNER1, "CREATE")));
+        assertEquals(OWNER1, store.read(RESOURCE1).getOwner());
+        assertEquals("CREATE", store.read(RESOURCE1).getOperation());
+
+        // Only the holder can release
+        assertFalse(store.releaseIfOwner(RESOURCE1, OWNER2));
+        assertTrue(store.releaseIfOwner(RESOURCE1, OWNER1));
+        assertFalse(store.read(RESOURCE1).isLocked());
+        if (store.canListResourceLockIds()) {
+            assertTrue(store.listResourceLockIds(null, 10).contains(RESOURCE1));
+        }
+
+        // An unlocked row is taken over
+        assertTrue(store.acquireIfUnlocked(RESOURCE1, request(OWNER2, "UPDATE")));
+        assertEquals(OWNER2, store.read(RESOURCE1).getOwner());
+    }
+
+    @Test
+    public void listResourceLockIdsTest() {
+
+        ResourceLockStore store = store();
+        assumeTrue(store.canListResourceLockIds());
+        List<String> resourceLockIds = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            resourceLockIds.add(String.format("resource%02d", i));
+            assertTrue(store.acquireIfUnlocked(resourceLockIds.get(i), request(OWNER1, "CREATE")));
+        }
+
+        // Rows are listed in ID order, a page after the other
+        List<String> listed = new ArrayList<>();
+        List<String> page = store.listResourceLockIds(null, 10);
+        while (true) {
+            listed.addAll(page);
+            if (page.size() < 10) {
+                break;
+            }
+            page = store.listResourceLockIds(page.get(page.size() - 1), 10);
+        }
+        assertEquals(resourceLockIds, listed);
+    }
+
+    @Test
+    public void sharedModeTest() {
+
+        ResourceLockStore store = store();
+        ResourceLockRequest read1 =
+                request(OWNER1, "READ").toBuilder().mode(ResourceLockMode.SHARED).build();
+        ResourceLockRequest read2 =
+                request(OWNER2, "READ").toBuilder().mode(ResourceLockMode.SHARED).build();
+
+        assertTrue(store.acquireIfUnlocked(RESOURCE1, read1));
+        assertTrue(store.acquireIfUnlocked(RESOURCE1, read2));
+        assertFalse(store.acquireIfUnlocked(RESOURCE1, request(OWNER3, "UPDATE")));
+        assertEquals(2, store.read(RESOURCE1).getHolders().size());
+
+        assertTrue(store.releaseIfOwner(RESOURCE1, OWNER1));
+        assertTrue(store.read(RESOURCE1).isLocked());
+        assertTrue(store.releaseIfOwner(RESOURCE1, OWNER2));
+        assertTrue(store.acquireIfUnlocked(RESOURCE1, request(OWNER3, "UPDATE")));
+    }
+
+    @Test
+    public void acquireAllIsAllOrNothingTest() {
+
+        ResourceLockStore store = store();
+        List<String> both = Arrays.asList(RESOURCE1, RESOURCE2);
+
+        assertTrue(store.acquireIfUnlocked(RESOURCE2, request(OWNER2, "UPDATE")));
+        assertFalse(store.acquireAllIfUnlocked(both, request(OWNER1, "CREATE")));
+        assertFalse(store.read(RESOURCE1).isLocked());
+
+        assertTrue(store.releaseIfOwner(RESOURCE2, OWNER2));
+        assertTrue(store.acquireAllIfUnlocked(both, request(OWNER1, "CREATE")));
+        assertEquals(OWNER1, store.read(RESOURCE1).getOwner());
+        assertEquals(OWNER1, store.read(RESOURCE2).getOwner());
+
+        Map<String, ResourceLockRecord> released = store.releaseAllIfOwner(both, OWNER1);
+        assertEquals(2, released.size());
+        assertFalse(released.get(RESOURCE1).isLocked());
+    }
+
+    @Test
+    public void intentModeTest() {
+
+        ResourceLockStore store = store();
+        List<String> path = Arrays.asList(RESOURCE1, RESOURCE2);
+        ResourceLockRequest write =
+                request(OWNER1, "UPDATE").toBuilder()
+                        .resourceMode(RESOURCE1, ResourceLockMode.INTENT_EXCLUSIVE)
+                        .build();
+
+        assertTrue(store.acquireAllIfUnlocked(path, write));
+        assertEquals(
+                ResourceLockMode.INTENT_EXCLUSIVE, store.read(RESOURCE1).getHolders().get(OWNER1));
+        assertEquals(ResourceLockMode.EXCLUSIVE, store.read(RESOURCE2).getHolders().get(OWNER1));
+
+        // Intent locks are compatible with each other, but not with a lock on the ancestor
+        assertTrue(
+                store.acquireIfUnlocked(
+                        RESOURCE1,
+                        request(OWNER2, "READ").toBuilder()
+                                .mode(ResourceLockMode.INTENT_SHARED)
+                                .build()));
+        assertFalse(
+                store.acquireIfUnlocked(
+                        RESOURCE1,
+                        request(OWNER3, "READ").toBuilder().mode(ResourceLockMode.SHARED).build()));
+
+        // Locking the ancestor itself upgrades the intent lock once the other holder is gone
+        assertFalse(store.acquireIfUnlocked(RESOURCE1, request(OWNER1, "UPDATE")));
+        assertTrue(store.releaseIfOwner(RESOURCE1, OWNER2));
+        assertTrue(store.acquireIfUnlocked(RESOURCE1, request(OWNER1, "UPDATE")));
+        assertEquals(ResourceLockMode.EXCLUSIVE, store.read(RESOURCE1).getHolders().get(OWNER1));
+    }
+
+    @Test
+    public void permitTest() {
+
+        ResourceLockStore store = store();
+        ResourceLockRequest permit =
+                request(OWNER1, "UPDATE").toBuilder()
+                        .mode(ResourceLockMode.PERMIT)
+                        .permits(2)
+                        .build();
+
+        assertTrue(store.acquireIfUnlocked(RESOURCE1, permit));
+        assertTrue(
+                store.acquireIfUnlocked(RESOURCE1, permit.toBuilder().ownerId(OWNER2).build()));
+        assertFalse(
+                store.acquireIfUnlocked(RESOURCE1, permit.toBuilder().ownerId(OWNER3).build()));
+        assertFalse(store.acquireIfUnlocked(RESOURCE1, request(OWNER3, "DELETE")));
+        assertEquals(2, store.read(RESOURCE1).getPermits());
+
+        assertTrue(store.releaseIfOwner(RESOURCE1, OWNER1));
+        assertTrue(
+                store.acquireIfUnlocked(RESOURCE1, permit.toBuilder().ownerId(OWNER3).build()));
+        assertEquals(2, store.read(RESOURCE1).getHolders().size());
+
+        // A request for another permit count is refused while the semaphore is in use
+        ResourceLockRequest threePermits = permit.toBuilder().ownerId(OWNER1).permits(3).build();
+        assertFalse(store.acquireIfUnlocked(RESOURCE1, threePermits));
+
+        // The last release clears the permit count, so the next holder can set another one
+        assertTrue(store.releaseIfOwner(RESOURCE1, OWNER2));
+        assertTrue(store.releaseIfOwner(RESOURCE1, OWNER3));
+        assertEquals(0, store.read(RESOURCE1).getPermits());
+        assertTrue(store.acquireIfUnlocked(RESOURCE1, threePermits));
+        assertEquals(3, store.read(RESOURCE1).getPermits());
+    }
+
+    @Test
+    public void ticketHandoffTest() {
+
+        ResourceLockStore store = store();
+        long queueUntil = System.currentTimeMillis() + 60000;
+
+        assertTrue(store.acquireIfUnlocked(RESOURCE1, request(OWNER1, "CREATE")));
+        assertFalse(
+                store.acquireIfUnlocked(
+                        RESOURCE1,
+                        request(OWNER2, "UPDATE").toBuilder().queueUntil(queueUntil).build()));
+        assertFalse(
+                store.acquireIfUnlocked(
+                        RESOURCE1,
+                        request(OWNER3, "DELETE").toBuilder().queueUntil(queueUntil).build()));
+
+        // The release hands the lock to the oldest ticket
+        ResourceLockRecord next =
+                store.releaseAllIfOwner(Collections.singleton(RESOURCE1), OWNER1).get(RESOURCE1);
+        assertEquals(OWNER2, next.getOwner());
+        assertEquals("UPDATE", store.read(RESOURCE1).getOperation());
+
+        // A waiter that gives up leaves the queue, the new holder is told it holds the lock
+        assertFalse(store.leaveQueue(RESOURCE1, OWNER3));
+        assertTrue(store.leaveQueue(RESOURCE1, OWNER2));
+        assertTrue(store.read(RESOURCE1).getTickets(System.currentTimeMillis()).isEmpty());
+
+        assertTrue(store.transferIfOwner(RESOURCE1, OWNER2, request(OWNER3, "DELETE")));
+        assertEquals(OWNER3, store.read(RESOURCE1).getOwner());
+        assertFalse(store.transferIfOwner(RESOURCE1, OWNER2, request(OWNER1, "CREATE")));
+    }
+
+    @Test
+    public void writerReservationTest() {
+
+        ResourceLockStore store = store();
+        ResourceLockRequest read2 =
+                request(OWNER2, "READ").toBuilder().mode(ResourceLockMode.SHARED).build();
+        ResourceLockRequest write =
+                request(OWNER3, "UPDATE").toBuilder()
+                        .reserveUntil(System.currentTimeMillis() + 60000)
+                        .build();
+
+        assertTrue(
+                store.acquireIfUnlocked(
+                        RESOURCE1,
+                        request(OWNER1, "READ").toBuilder().mode(ResourceLockMode.SHARED).build()));
+
+        // A writer blocked by a reader reserves the lock, new readers are refused
+        assertFalse(store.acquireIfUnlocked(RESOURCE1, write));
+        assertFalse(store.acquireIfUnlocked(RESOURCE1, read2));
+
+        // Once the writer gives up, its reservation goes with it
+        assertFalse(store.leaveQueue(RESOURCE1, OWNER3));
+        assertTrue(store.acquireIfUnlocked(RESOURCE1, read2));
+
+        // The same goes for the reservations of a multi-row request
+        assertFalse(store.acquireAllIfUnlocked(Arrays.asList(RESOURCE1, RESOURCE2), write));
+        assertFalse(
+                store.acquireIfUnlocked(
+                        RESOURCE1, read2.toBuilder().ownerId("owner4").build()));
+        assertTrue(store.leaveQueues(Arrays.asList(RESOURCE1, RESOURCE2), OWNER3).isEmpty());
+        assertTrue(
+                store.acquireIfUnlocked(
+                        RESOURCE1, read2.toBuilder().ownerId("owner4").build()));
+    }
+
+    @Test
+    public void leaseTest() throws Exception {
+
+        ResourceLockStore store = store();
+        ResourceLockRequest leased =
+                request(OWNER1, "CREATE").toBuilder()
+                        .leaseUntil(System.currentTimeMillis() + 100)
+                        .build();
+
+        assertTrue(store.acquireIfUnlocked(RESOURCE1, leased));
+        long heldSince = store.read(RESOURCE1).getHeldSince();
+        assertTrue(heldSince > 0 && heldSince <= System.currentTimeMillis());
+        assertEquals(
+                0,
+                store.renewLeases(
+                                Collections.singleton(
+                                        new ResourceLockHolds.HoldKey(RESOURCE1, OWNER1)),
+                                System.currentTimeMillis() + 100)
+                        .size());
+
+        // Once the lease runs out the lock is free, and the reaper clears the row
+        Thread.sleep(200);
+        assertEquals(1, store.reapExpired(Collections.singleton(RESOURCE1)));
+        assertFalse(store.read(RESOURCE1).isLocked());
+        assertEquals(
+                1,
+                store.renewLeases(
+                                Collections.singleton(
+                                        new ResourceLockHolds.HoldKey(RESOURCE1, OWNER1)),
+                                System.currentTimeMillis() + 100)
+                        .size());
+        assertTrue(store.acquireIfUnlocked(RESOURCE1, request(OWNER2, "UPDATE")));
+
+        // Without a lease the acquire time is not recorded
+        assertEquals(0, store.read(RESOURCE1).getHeldSince());
+    }
+
+    @Test
+    public void concurrentAcquireIsMutuallyExclusiveTest() throws Exception {
+
+        ResourceLockStore store = store();
+        List<String> both = Arrays.asList(RESOURCE1, RESOURCE2);
+        AtomicInteger inside = new AtomicInteger();
+        AtomicInteger violations = new AtomicInteger();
+        AtomicInteger acquired = new AtomicInteger();
+
+        // Eight owners repeatedly take both rows; never more than one may hold them at a time
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            String owner = "owner" + i;
+            futures.add(
+                    executorService.submit(
+                            () -> {
+                                for (int attempt = 0; attempt < 50; attempt++) {
+                                    if (!acquire(store, both, owner)) {
+                                        continue;
+                                    }
+                                    if (inside.incrementAndGet() != 1) {
+                                        violations.incrementAndGet();
+                                    }
+                                    acquired.incrementAndGet();
+                                    inside.decrementAndGet();
+                                    release(store, both, owner);
+                                }
+                            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        executorService.shutdown();
+
+        assertEquals(0, violations.get());
+        assertTrue(acquired.get() > 0);
+        assertFalse(store.read(RESOURCE1).isLocked());
+        assertFalse(store.read(RESOURCE2).isLocked());
+    }
+
+    private static boolean acquire(ResourceLockStore store, List<String> ids, String owner) {
+        try {
+            return store.acquireAllIfUnlocked(ids, request(owner, "UPDATE"));
+        } catch (TransactionCommitConflictException e) {
+            return false;
+        }
+    }
+
+    private static void release(ResourceLockStore store, List<String> ids, String owner) {
+        while (true) {
+            try {
+                store.releaseAllIfOwner(ids, owner);
+                return;
+            } catch (TransactionCommitConflictException e) {
+                // Another owner's attempt touched the rows, retry the release
+            }
+        }
+    }
+}
@@ -4,7 +4,10 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
 import com.oracle.pic.project.config.dbConfiguration;
 import com.oracle.pic.project.dao.DaoModule;
 import com.oracle.pic.project.dao.DataPathsDao;
@@ -15,23 +18,43 @@ import com.oracle.pic.db.KaasStoreConfig;
 import com.oracle.pic.sfw.dal.TransactionProvider;
 import com.oracle.pic.sfw.db.dbTransactionProvider;
 import io.dropwizard.lifecycle.Managed;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 class ResourceLockingFrameworkTest {
 
     private final List<Managed> managedComponents = new ArrayList<>();
     private ResourceLockingFramework resourceLockingFramework;
     private ResourceLocksDao resourceLocksDao;
+    private TransactionProvider transactor;
+    private DataPathsDao dataPathsDao;
+    private ResourceLocksConfig resourceLocksConfig;
+    private FailsafeHelper failsafeHelper;
 
     private static final String OWNER1 = "owner1";
     private static final String OWNER2 = "owner2";
@@ -39,6 +62,8 @@ class ResourceLockingFrameworkTest {
     private static final String OWNER4 = "owner4";
     private static final String OWNER5 = "owner5";
     private static final String RESOURCE1 = "resource1";
+    private static final String RESOURCE2 = "resource2";
+    private static final String RESOURCE3 = "resource3";
 
     @BeforeEach
     void setup() throws Exception {
@@ -52,11 +77,11 @@ class ResourceLockingFrameworkTest {
         managedComponents.add(dao);
 
         resourceLocksDao = dao.getResourceLocksDao();
-        DataPathsDao dataPathsDao = dao.getDataPathsDao();
+        dataPathsDao = dao.getDataPathsDao();
 
-        TransactionProvider transactor = new dbTransactionProvider(dao.getMappedDataStore());
+        transactor = new dbTransactionProvider(dao.getMappedDataStore());
 
-        ResourceLocksConfig resourceLocksConfig =
+        resourceLocksConfig =
                 ResourceLocksConfig.builder()
                         .recoverySystemLockRetryTime(200)
                         .recoverySystemResourceLockTimeoutLimit(1000)
@@ -64,7 +89,7 @@ class ResourceLockingFrameworkTest {
                         .dataPathResourceLockTimeoutLimit(1000)
                         .build();
 
-        FailsafeHelper failsafeHelper = new FailsafeHelper(30, 10);
+        failsafeHelper = new FailsafeHelper(30, 10);
 
         resourceLockingFramework =
                 new ResourceLockingFramework(
@@ -86,6 +111,16 @@ class ResourceLockingFrameworkTest {
         }
     }
 
+    private ResourceLockingFramework newFramework(ResourceLockingFrameworkOptions options) {
+        return new ResourceLockingFramework(
+                resourceLocksDao,
+                transactor,
+                dataPathsDao,
+                resourceLocksConfig,
+                failsafeHelper,
+                options);
+    }
+
     @Test
     public void lockResourceTest() {
 
@@ -137,24 +172,36 @@ class ResourceLockingFrameworkTest {
     @Test
     public void recursiveLockTest() {
 
+        ResourceLockStore conditionalDao = resourceLockingFramework.getLockStore();
+
         // Owner 1 tries to lock Resource 1
         boolean lock = resourceLockingFramework.lockResource(RESOURCE1, OWNER1, "CREATE");
+        long before = conditionalDao.getStoreRoundTrips();
         // Owner 1 tries to lock Resource 1 again
         boolean lock2 = resourceLockingFramework.lockResource(RESOURCE1, OWNER1, "CREATE");
         // Owner 1 tries to lock Resource 1 again
         boolean lock3 = resourceLockingFramework.lockResource(RESOURCE1, OWNER1, "CREATE");
 
-        // Assert all lock resource calls returned true
+        // Assert all lock resource calls returned true, the nested ones without any store access
         assertTrue(lock);
         assertTrue(lock2);
         assertTrue(lock3);
+        assertEquals(0, conditionalDao.getStoreRoundTrips() - before);
+        assertEquals(3, resourceLockingFramework.getHolds().count(RESOURCE1, OWNER1));
 
         // Verify that owner is Owner 1
         assertTrue(resourceLockingFramework.isLocked(RESOURCE1));
         assertEquals(OWNER1, resourceLockingFramework.getOwner(RESOURCE1));
 
-        // Unlock the resource
-        resourceLockingFramework.unlockResource(RESOURCE1, OWNER1);
+        // The nested unlocks keep the lock and do not touch the store
+        before = conditionalDao.getStoreRoundTrips();
+        assertEquals(0, resourceLockingFramework.unlockResource(RESOURCE1, OWNER1));
+        assertEquals(0, resourceLockingFramework.unlockResource(RESOURCE1, OWNER1));
+        assertEquals(0, conditionalDao.getStoreRoundTrips() - before);
+        assertTrue(resourceLockingFramework.isLocked(RESOURCE1));
+
+        // The outermost unlock releases the resource
+        assertEquals(0, resourceLockingFramework.unlockResource(RESOURCE1, OWNER1));
 
         // Verify is the lock is now released
         assertFalse(resourceLockingFramework.isLocked(RESOURCE1));
@@ -224,4 +271,1296 @@ class ResourceLockingFrameworkTest {
         assertFalse(resourceLockingFramework.isLocked(RESOURCE1));
         assertNull(resourceLockingFramework.getOwner(RESOURCE1));
     }
+
+    @Test
+    public void conditionalLockRoundTripsTest() {
+
+        ResourceLockStore conditionalDao = resourceLockingFramework.getLockStore();
+
+        // First acquire creates the row: existence check, create and commit
+        long before = conditionalDao.getStoreRoundTrips();
+        assertTrue(resourceLockingFramework.lockResource(RESOURCE1, OWNER1, "CREATE", 0, 0));
+        assertEquals(3, conditionalDao.getStoreRoundTrips() - before);
+
+        // A contended attempt is a single read and nothing is committed
+        before = conditionalDao.getStoreRoundTrips();
+        assertFalse(resourceLockingFramework.lockResource(RESOURCE1, OWNER2, "UPDATE", 0, 0));
+        assertEquals(1, conditionalDao.getStoreRoundTrips() - before);
+
+        // Release is one conditional write: read, update and commit
+        before = conditionalDao.getStoreRoundTrips();
+        assertEquals(0, resourceLockingFramework.unlockResource(RESOURCE1, OWNER1));
+        assertEquals(3, conditionalDao.getStoreRoundTrips() - before);
+
+        // Taking over an unlocked row skips the existence check as well
+        before = conditionalDao.getStoreRoundTrips();
+        assertTrue(resourceLockingFramework.lockResource(RESOURCE1, OWNER2, "UPDATE", 0, 0));
+        assertEquals(3, conditionalDao.getStoreRoundTrips() - before);
+
+        // Releasing a lock owned by someone else does not write anything
+        before = conditionalDao.getStoreRoundTrips();
+        assertEquals(1, resourceLockingFramework.unlockResource(RESOURCE1, OWNER1));
+        assertEquals(1, conditionalDao.getStoreRoundTrips() - before);
+
+        resourceLockingFramework.unlockResource(RESOURCE1, OWNER2);
+        assertTrue(resourceLockingFramework.isUnlocked(RESOURCE1));
+    }
+
+    @Test
+    public void unlockWakesLocalWaiterTest() throws Exception {
+
+        assertTrue(resourceLockingFramework.lockResource(RESOURCE1, OWNER1, "CREATE"));
+
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+
+        // Owner 2 waits with a retry time far longer than the handoff should take
+        Future<Long> waited =
+                executorService.submit(
+                        () -> {
+                            long start = System.nanoTime();
+                            assertTrue(
+                                    resourceLockingFramework.lockResource(
+                                            RESOURCE1, OWNER2, "UPDATE", 10000, 10000));
+                            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                        });
+
+        Thread.sleep(200);
+        resourceLockingFramework.unlockResource(RESOURCE1, OWNER1);
+
+        // Ensure that owner 2 was woken by the unlock and not by its retry timer
+        assertTrue(waited.get() < 5000);
+        assertEquals(OWNER2, resourceLockingFramework.getOwner(RESOURCE1));
+        executorService.shutdown();
+
+        resourceLockingFramework.unlockResource(RESOURCE1, OWNER2);
+    }
+
+    @Test
+    public void waitersLeaveNoSignalBehindTest() throws Exception {
+
+        // The lock is never released through this node while the others wait on it
+        assertTrue(resourceLockingFramework.lockResource(RESOURCE1, OWNER1, "CREATE"));
+        assertFalse(resourceLockingFramework.lockResource(RESOURCE1, OWNER2, "UPDATE", 300, 20));
+        assertFalse(
+                resourceLockingFramework.lockResources(
+                        Arrays.asList(RESOURCE1, RESOURCE2), OWNER3, "UPDATE", 300, 20));
+        assertFalse(
+                resourceLockingFramework
+                        .lockResourceAsync(RESOURCE1, OWNER4, "UPDATE", 300, 20)
+                        .get(5, TimeUnit.SECONDS));
+
+        // Every attempt ended its release signal
+        assertEquals(0, resourceLockingFramework.getWaiters().size());
+        assertEquals(0, resourceLockingFramework.unlockResource(RESOURCE1, OWNER1));
+    }
+
+    @Test
+    public void unlockWakesRemoteWaiterTest() throws Exception {
+
+        // Two framework instances over the same store act as two nodes
+        // connected through one release channel
+        ResourceLockReleaseChannel channel = new InProcessResourceLockReleaseChannel();
+        ResourceLockingFrameworkOptions options =
+                ResourceLockingFrameworkOptions.builder().releaseChannel(channel).build();
+        ResourceLockingFramework node1 = newFramework(options);
+        ResourceLockingFramework node2 = newFramework(options);
+
+        assertTrue(node1.lockResource(RESOURCE1, OWNER1, "CREATE"));
+
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        Future<Long> waited =
+                executorService.submit(
+                        () -> {
+                            long start = System.nanoTime();
+                            assertTrue(
+                                    node2.lockResource(RESOURCE1, OWNER2, "UPDATE", 10000, 10000));
+                            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                        });
+
+        Thread.sleep(200);
+        node1.unlockResource(RESOURCE1, OWNER1);
+
+        // Ensure that the waiter on node 2 was woken by the release on node 1
+        assertTrue(waited.get() < 5000);
+        assertEquals(OWNER2, node1.getOwner(RESOURCE1));
+        executorService.shutdown();
+
+        node2.unlockResource(RESOURCE1, OWNER2);
+    }
+
+    @Test
+    public void lockResourceAsyncTest() throws Exception {
+
+        // Owner 1 locks Resource 1 without blocking the caller
+        assertTrue(
+                resourceLockingFramework
+                        .lockResourceAsync(RESOURCE1, OWNER1, "CREATE", 1000, 200)
+                        .get(5, TimeUnit.SECONDS));
+
+        // Owner 2 waits asynchronously for the lock
+        CompletableFuture<Boolean> lock2 =
+                resourceLockingFramework.lockResourceAsync(RESOURCE1, OWNER2, "UPDATE", 10000, 200);
+
+        Thread.sleep(300);
+        assertFalse(lock2.isDone());
+
+        // Once owner 1 releases the lock, owner 2 gets it
+        assertEquals(
+                Integer.valueOf(0),
+                resourceLockingFramework
+                        .unlockResourceAsync(RESOURCE1, OWNER1)
+                        .get(5, TimeUnit.SECONDS));
+        assertTrue(lock2.get(5, TimeUnit.SECONDS));
+        assertEquals(OWNER2, resourceLockingFramework.getOwner(RESOURCE1));
+
+        // A third owner times out while owner 2 holds the lock
+        assertFalse(
+                resourceLockingFramework
+                        .lockResourceAsync(RESOURCE1, OWNER3, "READ", 500, 100)
+                        .get(5, TimeUnit.SECONDS));
+
+        resourceLockingFramework.unlockResource(RESOURCE1, OWNER2);
+        assertTrue(resourceLockingFramework.isUnlocked(RESOURCE1));
+    }
+
+    @Test
+    public void concurrentLockResourceAsyncTest() throws Exception {
+
+        // Many more waiters than store threads are queued at the same time
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            futures.add(
+                    resourceLockingFramework.lockResourceAsync(
+                            RESOURCE1, "owner" + i, "UPDATE", 1000, 200));
+        }
+
+        int lockedCount = 0;
+        for (CompletableFuture<Boolean> future : futures) {
+            lockedCount = lockedCount + (future.get(5, TimeUnit.SECONDS) ? 1 : 0);
+        }
+
+        // Ensure that only one of the owners got the lock
+        assertEquals(1, lockedCount);
+
+        String owner = resourceLockingFramework.getOwner(RESOURCE1);
+        resourceLockingFramework.unlockResource(RESOURCE1, owner);
+        assertTrue(resourceLockingFramework.isUnlocked(RESOURCE1));
+    }
+
+    @Test
+    public void virtualThreadLockResourceAsyncTest() throws Exception {
+
+        // Callers on virtual threads lock and unlock the same resource through the async API
+        AtomicInteger holders = new AtomicInteger();
+        AtomicInteger maxHolders = new AtomicInteger();
+        AtomicInteger lockedCount = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            String owner = "owner" + i;
+            threads.add(
+                    Thread.ofVirtual()
+                            .start(
+                                    () -> {
+                                        try {
+                                            if (!resourceLockingFramework
+                                                    .lockResourceAsync(
+                                                            RESOURCE1, owner, "UPDATE", 20000, 20)
+                                                    .get(30, TimeUnit.SECONDS)) {
+                                                return;
+                                            }
+                                            lockedCount.incrementAndGet();
+                                            maxHolders.accumulateAndGet(
+                                                    holders.incrementAndGet(), Math::max);
+                                            holders.decrementAndGet();
+                                            resourceLockingFramework
+                                                    .unlockResourceAsync(RESOURCE1, owner)
+                                                    .get(30, TimeUnit.SECONDS);
+                                        } catch (Exception e) {
+                                            throw new IllegalStateException(e);
+                                        }
+                                    }));
+        }
+        for (Thread thread : threads) {
+            assertTrue(thread.join(Duration.ofSeconds(60)));
+        }
+
+        // Every caller got the lock in turn, never two at the same time
+        assertEquals(100, lockedCount.get());
+        assertEquals(1, maxHolders.get());
+        assertTrue(resourceLockingFramework.isUnlocked(RESOURCE1));
+    }
+
+    @Test
+    public void storeExecutorRejectionTest() throws Exception {
+
+        // A store executor that has no room left rejects every call
+        ResourceLockingFramework saturated =
+                newFramework(
+                        ResourceLockingFrameworkOptions.builder()
+                                .storeExecutor(
+                                        command -> {
+                                            throw new RejectedExecutionException("full");
+                                        })
+                                .build());
+
+        // The rejection fails the returned future instead of throwing to the caller
+        CompletableFuture<Boolean> lock =
+                saturated.lockResourceAsync(RESOURCE1, OWNER1, "UPDATE", 1000, 100);
+        ExecutionException error =
+                assertThrows(ExecutionException.class, () -> lock.get(5, TimeUnit.SECONDS));
+        assertTrue(error.getCause() instanceof RejectedExecutionException);
+        assertTrue(saturated.isUnlocked(RESOURCE1));
+    }
+
+    @Test
+    public void lockResourcesTest() {
+
+        // Owner 2 holds Resource 2
+        assertTrue(resourceLockingFramework.lockResource(RESOURCE2, OWNER2, "UPDATE"));
+
+        // Owner 1 cannot get all three resources, so it gets none of them
+        assertFalse(
+                resourceLockingFramework.lockResources(
+                        Arrays.asList(RESOURCE3, RESOURCE2, RESOURCE1), OWNER1, "CREATE", 300));
+        assertTrue(resourceLockingFramework.isUnlocked(RESOURCE1));
+        assertEquals(OWNER2, resourceLockingFramework.getOwner(RESOURCE2));
+        assertTrue(resourceLockingFramework.isUnlocked(RESOURCE3));
+
+        // Once Resource 2 is released owner 1 gets all of them
+        resourceLockingFramework.unlockResource(RESOURCE2, OWNER2);
+        assertTrue(
+                resourceLockingFramework.lockResources(
+                        Arrays.asList(RESOURCE3, RESOURCE2, RESOURCE1), OWNER1, "CREATE", 300));
+        assertEquals(OWNER1, resourceLockingFramework.getOwner(RESOURCE1));
+        assertEquals(OWNER1, resourceLockingFramework.getOwner(RESOURCE2));
+        assertEquals(OWNER1, resourceLockingFramework.getOwner(RESOURCE3));
+
+        // Another owner cannot release them
+        assertEquals(
+                1,
+                resourceLockingFramework.unlockResources(
+                        Arrays.asList(RESOURCE1, RESOURCE2, RESOURCE3), OWNER2));
+        assertTrue(resourceLockingFramework.isLocked(RESOURCE2));
+
+        // Owner 1 releases all of them at once
+        assertEquals(
+                0,
+                resourceLockingFramework.unlockResources(
+                        Arrays.asList(RESOURCE1, RESOURCE2, RESOURCE3), OWNER1));
+        assertTrue(resourceLockingFramework.isUnlocked(RESOURCE1));
+        assertTrue(resourceLockingFramework.isUnlocked(RESOURCE2));
+        assertTrue(resourceLockingFramework.isUnlocked(RESOURCE3));
+    }
+
+    @Test
+    public void concurrentLockResourcesTest() throws InterruptedException, ExecutionException {
+
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+
+        // Two owners request overlapping sets in opposite orders at the same time
+        Callable<Boolean> task1 =
+                () ->
+                        resourceLockingFramework.lockResources(
+                                Arrays.asList(RESOURCE1, RESOURCE2), OWNER1, "UPDATE", 500);
+
+        Callable<Boolean> task2 =
+                () ->
+                        resourceLockingFramework.lockResources(
+                                Arrays.asList(RESOURCE2, RESOURCE1), OWNER2, "UPDATE", 500);
+
+        List<Future<Boolean>> futures = executorService.invokeAll(Arrays.asList(task1, task2));
+        executorService.shutdown();
+
+        // Ensure that exactly one owner holds both resources
+        assertTrue(futures.get(0).get() ^ futures.get(1).get());
+        String owner = resourceLockingFramework.getOwner(RESOURCE1);
+        assertEquals(owner, resourceLockingFramework.getOwner(RESOURCE2));
+
+        assertEquals(
+                0,
+                resourceLockingFramework.unlockResources(
+                        Arrays.asList(RESOURCE1, RESOURCE2), owner));
+    }
+
+    @Test
+    public void sharedLockTest() {
+
+        // Two readers hold Resource 1 at the same time
+        assertTrue(resourceLockingFramework.lockResource(RESOURCE1, OWNER1, "READ"));
+        assertTrue(resourceLockingFramework.lockResource(RESOURCE1, OWNER2, "READ"));
+        assertEquals(
+                new HashSet<>(Arrays.asList(OWNER1, OWNER2)),
+                resourceLockingFramework.getOwners(RESOURCE1));
+
+        // A writer cannot get the lock while they hold it
+        assertFalse(resourceLockingFramework.lockResource(RESOURCE1, OWNER3, "UPDATE", 300, 100));
+
+        // Releasing one reader keeps the lock held by the other one
+        assertEquals(0, resourceLockingFramework.unlockResource(RESOURCE1, OWNER1));
+        assertTrue(resourceLockingFramework.isLocked(RESOURCE1));
+        assertEquals(OWNER2, resourceLockingFramework.getOwner(RESOURCE1));
+
+        // The lock is free once the last reader leaves
+        assertEquals(0, resourceLockingFramework.unlockResource(RESOURCE1, OWNER2));
+        assertTrue(resourceLockingFramework.isUnlocked(RESOURCE1));
+        assertNull(resourceLocksDao.get(RESOURCE1).getOperation());
+
+        // A writer excludes readers
+        assertTrue(resourceLockingFramework.lockResource(RESOURCE1, OWNER3, "UPDATE"));
+        assertFalse(resourceLockingFramework.lockResource(RESOURCE1, OWNER1, "READ", 300, 100));
+        resourceLockingFramework.unlockResource(RESOURCE1, OWNER3);
+        assertTrue(resourceLockingFramework.isUnlocked(RESOURCE1));
+    }
+
+    @Test
+    public void writerPreferenceTest() throws Exception {
+
+        assertTrue(resourceLockingFramework.lockResource(RESOURCE1, OWNER1, "READ"));
+
+        // A writer starts waiting behind the reader
+        CompletableFuture<Boolean> writer =
+                resourceLockingFramework.lockResourceAsync(RESOURCE1, OWNER3, "UPDATE", 10000, 100);
+        Thread.sleep(300);
+
+        // New readers are refused while the writer waits
+        assertFalse(resourceLockingFramework.lockResource(RESOURCE1, OWNER2, "READ", 300, 100));
+
+        // The writer gets the lock as soon as the reader leaves
+        resourceLockingFramework.unlockResource(RESOURCE1, OWNER1);
+        assertTrue(writer.get(5, TimeUnit.SECONDS));
+        assertEquals(OWNER3, resourceLockingFramework.getOwner(RESOURCE1));
+
+        // After the writer is done readers are admitted again
+        resourceLockingFramework.unlockResource(RESOURCE1, OWNER3);
+        assertTrue(resourceLockingFramework.lockResource(RESOURCE1, OWNER2, "READ"));
+        resourceLockingFramework.unlockResource(RESOURCE1, OWNER2);
+        assertTrue(resourceLockingFramework.isUnlocked(RESOURCE1));
+    }
+
+    @Test
+    public void writerGivingUpDropsReservationTest() throws Exception {
+
+        assertTrue(resourceLockingFramework.lockResource(RESOURCE1, OWNER1, "READ"));
+
+        // A waiting writer is cancelled long before its timeout
+        CompletableFuture<Boolean> writer =
+                resourceLockingFramework.lockResourceAsync(RESOURCE1, OWNER3, "UPDATE", 60000, 100);
+        Thread.sleep(300);
+        assertFalse(resourceLockingFramework.lockResource(RESOURCE1, OWNER2, "READ", 200, 50));
+        writer.cancel(false);
+
+        // Readers are admitted again without waiting for the writer's timeout
+        assertTrue(resourceLockingFramework.lockResource(RESOURCE1, OWNER2, "READ", 1000, 50));
+        resourceLockingFramework.unlockResource(RESOURCE1, OWNER2);
+
+        // The same once a blocked writer is interrupted
+        Thread blocked =
+                new Thread(
+                        () ->
+                                resourceLockingFramework.lockResource(
+                                        RESOURCE1, OWNER4, "UPDATE", 60000, 100));
+        blocked.start();
+        Thread.sleep(300);
+        assertFalse(resourceLockingFramework.lockResource(RESOURCE1, OWNER2, "READ", 200, 50));
+        blocked.interrupt();
+        blocked.join(5000);
+        assertTrue(resourceLockingFramework.lockResource(RESOURCE1, OWNER2, "READ", 1000, 50));
+
+        resourceLockingFramework.unlockResource(RESOURCE1, OWNER2);
+        resourceLockingFramework.unlockResource(RESOURCE1, OWNER1);
+        assertTrue(resourceLockingFramework.isUnlocked(RESOURCE1));
+    }
+
+    @Test
+    public void writerReservationWindowTest() throws Exception {
+
+        ResourceLockingFramework framework =
+                newFramework(
+                        ResourceLockingFrameworkOptions.builder()
+                                .writerReservationMillis(500)
+                                .build());
+        assertTrue(framework.lockResource(RESOURCE1, OWNER1, "READ"));
+
+        // A writer with a long timeout only reserves the lock for the reservation window
+        CompletableFuture<Boolean> writer =
+                framework.lockResourceAsync(RESOURCE1, OWNER3, "UPDATE", 60000, 100);
+        Thread.sleep(200);
+        ResourceLockRecord row = framework.getLockStore().read(RESOURCE1);
+        assertEquals(OWNER3, row.getAttribute(ResourceLockRecord.WRITER));
+        long reservedFor =
+                Long.parseLong(row.getAttribute(ResourceLockRecord.WRITER_UNTIL))
+                        - System.currentTimeMillis();
+        assertTrue("reserved for " + reservedFor + " ms", reservedFor <= 500);
+
+        // Retrying keeps renewing it while the writer waits
+        Thread.sleep(1000);
+        assertFalse(framework.lockResource(RESOURCE1, OWNER2, "READ", 50, 10));
+
+        writer.cancel(false);
+        framework.unlockResource(RESOURCE1, OWNER1);
+        assertTrue(framework.isUnlocked(RESOURCE1));
+    }
+
+    @Test
+    public void coalescedLocalWaitersTest() throws Exception {
+
+        ResourceLockingFramework framework =
+                newFramework(
+                        ResourceLockingFrameworkOptions.builder()
+                                .coalesceLocalWaiters(true)
+                                .build());
+
+        assertTrue(framework.lockResource(RESOURCE1, OWNER1, "CREATE"));
+
+        // Four more owners of this node queue for the same resource
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        List<Callable<Boolean>> tasks = new ArrayList<>();
+        for (String owner : Arrays.asList(OWNER2, OWNER3, OWNER4, OWNER5)) {
+            tasks.add(
+                    () -> {
+                        boolean locked =
+                                framework.lockResource(RESOURCE1, owner, "UPDATE", 10000, 10000);
+                        if (locked) {
+                            framework.unlockResource(RESOURCE1, owner);
+                        }
+                        return locked;
+                    });
+        }
+        List<Future<Boolean>> futures = new ArrayList<>();
+        for (Callable<Boolean> task : tasks) {
+            futures.add(executorService.submit(task));
+        }
+
+        Thread.sleep(300);
+        long before = framework.getLockStore().getStoreRoundTrips();
+
+        // Releasing the lock hands it from one queued owner to the next
+        framework.unlockResource(RESOURCE1, OWNER1);
+        for (Future<Boolean> future : futures) {
+            assertTrue(future.get(5, TimeUnit.SECONDS));
+        }
+        executorService.shutdown();
+
+        // Every owner got the lock well before the ten second retry time, and each handoff
+        // cost a single conditional write instead of a round of polling by every waiter
+        long roundTrips = framework.getLockStore().getStoreRoundTrips() - before;
+        assertTrue("store round trips: " + roundTrips, roundTrips <= 4 * 3 + 3);
+
+        assertTrue(framework.isUnlocked(RESOURCE1));
+        assertEquals(0, framework.getLocalQueues().size());
+    }
+
+    @Test
+    public void lockMetricsTest() {
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+        ResourceLockingFramework framework =
+                newFramework(
+                        ResourceLockingFrameworkOptions.builder()
+                                .metrics(new DropwizardResourceLockMetrics(metricRegistry))
+                                .build());
+
+        String resource = "datapath:" + RESOURCE1;
+
+        // One successful acquire and one that times out
+        assertTrue(framework.lockResource(resource, OWNER1, "CREATE"));
+        assertFalse(framework.lockResource(resource, OWNER2, "UPDATE", 300, 100));
+        framework.unlockResource(resource, OWNER1);
+
+        assertEquals(1, metricRegistry.timer("resourceLocks.acquire.latency").getCount());
+        assertEquals(1, metricRegistry.meter("resourceLocks.acquire.timeouts").getCount());
+        assertEquals(2, metricRegistry.histogram("resourceLocks.acquire.attempts").getCount());
+        assertTrue(
+                metricRegistry
+                                .histogram("resourceLocks.acquire.attempts")
+                                .getSnapshot()
+                                .getMax()
+                        > 1);
+
+        // Hold time is recorded under the resource class
+        assertEquals(1, metricRegistry.timer("resourceLocks.hold.datapath").getCount());
+        assertEquals(0, framework.getHolds().size());
+    }
+
+    @Test
+    public void resourceClassTest() {
+
+        assertEquals("a", DropwizardResourceLockMetrics.resourceClass("/a/b"));
+        assertEquals("a", DropwizardResourceLockMetrics.resourceClass("/a"));
+        assertEquals("datapath", DropwizardResourceLockMetrics.resourceClass("datapath:/a/b"));
+        assertEquals("root", DropwizardResourceLockMetrics.resourceClass("/"));
+        assertEquals("default", DropwizardResourceLockMetrics.resourceClass(RESOURCE1));
+    }
+
+    @Test
+    public void sharedMetricRegistryTest() {
+
+        // Two frameworks of the node publish to the same registry
+        MetricRegistry metricRegistry = new MetricRegistry();
+        DropwizardResourceLockMetrics metrics1 = new DropwizardResourceLockMetrics(metricRegistry);
+        DropwizardResourceLockMetrics metrics2 = new DropwizardResourceLockMetrics(metricRegistry);
+        ResourceLockingFramework framework1 =
+                newFramework(ResourceLockingFrameworkOptions.builder().metrics(metrics1).build());
+        ResourceLockingFramework framework2 =
+                newFramework(ResourceLockingFrameworkOptions.builder().metrics(metrics2).build());
+
+        assertTrue(framework1.lockResource(RESOURCE1, OWNER1, "CREATE"));
+        assertTrue(framework2.lockResource(RESOURCE2, OWNER2, "CREATE"));
+        assertEquals(2, metricRegistry.timer("resourceLocks.acquire.latency").getCount());
+
+        // The pending releases gauge adds up the releases pending in each of them
+        metrics1.pendingReleases(2);
+        metrics2.pendingReleases(3);
+        assertEquals(
+                5, metricRegistry.getGauges().get("resourceLocks.releases.pending").getValue());
+
+        framework1.unlockResource(RESOURCE1, OWNER1);
+        framework2.unlockResource(RESOURCE2, OWNER2);
+
+        // By default the metrics go to a shared registry reporters can look up
+        assertTrue(
+                SharedMetricRegistries.getOrCreate(DropwizardResourceLockMetrics.REGISTRY_NAME)
+                        .getTimers()
+                        .containsKey("resourceLocks.acquire.latency"));
+    }
+
+    @Test
+    public void leaseExpiryTest() throws Exception {
+
+        // Two nodes publishing to the same registry, over a store the reaper can list
+        MetricRegistry metricRegistry = new MetricRegistry();
+        ResourceLockingFrameworkOptions options =
+                ResourceLockingFrameworkOptions.builder()
+                        .metrics(new DropwizardResourceLockMetrics(metricRegistry))
+                        .leaseDurationMillis(300)
+                        .build();
+        InMemoryResourceLockStore rows = new InMemoryResourceLockStore();
+        ResourceLockingFramework node1 =
+                new ResourceLockingFramework(
+                        rows, dataPathsDao, resourceLocksConfig, failsafeHelper, options);
+        ResourceLockingFramework node2 =
+                new ResourceLockingFramework(
+                        rows, dataPathsDao, resourceLocksConfig, failsafeHelper, options);
+        node1.start();
+        node2.start();
+        try {
+            assertTrue(node1.lockResource(RESOURCE1, OWNER1, "CREATE"));
+            assertFalse(node2.lockResource(RESOURCE1, OWNER2, "UPDATE", 0, 0));
+
+            // Node 1 stops heartbeating, as if it crashed, and its lease runs out
+            node1.getLeaseRenewer().stop();
+            Thread.sleep(500);
+            assertFalse(node2.isLocked(RESOURCE1));
+            assertTrue(node2.lockResource(RESOURCE1, OWNER2, "UPDATE", 0, 0));
+            assertEquals(OWNER2, node2.getOwner(RESOURCE1));
+
+            // Owner 1 finds out on its next renewal and can no longer unlock
+            node1.getLeaseRenewer().renew();
+            assertEquals(1, metricRegistry.meter("resourceLocks.leases.lost").getCount());
+            assertEquals(1, node1.unlockResource(RESOURCE1, OWNER1));
+
+            // Once owner 2's lease expires as well, the reaper clears the row
+            node2.getLeaseRenewer().stop();
+            Thread.sleep(500);
+            assertEquals(1, node2.getReaper().reap());
+            assertEquals(1, metricRegistry.meter("resourceLocks.leases.reclaimed").getCount());
+            assertTrue(node2.isUnlocked(RESOURCE1));
+        } finally {
+            node1.stop();
+            node2.stop();
+        }
+
+        // The DAO cannot list its rows, so its expired leases are left to the next acquire
+        assertEquals(0, resourceLockingFramework.getReaper().reap());
+    }
+
+    @Test
+    public void leaseRenewalTest() throws Exception {
+
+        ResourceLockingFramework framework =
+                newFramework(
+                        ResourceLockingFrameworkOptions.builder()
+                                .leaseDurationMillis(300)
+                                .leaseRenewIntervalMillis(50)
+                                .build());
+
+        // Leases that nothing renews are refused up front
+        assertThrows(
+                IllegalStateException.class,
+                () -> framework.lockResource(RESOURCE1, OWNER1, "CREATE"));
+
+        framework.start();
+        try {
+            assertTrue(framework.getLeaseRenewer().isRunning());
+            assertTrue(framework.lockResource(RESOURCE1, OWNER1, "CREATE"));
+
+            // The heartbeat keeps the lock well past its lease duration
+            Thread.sleep(1000);
+            assertTrue(framework.isLocked(RESOURCE1));
+            assertFalse(framework.lockResource(RESOURCE1, OWNER2, "UPDATE", 0, 0));
+
+            assertEquals(0, framework.unlockResource(RESOURCE1, OWNER1));
+            assertTrue(framework.isUnlocked(RESOURCE1));
+        } finally {
+            framework.stop();
+        }
+    }
+
+    @Test
+    public void fairQueueTest() throws Exception {
+
+        ResourceLockingFramework framework =
+                newFramework(ResourceLockingFrameworkOptions.builder().fairQueue(true).build());
+
+        // A waiter that gives up takes its ticket out of the queue
+        assertTrue(framework.lockResource(RESOURCE1, OWNER1, "CREATE"));
+        assertFalse(framework.lockResource(RESOURCE1, OWNER5, "UPDATE", 200, 50));
+        assertTrue(
+                framework
+                        .getLockStore()
+                        .read(RESOURCE1)
+                        .getTickets(System.currentTimeMillis())
+                        .isEmpty());
+
+        // Three owners queue one after the other, with a retry time longer than the test
+        List<String> acquired = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService executorService = Executors.newFixedThreadPool(3);
+        List<Future<Boolean>> futures = new ArrayList<>();
+        for (String owner : Arrays.asList(OWNER2, OWNER3, OWNER4)) {
+            futures.add(
+                    executorService.submit(
+                            () -> {
+                                boolean locked =
+                                        framework.lockResource(
+                                                RESOURCE1, owner, "UPDATE", 10000, 10000);
+                                if (locked) {
+                                    acquired.add(owner);
+                                    framework.unlockResource(RESOURCE1, owner);
+                                }
+                                return locked;
+                            }));
+            Thread.sleep(200);
+        }
+
+        // Each unlock hands the lock straight to the oldest ticket
+        assertEquals(0, framework.unlockResource(RESOURCE1, OWNER1));
+        for (Future<Boolean> future : futures) {
+            assertTrue(future.get(5, TimeUnit.SECONDS));
+        }
+        executorService.shutdown();
+
+        assertEquals(Arrays.asList(OWNER2, OWNER3, OWNER4), acquired);
+        assertTrue(framework.isUnlocked(RESOURCE1));
+    }
+
+    @Test
+    public void lockStateCacheTest() {
+
+        ResourceLockingFramework node1 =
+                newFramework(
+                        ResourceLockingFrameworkOptions.builder()
+                                .lockStateCacheStalenessMillis(60000)
+                                .build());
+        ResourceLockingFramework node2 = newFramework(ResourceLockingFrameworkOptions.defaults());
+        ResourceLockStore conditionalDao = node1.getLockStore();
+
+        // Once cached, repeated lookups do not touch the store
+        assertTrue(node1.isUnlocked(RESOURCE1));
+        long before = conditionalDao.getStoreRoundTrips();
+        assertNull(node1.getOwner(RESOURCE1));
+        assertTrue(node1.isUnlocked(RESOURCE1));
+        assertEquals(0, conditionalDao.getStoreRoundTrips() - before);
+
+        // This node's own lock and unlock calls are visible right away
+        assertTrue(node1.lockResource(RESOURCE1, OWNER1, "CREATE"));
+        assertEquals(OWNER1, node1.getOwner(RESOURCE1));
+        assertEquals(0, node1.unlockResource(RESOURCE1, OWNER1));
+        assertNull(node1.getOwner(RESOURCE1));
+
+        // A change made by another node without a shared release channel is only seen by strict
+        // reads until the cached entry gets stale
+        assertTrue(node2.lockResource(RESOURCE1, OWNER2, "CREATE"));
+        assertNull(node1.getOwner(RESOURCE1));
+        assertEquals(OWNER2, node1.getOwner(RESOURCE1, true));
+        assertTrue(node1.isLocked(RESOURCE1, true));
+
+        assertEquals(0, node2.unlockResource(RESOURCE1, OWNER2));
+    }
+
+    @Test
+    public void lockStateCacheInvalidationTest() throws Exception {
+
+        // A store whose reads wait until the test lets them through
+        InMemoryResourceLockStore rows = new InMemoryResourceLockStore();
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        ResourceLockStore slowReads =
+                (ResourceLockStore)
+                        Proxy.newProxyInstance(
+                                ResourceLockStore.class.getClassLoader(),
+                                new Class<?>[] {ResourceLockStore.class},
+                                (proxy, method, args) -> {
+                                    if (method.getName().equals("read")) {
+                                        reading.countDown();
+                                        proceed.await();
+                                    }
+                                    try {
+                                        return method.invoke(rows, args);
+                                    } catch (InvocationTargetException e) {
+                                        throw e.getCause();
+                                    }
+                                });
+        ResourceLockStateCache cache = new ResourceLockStateCache(slowReads, 100, 60000);
+
+        // A read of the unlocked row is still loading when the lock is taken and invalidated
+        CompletableFuture<ResourceLockRecord> stale =
+                CompletableFuture.supplyAsync(() -> cache.get(RESOURCE1));
+        assertTrue(reading.await(5, TimeUnit.SECONDS));
+        assertTrue(
+                rows.acquireIfUnlocked(
+                        RESOURCE1,
+                        ResourceLockRequest.builder().ownerId(OWNER1).operation("CREATE").build()));
+        cache.invalidate(RESOURCE1);
+        proceed.countDown();
+        assertFalse(stale.get(5, TimeUnit.SECONDS).isLocked());
+
+        // The load that started before the invalidation did not fill the cache
+        assertEquals(0, cache.size());
+        assertTrue(cache.get(RESOURCE1).isLocked());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void inMemoryLockStoreTest() {
+
+        ResourceLockingFramework framework =
+                new ResourceLockingFramework(
+                        new InMemoryResourceLockStore(),
+                        dataPathsDao,
+                        resourceLocksConfig,
+                        failsafeHelper,
+                        ResourceLockingFrameworkOptions.defaults());
+
+        assertTrue(framework.lockResource(RESOURCE1, OWNER1, "CREATE"));
+        assertFalse(framework.lockResource(RESOURCE1, OWNER2, "UPDATE", 0, 0));
+        assertEquals(OWNER1, framework.getOwner(RESOURCE1));
+
+        assertEquals(0, framework.unlockResource(RESOURCE1, OWNER1));
+        assertTrue(framework.lockResource(RESOURCE1, OWNER2, "UPDATE", 0, 0));
+        assertEquals(0, framework.unlockResource(RESOURCE1, OWNER2));
+        assertTrue(framework.isUnlocked(RESOURCE1));
+
+        // Nothing went through the DAO
+        assertFalse(resourceLocksDao.isResourceLockPresent(RESOURCE1));
+    }
+
+    @Test
+    public void dataPathLockTest() {
+
+        // Writers of different objects only share intent locks on the common ancestors
+        assertTrue(resourceLockingFramework.lockDataPath("/bucket/a/obj1", OWNER1, "UPDATE"));
+        assertTrue(resourceLockingFramework.lockDataPath("/bucket/a/obj2", OWNER2, "UPDATE"));
+        assertEquals(
+                new HashSet<>(Arrays.asList(OWNER1, OWNER2)),
+                resourceLockingFramework.getOwners("/bucket/a"));
+
+        // A coarse lock on the ancestor waits for both of them, whether it writes or reads
+        assertFalse(
+                resourceLockingFramework.lockDataPath("/bucket/a", OWNER3, "UPDATE", 300, 100));
+        assertFalse(resourceLockingFramework.lockDataPath("/bucket/a", OWNER3, "READ", 300, 100));
+
+        // A second path of the same owner nests its intent locks, released with the last path
+        assertTrue(resourceLockingFramework.lockDataPath("/bucket/a/obj3", OWNER1, "UPDATE"));
+        assertEquals(0, resourceLockingFramework.unlockDataPath("/bucket/a/obj1", OWNER1));
+        assertTrue(resourceLockingFramework.getOwners("/bucket/a").contains(OWNER1));
+        assertEquals(0, resourceLockingFramework.unlockDataPath("/bucket/a/obj3", OWNER1));
+        assertEquals(0, resourceLockingFramework.unlockDataPath("/bucket/a/obj2", OWNER2));
+        assertTrue(resourceLockingFramework.isUnlocked("/bucket/a"));
+
+        // The coarse lock takes a single row and excludes everything below it
+        assertTrue(resourceLockingFramework.lockDataPath("/bucket", OWNER3, "UPDATE"));
+        assertFalse(resourceLocksDao.isResourceLockPresent("/bucket/a/obj4"));
+        assertFalse(
+                resourceLockingFramework.lockDataPath(
+                        "/bucket/a/obj1", OWNER1, "READ", 300, 100));
+        assertEquals(0, resourceLockingFramework.unlockDataPath("/bucket", OWNER3));
+
+        // Readers of the whole tree and of a single object do not block each other
+        assertTrue(resourceLockingFramework.lockDataPath("/bucket", OWNER1, "READ"));
+        assertTrue(resourceLockingFramework.lockDataPath("/bucket/a/obj1", OWNER2, "READ"));
+        assertEquals(0, resourceLockingFramework.unlockDataPath("/bucket", OWNER1));
+        assertEquals(0, resourceLockingFramework.unlockDataPath("/bucket/a/obj1", OWNER2));
+        assertTrue(resourceLockingFramework.isUnlocked("/bucket"));
+    }
+
+    @Test
+    public void deadlockDetectionTest() throws Exception {
+
+        assertTrue(resourceLockingFramework.lockResource(RESOURCE1, OWNER1, "UPDATE"));
+        assertTrue(resourceLockingFramework.lockResource(RESOURCE2, OWNER2, "UPDATE"));
+
+        // Each owner waits for the lock of the other one, with a timeout far longer than the test
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        long start = System.nanoTime();
+        Future<ResourceLockResult> first =
+                executorService.submit(
+                        () ->
+                                resourceLockingFramework.tryLockResource(
+                                        RESOURCE2, OWNER1, "UPDATE", 30000, 10000));
+        Thread.sleep(200);
+        Future<ResourceLockResult> second =
+                executorService.submit(
+                        () ->
+                                resourceLockingFramework.tryLockResource(
+                                        RESOURCE1, OWNER2, "UPDATE", 30000, 10000));
+
+        // The younger waiter is chosen as the victim and gives up right away
+        assertEquals(ResourceLockResult.DEADLOCK_VICTIM, second.get(5, TimeUnit.SECONDS));
+        assertEquals(0, resourceLockingFramework.unlockResource(RESOURCE2, OWNER2));
+
+        // Which lets the older one go on
+        assertEquals(ResourceLockResult.ACQUIRED, first.get(5, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 10000);
+        assertEquals(0, resourceLockingFramework.getDeadlockDetector().size());
+        executorService.shutdown();
+
+        assertEquals(
+                0,
+                resourceLockingFramework.unlockResources(
+                        Arrays.asList(RESOURCE1, RESOURCE2), OWNER1));
+    }
+
+    @Test
+    public void deadlockClosedByHoldTest() {
+
+        ResourceLockHolds holds = new ResourceLockHolds();
+        ResourceLockDeadlockDetector detector = new ResourceLockDeadlockDetector(holds);
+        holds.acquired(RESOURCE1, OWNER1, ResourceLockMode.EXCLUSIVE);
+
+        // No cycle yet: nobody holds the lock the first owner waits for
+        ResourceLockDeadlockDetector.Wait first =
+                detector.await(
+                        OWNER1, Collections.singletonMap(RESOURCE2, ResourceLockMode.EXCLUSIVE));
+        ResourceLockDeadlockDetector.Wait second =
+                detector.await(
+                        OWNER2, Collections.singletonMap(RESOURCE1, ResourceLockMode.EXCLUSIVE));
+        assertFalse(first.isVictim());
+        assertFalse(second.isVictim());
+
+        // The second owner is handed the other lock while it waits, which closes the cycle
+        holds.acquired(RESOURCE2, OWNER2, ResourceLockMode.EXCLUSIVE);
+        assertFalse(first.isVictim());
+        assertTrue(second.isVictim());
+
+        detector.done(first);
+        detector.done(second);
+        assertEquals(0, detector.size());
+    }
+
+    @Test
+    public void holdGenerationTest() {
+
+        ResourceLockHolds holds = new ResourceLockHolds();
+        ResourceLockHolds.HoldKey key = new ResourceLockHolds.HoldKey(RESOURCE1, OWNER1);
+        holds.acquired(RESOURCE1, OWNER1, ResourceLockMode.EXCLUSIVE);
+        Map<ResourceLockHolds.HoldKey, Long> snapshot = holds.snapshot();
+
+        // A hold released and taken again since the snapshot is not the one that was seen
+        holds.released(RESOURCE1, OWNER1);
+        holds.acquired(RESOURCE1, OWNER1, ResourceLockMode.EXCLUSIVE);
+        assertFalse(holds.releasedIf(key, snapshot.get(key)));
+        assertEquals(1, holds.count(RESOURCE1, OWNER1));
+
+        // Nested acquires keep the generation of the hold
+        holds.acquired(RESOURCE1, OWNER1, ResourceLockMode.EXCLUSIVE);
+        assertTrue(holds.releasedIf(key, holds.snapshot().get(key)));
+        assertEquals(0, holds.size());
+    }
+
+    @Test
+    public void compatibleHoldersAreNoDeadlockTest() {
+
+        ResourceLockHolds holds = new ResourceLockHolds();
+        ResourceLockDeadlockDetector detector = new ResourceLockDeadlockDetector(holds);
+        holds.acquired(RESOURCE1, OWNER1, ResourceLockMode.INTENT_SHARED);
+        holds.acquired(RESOURCE2, OWNER2, ResourceLockMode.SHARED);
+
+        // Shared waiters are not kept out by an intent or shared holder, so there is no cycle
+        ResourceLockDeadlockDetector.Wait first =
+                detector.await(
+                        OWNER1, Collections.singletonMap(RESOURCE2, ResourceLockMode.SHARED));
+        ResourceLockDeadlockDetector.Wait second =
+                detector.await(
+                        OWNER2, Collections.singletonMap(RESOURCE1, ResourceLockMode.SHARED));
+        assertFalse(first.isVictim());
+        assertFalse(second.isVictim());
+
+        // Upgrading one hold to exclusive blocks one waiter only
+        holds.acquired(RESOURCE2, OWNER2, ResourceLockMode.EXCLUSIVE);
+        assertFalse(first.isVictim());
+        assertFalse(second.isVictim());
+
+        // Upgrading the other one closes the cycle
+        holds.acquired(RESOURCE1, OWNER1, ResourceLockMode.EXCLUSIVE);
+        assertFalse(first.isVictim());
+        assertTrue(second.isVictim());
+
+        detector.done(first);
+        detector.done(second);
+        assertEquals(0, detector.size());
+    }
+
+    @Test
+    public void modeCompatibilityTest() {
+
+        for (ResourceLockMode mode : ResourceLockMode.values()) {
+            for (ResourceLockMode other : ResourceLockMode.values()) {
+                assertEquals(
+                        mode + " and " + other,
+                        mode.isCompatibleWith(other),
+                        other.isCompatibleWith(mode));
+            }
+        }
+        assertFalse(ResourceLockMode.INTENT_SHARED.isCompatibleWith(ResourceLockMode.PERMIT));
+        assertTrue(ResourceLockMode.INTENT_SHARED.isCompatibleWith(ResourceLockMode.SHARED));
+    }
+
+    @Test
+    public void permitTest() throws Exception {
+
+        // Two of three owners get one of the two permits
+        assertTrue(resourceLockingFramework.acquirePermit(RESOURCE1, OWNER1, "UPDATE", 2));
+        assertTrue(resourceLockingFramework.acquirePermit(RESOURCE1, OWNER2, "UPDATE", 2));
+        assertFalse(
+                resourceLockingFramework.acquirePermit(RESOURCE1, OWNER3, "UPDATE", 2, 300, 100));
+        assertEquals(2, resourceLockingFramework.getOwners(RESOURCE1).size());
+
+        // Permits exclude the exclusive lock of the same resource
+        assertFalse(resourceLockingFramework.lockResource(RESOURCE1, OWNER4, "UPDATE", 300, 100));
+
+        // A waiter gets the permit given back
+        CompletableFuture<Boolean> waiting =
+                resourceLockingFramework.acquirePermitAsync(
+                        RESOURCE1, OWNER3, "UPDATE", 2, 10000, 10000);
+        Thread.sleep(200);
+        assertFalse(waiting.isDone());
+        assertEquals(0, resourceLockingFramework.releasePermit(RESOURCE1, OWNER1));
+        assertTrue(waiting.get(5, TimeUnit.SECONDS));
+        assertEquals(
+                new HashSet<>(Arrays.asList(OWNER2, OWNER3)),
+                resourceLockingFramework.getOwners(RESOURCE1));
+
+        assertEquals(1, resourceLockingFramework.releasePermit(RESOURCE1, OWNER1));
+        assertEquals(0, resourceLockingFramework.releasePermit(RESOURCE1, OWNER2));
+        assertEquals(0, resourceLockingFramework.releasePermit(RESOURCE1, OWNER3));
+        assertTrue(resourceLockingFramework.isUnlocked(RESOURCE1));
+    }
+
+    @Test
+    public void journalTest(@TempDir Path directory) throws Exception {
+
+        ResourceLockingFramework framework =
+                newFramework(
+                        ResourceLockingFrameworkOptions.builder()
+                                .journalFile(directory.resolve("locks.journal"))
+                                .build());
+        ResourceLockJournal journal = framework.getJournal();
+        journal.start();
+        try {
+            assertTrue(framework.lockResource(RESOURCE1, OWNER1, "CREATE"));
+            assertFalse(framework.lockResource(RESOURCE1, OWNER2, "UPDATE", 300, 100));
+            assertEquals(0, framework.unlockResource(RESOURCE1, OWNER1));
+            assertTrue(framework.lockResource(RESOURCE2, OWNER2, "UPDATE"));
+            assertEquals(0, framework.unlockResource(RESOURCE2, OWNER2));
+
+            assertEquals(
+                    Arrays.asList(
+                            ResourceLockEvent.Type.ACQUIRED,
+                            ResourceLockEvent.Type.TIMED_OUT,
+                            ResourceLockEvent.Type.RELEASED),
+                    journal.history(RESOURCE1).stream()
+                            .map(ResourceLockEvent::getType)
+                            .collect(Collectors.toList()));
+
+            List<ResourceLockEvent> holds = journal.holdHistory(RESOURCE1);
+            assertEquals(1, holds.size());
+            assertEquals(OWNER1, holds.get(0).getOwnerId());
+
+            // Only the resource an owner gave up on is a hot spot
+            List<ResourceLockJournal.HotSpot> hotSpots = journal.hotSpots(10);
+            assertEquals(1, hotSpots.size());
+            assertEquals(RESOURCE1, hotSpots.get(0).getResourceLockId());
+            assertEquals(1, hotSpots.get(0).getContentions());
+            assertEquals(0, journal.getDroppedEvents());
+        } finally {
+            journal.stop();
+        }
+
+        // Events that do not fit in the buffer are dropped instead of blocking the lock path
+        ResourceLockingFramework small =
+                newFramework(
+                        ResourceLockingFrameworkOptions.builder()
+                                .journalFile(directory.resolve("small.journal"))
+                                .journalBufferSize(2)
+                                .build());
+        assertTrue(small.lockResource(RESOURCE3, OWNER1, "CREATE"));
+        assertEquals(0, small.unlockResource(RESOURCE3, OWNER1));
+        assertTrue(small.lockResource(RESOURCE3, OWNER2, "CREATE"));
+        assertEquals(1, small.getJournal().getDroppedEvents());
+        assertEquals(0, small.unlockResource(RESOURCE3, OWNER2));
+    }
+
+    @Test
+    public void journalRecoveryTest(@TempDir Path directory) throws Exception {
+
+        // IDs with separators survive the round trip through a journal line
+        ResourceLockEvent event =
+                new ResourceLockEvent(
+                        1, ResourceLockEvent.Type.ACQUIRED, "/a\tb\nc", "owner\\1", 2);
+        assertEquals(event, ResourceLockEvent.fromLine(event.toLine()));
+
+        // A line torn by a crash is skipped, and the events after it are still read
+        Path file = directory.resolve("locks.journal");
+        Files.write(file, "1\tACQUIRED\tresou".getBytes(StandardCharsets.UTF_8));
+        ResourceLockingFramework framework =
+                newFramework(
+                        ResourceLockingFrameworkOptions.builder()
+                                .journalFile(file)
+                                .journalMaxBytes(1024)
+                                .build());
+        ResourceLockJournal journal = framework.getJournal();
+        journal.start();
+        try {
+            assertTrue(framework.lockResource(RESOURCE1, OWNER1, "CREATE"));
+            assertEquals(0, framework.unlockResource(RESOURCE1, OWNER1));
+            assertEquals(2, journal.history(RESOURCE1).size());
+            assertEquals(1, journal.getUnreadableLines());
+
+            // The file is rotated once it reaches its maximum size
+            for (int i = 0; i < 20; i++) {
+                assertTrue(framework.lockResource(RESOURCE2, OWNER1, "CREATE"));
+                assertEquals(0, framework.unlockResource(RESOURCE2, OWNER1));
+            }
+            journal.flush();
+            assertTrue(Files.exists(directory.resolve("locks.journal.1")));
+            assertTrue(Files.size(file) < 1024);
+            assertFalse(journal.history(RESOURCE2).isEmpty());
+        } finally {
+            journal.stop();
+        }
+    }
+
+    @Test
+    public void holdTimePredictionTest() throws Exception {
+
+        ResourceLockingFramework framework =
+                newFramework(
+                        ResourceLockingFrameworkOptions.builder()
+                                .failFastOnPredictedTimeout(true)
+                                .lockStateCacheStalenessMillis(1000)
+                                .build());
+
+        // Without hold times the default policy backs off with jitter up to the retry time
+        ResourceLockRetryPolicy policy = framework.getOptions().getRetryPolicy();
+        long retryNanos = TimeUnit.MILLISECONDS.toNanos(100);
+        for (int attempts = 1; attempts < 40; attempts++) {
+            long delay = policy.delayNanos(attempts, 100, -1);
+            assertTrue(delay > 0 && delay <= retryNanos);
+        }
+
+        // Owner 1 always holds the lock for about 300 milliseconds
+        for (int i = 0; i < ResourceLockHoldPredictor.MIN_SAMPLES; i++) {
+            assertTrue(framework.lockResource(RESOURCE1, OWNER1, "CREATE"));
+            Thread.sleep(300);
+            assertEquals(0, framework.unlockResource(RESOURCE1, OWNER1));
+        }
+        assertEquals(-1, framework.getHoldPredictor().predictedWaitNanos(RESOURCE1));
+        assertTrue(framework.lockResource(RESOURCE1, OWNER1, "CREATE"));
+        assertTrue(framework.getHoldPredictor().predictedWaitNanos(RESOURCE1) > 0);
+
+        // A waiter that cannot outlast the hold gives up right away
+        long start = System.nanoTime();
+        assertEquals(
+                ResourceLockResult.TIMED_OUT,
+                framework.tryLockResource(RESOURCE1, OWNER2, "UPDATE", 200, 50));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 150);
+
+        // One that can sleeps until the predicted release and gets the lock
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        Future<Boolean> waiting =
+                executorService.submit(
+                        () -> framework.lockResource(RESOURCE1, OWNER3, "UPDATE", 5000, 50));
+        Thread.sleep(100);
+        assertEquals(0, framework.unlockResource(RESOURCE1, OWNER1));
+        assertTrue(waiting.get(5, TimeUnit.SECONDS));
+        executorService.shutdown();
+        assertEquals(0, framework.unlockResource(RESOURCE1, OWNER3));
+
+        // A holder on another node is predicted from the acquire time on its row: this one has
+        // held the lock for longer than usual already, so the waiter does not give up early
+        ResourceLockRequest remote =
+                ResourceLockRequest.builder()
+                        .ownerId(OWNER4)
+                        .operation("CREATE")
+                        .leaseUntil(System.currentTimeMillis() + 60000)
+                        .build();
+        assertTrue(framework.getLockStore().acquireIfUnlocked(RESOURCE1, remote));
+        Thread.sleep(400);
+        start = System.nanoTime();
+        assertEquals(
+                ResourceLockResult.TIMED_OUT,
+                framework.tryLockResource(RESOURCE1, OWNER2, "UPDATE", 200, 50));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 150);
+        assertTrue(framework.getLockStore().releaseIfOwner(RESOURCE1, OWNER4));
+
+        // The acquire time on the row wins over a local acquire the row no longer reflects
+        ResourceLockHoldPredictor predictor = framework.getHoldPredictor();
+        predictor.acquired(RESOURCE1);
+        assertTrue(predictor.predictedWaitNanos(RESOURCE1) > 0);
+        predictor.refused(RESOURCE1, System.currentTimeMillis() - 60000);
+        assertEquals(-1, predictor.predictedWaitNanos(RESOURCE1));
+    }
+
+    @Test
+    public void releaseQueueTest() throws Exception {
+
+        MetricRegistry metricRegistry = new MetricRegistry();
+        ResourceLockingFramework framework =
+                newFramework(
+                        ResourceLockingFrameworkOptions.builder()
+                                .metrics(new DropwizardResourceLockMetrics(metricRegistry))
+                                .releaseQueueIntervalMillis(10_000)
+                                .build());
+        ResourceLockReleaseQueue releaseQueue = framework.getReleaseQueue();
+        String pending = "resourceLocks.releases.pending";
+
+        // Releases that kept conflicting stay in the store until the queue writes them
+        assertTrue(framework.lockResource(RESOURCE1, OWNER1, "CREATE"));
+        assertTrue(framework.lockResource(RESOURCE2, OWNER1, "CREATE"));
+        releaseQueue.add(RESOURCE1, OWNER1);
+        releaseQueue.add(RESOURCE2, OWNER1);
+        assertEquals(2, metricRegistry.getGauges().get(pending).getValue());
+        assertTrue(framework.isLocked(RESOURCE1, true));
+
+        // A release taken over by its owner, as when it locks the resource again, is not written
+        releaseQueue.add(RESOURCE2, OWNER1);
+        assertEquals(2, releaseQueue.getPendingReleases());
+        assertTrue(releaseQueue.takeOver(RESOURCE2, OWNER1, 0));
+        assertEquals(1, releaseQueue.getPendingReleases());
+        assertTrue(releaseQueue.takeOver(RESOURCE2, OWNER1, 0));
+
+        assertEquals(1, releaseQueue.drain());
+        assertEquals(0, releaseQueue.getPendingReleases());
+        assertEquals(0, metricRegistry.getGauges().get(pending).getValue());
+        assertFalse(framework.isLocked(RESOURCE1, true));
+        assertTrue(framework.isLocked(RESOURCE2, true));
+        assertEquals(0, framework.unlockResource(RESOURCE2, OWNER1));
+
+        // Stopping the queue writes what is left, and wakes the waiters of the lock
+        assertTrue(framework.lockResource(RESOURCE3, OWNER1, "CREATE"));
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        Future<Boolean> waiting =
+                executorService.submit(
+                        () -> framework.lockResource(RESOURCE3, OWNER2, "UPDATE", 5000, 1000));
+        releaseQueue.start();
+        releaseQueue.add(RESOURCE3, OWNER1);
+        releaseQueue.stop();
+        assertEquals(0, releaseQueue.getPendingReleases());
+        assertTrue(waiting.get(5, TimeUnit.SECONDS));
+        executorService.shutdown();
+        assertEquals(0, framework.unlockResource(RESOURCE3, OWNER2));
+    }
+
+    @Test
+    public void releaseGivenUpTest() {
+
+        // A store that cannot write releases for another reason than a conflict
+        InMemoryResourceLockStore rows = new InMemoryResourceLockStore();
+        ResourceLockStore failingWrites =
+                (ResourceLockStore)
+                        Proxy.newProxyInstance(
+                                ResourceLockStore.class.getClassLoader(),
+                                new Class<?>[] {ResourceLockStore.class},
+                                (proxy, method, args) -> {
+                                    if (method.getName().equals("applyAll")) {
+                                        throw new IllegalStateException("Store unavailable");
+                                    }
+                                    try {
+                                        return method.invoke(rows, args);
+                                    } catch (InvocationTargetException e) {
+                                        throw e.getCause();
+                                    }
+                                });
+        ResourceLockReleaseQueue releaseQueue =
+                new ResourceLockReleaseQueue(
+                        failingWrites,
+                        ResourceLockingFrameworkOptions.builder()
+                                .releaseQueueIntervalMillis(10_000)
+                                .build(),
+                        (id, next) -> {});
+        releaseQueue.add(RESOURCE1, OWNER1);
+
+        // The release is retried on every drain, then dropped
+        for (int i = 1; i < ResourceLockReleaseQueue.MAX_WRITE_FAILURES; i++) {
+            assertEquals(0, releaseQueue.drain());
+            assertEquals(1, releaseQueue.getPendingReleases());
+        }
+        assertEquals(0, releaseQueue.drain());
+        assertEquals(0, releaseQueue.getPendingReleases());
+    }
+
+    @Test
+    public void releaseTakenOverWhileWrittenTest() throws Exception {
+
+        // A store whose batched writes wait until the test lets them through
+        InMemoryResourceLockStore rows = new InMemoryResourceLockStore();
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        ResourceLockStore slowWrites =
+                (ResourceLockStore)
+                        Proxy.newProxyInstance(
+                                ResourceLockStore.class.getClassLoader(),
+                                new Class<?>[] {ResourceLockStore.class},
+                                (proxy, method, args) -> {
+                                    if (method.getName().equals("applyAll")) {
+                                        writing.countDown();
+                                        proceed.await();
+                                    }
+                                    try {
+                                        return method.invoke(rows, args);
+                                    } catch (InvocationTargetException e) {
+                                        throw e.getCause();
+                                    }
+                                });
+        ResourceLockReleaseQueue releaseQueue =
+                new ResourceLockReleaseQueue(
+                        slowWrites, ResourceLockingFrameworkOptions.defaults(), (id, next) -> {});
+        ResourceLockRequest request =
+                ResourceLockRequest.builder().ownerId(OWNER1).operation("CREATE").build();
+        assertTrue(rows.acquireIfUnlocked(RESOURCE1, request));
+        releaseQueue.add(RESOURCE1, OWNER1);
+
+        // The owner locks the resource again while a drain is writing its release
+        CompletableFuture<Integer> drained = CompletableFuture.supplyAsync(releaseQueue::drain);
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        long timeoutNanos = TimeUnit.SECONDS.toNanos(5);
+        CompletableFuture<Boolean> takenOver =
+                CompletableFuture.supplyAsync(
+                        () -> releaseQueue.takeOver(RESOURCE1, OWNER1, timeoutNanos));
+        Thread.sleep(100);
+        assertFalse(takenOver.isDone());
+
+        // An owner out of time does not wait for the write, and may not acquire the lock yet
+        assertFalse(
+                releaseQueue.takeOver(RESOURCE1, OWNER1, TimeUnit.MILLISECONDS.toNanos(50)));
+
+        // It waits for the release to be written, then acquires the lock anew
+        proceed.countDown();
+        assertEquals(1, (int) drained.get(5, TimeUnit.SECONDS));
+        assertTrue(takenOver.get(5, TimeUnit.SECONDS));
+        assertFalse(rows.read(RESOURCE1).isLocked());
+        assertTrue(rows.acquireIfUnlocked(RESOURCE1, request));
+        assertEquals(0, releaseQueue.drain());
+        assertTrue(rows.read(RESOURCE1).isLocked());
+    }
 }
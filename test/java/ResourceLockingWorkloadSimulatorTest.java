@@ -0,0 +1,57 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class ResourceLockingWorkloadSimulatorTest {
+
+    @Test
+    public void contendedWorkloadTest() throws Exception {
+
+        // A few hot resources shared by every node, so that owners wait on each other
+        ResourceLockingWorkloadSimulator.Report report =
+                new ResourceLockingWorkloadSimulator(
+                                ResourceLockingWorkloadSimulator.Workload.builder()
+                                        .nodes(3)
+                                        .ownersPerNode(4)
+                                        .resources(10)
+                                        .zipfExponent(1.5)
+                                        .meanHoldMicros(200)
+                                        .readFraction(0.3)
+                                        .multiResourceFraction(0.1)
+                                        .durationSeconds(1)
+                                        .build())
+                        .run();
+
+        assertEquals(0, report.getViolations());
+        assertEquals(0, report.getOwnerFailures());
+        assertTrue(report.getAcquires() > 0);
+        assertTrue(report.getAcquiresPerSecond() > 0);
+        assertTrue(report.getConflictRate() > 0 && report.getConflictRate() < 1);
+        assertTrue(report.getP50WaitMicros() <= report.getP99WaitMicros());
+        assertTrue(report.getP99WaitMicros() <= report.getP999WaitMicros());
+    }
+
+    @Test
+    public void leasedWorkloadTest() throws Exception {
+
+        // Leases need the renewer of each node running, so the nodes are started for the run
+        ResourceLockingWorkloadSimulator.Report report =
+                new ResourceLockingWorkloadSimulator(
+                                ResourceLockingWorkloadSimulator.Workload.builder()
+                                        .nodes(2)
+                                        .ownersPerNode(2)
+                                        .resources(10)
+                                        .timeoutMillis(100)
+                                        .durationSeconds(1)
+                                        .nodeOptions(options -> options.leaseDurationMillis(3000))
+                                        .build())
+                        .run();
+
+        assertEquals(0, report.getOwnerFailures());
+        assertEquals(0, report.getViolations());
+        assertTrue(report.getAcquires() > 0);
+    }
+}
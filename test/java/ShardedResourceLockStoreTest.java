@@ -0,0 +1,222 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import org.junit.jupiter.api.Test;
+
+class ShardedResourceLockStoreTest extends ResourceLockStoreConformanceTest {
+
+    private static final long TOPOLOGY_CHECK = 10;
+
+    @Override
+    ResourceLockStore store() {
+        return new ShardedResourceLockStore(
+                ImmutableMap.of(
+                        "shard1", new InMemoryResourceLockStore(),
+                        "shard2", new InMemoryResourceLockStore(),
+                        "shard3", new InMemoryResourceLockStore()));
+    }
+
+    @Test
+    public void crossShardAcquireIsAllOrNothingTest() {
+
+        ShardedResourceLockStore store = (ShardedResourceLockStore) store();
+        List<String> resourceLockIds = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            resourceLockIds.add("resource" + i);
+        }
+        String last = resourceLockIds.get(resourceLockIds.size() - 1);
+
+        assertTrue(store.acquireIfUnlocked(last, request(OWNER2, "UPDATE")));
+        assertTrue(store.acquireIfUnlocked(resourceLockIds.get(0), request(OWNER1, "CREATE")));
+        assertFalse(store.acquireAllIfUnlocked(resourceLockIds, request(OWNER1, "CREATE")));
+
+        // The rollback keeps the lock the owner held before and releases everything else
+        assertEquals(OWNER1, store.read(resourceLockIds.get(0)).getOwner());
+        for (String resourceLockId : resourceLockIds.subList(1, resourceLockIds.size() - 1)) {
+            assertFalse(store.read(resourceLockId).isLocked());
+        }
+
+        assertTrue(store.releaseIfOwner(last, OWNER2));
+        assertTrue(store.acquireAllIfUnlocked(resourceLockIds, request(OWNER1, "CREATE")));
+        assertEquals(
+                resourceLockIds.size(), store.releaseAllIfOwner(resourceLockIds, OWNER1).size());
+    }
+
+    @Test
+    public void reshardingTest() throws Exception {
+
+        Map<String, ResourceLockStore> shards =
+                ImmutableMap.of(
+                        "shard1", new InMemoryResourceLockStore(),
+                        "shard2", new InMemoryResourceLockStore());
+        ShardedResourceLockStore store =
+                new ShardedResourceLockStore(
+                        shards, ShardedResourceLockStore.DEFAULT_VIRTUAL_NODES, TOPOLOGY_CHECK);
+
+        Map<String, String> before = new HashMap<>();
+        for (int i = 0; i < 64; i++) {
+            before.put("resource" + i, store.shardFor("resource" + i));
+        }
+        assertTrue(store.acquireAllIfUnlocked(before.keySet(), request(OWNER1, "CREATE")));
+
+        store.reshard(
+                ImmutableMap.<String, ResourceLockStore>builder()
+                        .putAll(shards)
+                        .put("shard3", new InMemoryResourceLockStore())
+                        .build());
+        String moved = null;
+        for (Map.Entry<String, String> shard : before.entrySet()) {
+            if (!shard.getValue().equals(store.shardFor(shard.getKey()))) {
+                moved = shard.getKey();
+                break;
+            }
+        }
+        assertTrue(store.isResharding());
+        assertNotNull(moved);
+
+        // A held lock stays on its previous shard until it is released
+        assertEquals(OWNER1, store.read(moved).getOwner());
+        assertFalse(store.acquireIfUnlocked(moved, request(OWNER2, "UPDATE")));
+        assertTrue(store.acquireIfUnlocked(moved, request(OWNER1, "CREATE")));
+        assertFalse(store.completeResharding());
+
+        assertEquals(before.size(), store.releaseAllIfOwner(before.keySet(), OWNER1).size());
+
+        // Once every node had the time to read the new topology
+        Thread.sleep(2 * TOPOLOGY_CHECK);
+        assertTrue(store.completeResharding());
+        assertFalse(store.isResharding());
+
+        assertTrue(store.acquireIfUnlocked(moved, request(OWNER2, "UPDATE")));
+        assertEquals(OWNER2, store.read(moved).getOwner());
+    }
+
+    @Test
+    public void movedLockRefusedToStaleNodeTest() {
+
+        Map<String, ResourceLockStore> shards =
+                ImmutableMap.of(
+                        "shard1", new InMemoryResourceLockStore(),
+                        "shard2", new InMemoryResourceLockStore());
+        ShardedResourceLockStore node1 = new ShardedResourceLockStore(shards);
+        ShardedResourceLockStore node2 = new ShardedResourceLockStore(shards);
+
+        // Node 2 reads the topology of every shard before node 1 reshards
+        for (int i = 0; i < 64; i++) {
+            assertTrue(node2.acquireIfUnlocked("resource" + i, request(OWNER2, "UPDATE")));
+            assertTrue(node2.releaseIfOwner("resource" + i, OWNER2));
+        }
+        node1.reshard(
+                ImmutableMap.<String, ResourceLockStore>builder()
+                        .putAll(shards)
+                        .put("shard3", new InMemoryResourceLockStore())
+                        .build());
+        String moved = null;
+        for (int i = 0; moved == null; i++) {
+            if (!node1.shardFor("resource" + i).equals(node2.shardFor("resource" + i))) {
+                moved = "resource" + i;
+            }
+        }
+
+        // Taking the lock on its new shard marks it on the previous one first
+        assertTrue(node1.acquireIfUnlocked(moved, request(OWNER1, "CREATE")));
+        assertFalse(node2.acquireIfUnlocked(moved, request(OWNER2, "UPDATE")));
+        assertTrue(node1.releaseIfOwner(moved, OWNER1));
+        assertFalse(node2.acquireIfUnlocked(moved, request(OWNER2, "UPDATE")));
+        assertFalse(node1.read(moved).isLocked());
+    }
+
+    @Test
+    public void reshardingRacesConcurrentAcquiresTest() throws Exception {
+
+        Map<String, ResourceLockStore> shards =
+                ImmutableMap.of(
+                        "shard1", new InMemoryResourceLockStore(),
+                        "shard2", new InMemoryResourceLockStore());
+        Map<String, ResourceLockStore> resharded =
+                ImmutableMap.<String, ResourceLockStore>builder()
+                        .putAll(shards)
+                        .put("shard3", new InMemoryResourceLockStore())
+                        .build();
+        ShardedResourceLockStore node1 =
+                new ShardedResourceLockStore(
+                        shards, ShardedResourceLockStore.DEFAULT_VIRTUAL_NODES, TOPOLOGY_CHECK);
+        ShardedResourceLockStore node2 =
+                new ShardedResourceLockStore(
+                        shards, ShardedResourceLockStore.DEFAULT_VIRTUAL_NODES, TOPOLOGY_CHECK);
+        List<ShardedResourceLockStore> nodes = ImmutableList.of(node1, node2);
+
+        AtomicIntegerArray holders = new AtomicIntegerArray(16);
+        AtomicInteger acquisitions = new AtomicInteger();
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            ShardedResourceLockStore node = nodes.get(t % nodes.size());
+            String ownerId = "owner" + t;
+            workers.add(
+                    executor.submit(
+                            () -> {
+                                while (running.get()) {
+                                    int i = ThreadLocalRandom.current().nextInt(holders.length());
+                                    String resourceLockId = "resource" + i;
+                                    try {
+                                        if (!node.acquireIfUnlocked(
+                                                resourceLockId, request(ownerId, "UPDATE"))) {
+                                            continue;
+                                        }
+                                    } catch (IllegalStateException e) {
+                                        // The other node resharded and this one has not yet
+                                        continue;
+                                    }
+                                    assertEquals(1, holders.incrementAndGet(i));
+                                    acquisitions.incrementAndGet();
+                                    holders.decrementAndGet(i);
+                                    assertTrue(node.releaseIfOwner(resourceLockId, ownerId));
+                                }
+                                return null;
+                            }));
+        }
+
+        // The nodes reshard at different moments while both keep acquiring
+        Thread.sleep(50);
+        node1.reshard(resharded);
+        Thread.sleep(50);
+        node2.reshard(resharded);
+        Thread.sleep(50);
+        while (!node1.completeResharding()) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+
+        running.set(false);
+        for (Future<?> worker : workers) {
+            worker.get();
+        }
+        executor.shutdown();
+
+        // The second node follows the completion made by the first one
+        assertFalse(node2.isResharding());
+        assertTrue(acquisitions.get() > 0);
+        for (int i = 0; i < holders.length(); i++) {
+            assertFalse(node1.read("resource" + i).isLocked());
+        }
+    }
+}
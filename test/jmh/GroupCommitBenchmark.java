@@ -0,0 +1,120 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import com.oracle.pic.project.config.dbConfiguration;
+import com.oracle.pic.project.dao.DaoModule;
+import com.oracle.pic.project.utils.FailsafeHelper;
+import com.oracle.pic.project.worker.config.ResourceLocksConfig;
+import com.oracle.pic.db.KaasStoreConfig;
+import com.oracle.pic.sfw.db.dbTransactionProvider;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lock and unlock throughput of many threads with group commit, where calls that arrive within the
+ * batch window share one store transaction, against the per-call path with a window of zero.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(32)
+public class GroupCommitBenchmark {
+
+    private static final int RESOURCE_COUNT = 4096;
+
+    @State(Scope.Benchmark)
+    public static class Store {
+
+        @Param({"0", "100", "500"})
+        public long windowMicros;
+
+        @Param({"64"})
+        public int maxBatchSize;
+
+        private DaoModule dao;
+        private ResourceLockingFramework resourceLockingFramework;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+
+            final dbConfiguration dbConfiguration = new dbConfiguration();
+            dbConfiguration.setUsedbInMemory(true);
+            dbConfiguration.setKaasStoreConfig(
+                    new KaasStoreConfig("BenchmarkStore", "resourceLocking-cp"));
+            dao = new DaoModule(dbConfiguration);
+
+            ResourceLocksConfig resourceLocksConfig =
+                    ResourceLocksConfig.builder()
+                            .recoverySystemLockRetryTime(ResourceLockingFrameworkState.RETRY_TIME)
+                            .recoverySystemResourceLockTimeoutLimit(
+                                    ResourceLockingFrameworkState.TIMEOUT)
+                            .dataPathLockRetryTime(ResourceLockingFrameworkState.RETRY_TIME)
+                            .dataPathResourceLockTimeoutLimit(ResourceLockingFrameworkState.TIMEOUT)
+                            .build();
+
+            resourceLockingFramework =
+                    new ResourceLockingFramework(
+                            dao.getResourceLocksDao(),
+                            new dbTransactionProvider(dao.getMappedDataStore()),
+                            dao.getDataPathsDao(),
+                            resourceLocksConfig,
+                            new FailsafeHelper(30, 10),
+                            ResourceLockingFrameworkOptions.builder()
+                                    .groupCommitWindowMicros(windowMicros)
+                                    .groupCommitMaxBatchSize(maxBatchSize)
+                                    .build());
+
+            dao.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void teardown() throws Exception {
+            dao.stop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Owner {
+
+        public String ownerId;
+
+        @Setup
+        public void setup() {
+            ownerId = UUID.randomUUID().toString();
+        }
+    }
+
+    @Benchmark
+    public boolean lockUnlock(Store store, Owner owner) {
+
+        String resourceLockId =
+                "resource" + ThreadLocalRandom.current().nextInt(RESOURCE_COUNT);
+        boolean locked =
+                store.resourceLockingFramework.lockResource(
+                        resourceLockId,
+                        owner.ownerId,
+                        "UPDATE",
+                        ResourceLockingFrameworkState.TIMEOUT,
+                        ResourceLockingFrameworkState.RETRY_TIME);
+        if (locked) {
+            store.resourceLockingFramework.unlockResource(resourceLockId, owner.ownerId);
+        }
+        return locked;
+    }
+}
@@ -0,0 +1,105 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Locking a data path plus its sub-resources with {@code lockResources} against one {@code
+ * lockResource} call per resource, and against a single {@code lockDataPath} call on the data path.
+ *
+ * <p>Each thread works on its own resources, so the numbers show the cost of the extra
+ * transactions rather than contention.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class MultiResourceLockBenchmark {
+
+    @State(Scope.Thread)
+    public static class Resources {
+
+        @Param({"2", "8", "32"})
+        public int resourceCount;
+
+        public String ownerId;
+        public String dataPath;
+        public List<String> resourceLockIds;
+
+        @Setup
+        public void setup() {
+            ownerId = UUID.randomUUID().toString();
+            dataPath = "/" + ownerId;
+            resourceLockIds = new ArrayList<>();
+            for (int i = 0; i < resourceCount; i++) {
+                resourceLockIds.add(dataPath + "/resource" + i);
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean sequential(ResourceLockingFrameworkState state, Resources resources) {
+
+        ResourceLockingFramework framework = state.framework();
+        for (String resourceLockId : resources.resourceLockIds) {
+            if (!framework.lockResource(
+                    resourceLockId,
+                    resources.ownerId,
+                    "UPDATE",
+                    ResourceLockingFrameworkState.TIMEOUT,
+                    ResourceLockingFrameworkState.RETRY_TIME)) {
+                return false;
+            }
+        }
+        for (String resourceLockId : resources.resourceLockIds) {
+            framework.unlockResource(resourceLockId, resources.ownerId);
+        }
+        return true;
+    }
+
+    @Benchmark
+    public boolean batched(ResourceLockingFrameworkState state, Resources resources) {
+
+        ResourceLockingFramework framework = state.framework();
+        boolean locked =
+                framework.lockResources(
+                        resources.resourceLockIds,
+                        resources.ownerId,
+                        "UPDATE",
+                        ResourceLockingFrameworkState.TIMEOUT,
+                        ResourceLockingFrameworkState.RETRY_TIME);
+        framework.unlockResources(resources.resourceLockIds, resources.ownerId);
+        return locked;
+    }
+
+    @Benchmark
+    public boolean hierarchical(ResourceLockingFrameworkState state, Resources resources) {
+
+        ResourceLockingFramework framework = state.framework();
+        boolean locked =
+                framework.lockDataPath(
+                        resources.dataPath,
+                        resources.ownerId,
+                        "UPDATE",
+                        ResourceLockingFrameworkState.TIMEOUT,
+                        ResourceLockingFrameworkState.RETRY_TIME);
+        framework.unlockDataPath(resources.dataPath, resources.ownerId);
+        return locked;
+    }
+}
@@ -0,0 +1,62 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/** Popularity of resource lock IDs in a workload. */
+public enum ResourceKeyDistribution {
+
+    /** Every request goes to the same resource. */
+    HOT_KEY {
+        @Override
+        public int next(int cardinality) {
+            return 0;
+        }
+    },
+
+    /** Zipf-skewed popularity with exponent 1, a few resources get most of the requests. */
+    ZIPF {
+        @Override
+        public int next(int cardinality) {
+            return zipf(cardinality, 1.0);
+        }
+    },
+
+    /** Every resource is equally likely. */
+    UNIFORM {
+        @Override
+        public int next(int cardinality) {
+            return ThreadLocalRandom.current().nextInt(cardinality);
+        }
+    };
+
+    /** Returns the index of the next resource, in {@code [0, cardinality)}. */
+    public abstract int next(int cardinality);
+
+    private static final Map<Integer, double[]> ZIPF_CDFS = new ConcurrentHashMap<>();
+
+    /** Inverse transform sampling over a cumulative distribution cached per cardinality. */
+    static int zipf(int cardinality, double exponent) {
+
+        double[] cdf =
+                ZIPF_CDFS.computeIfAbsent(
+                        cardinality,
+                        n -> {
+                            double[] cumulative = new double[n];
+                            double sum = 0;
+                            for (int i = 0; i < n; i++) {
+                                sum += 1 / Math.pow(i + 1, exponent);
+                                cumulative[i] = sum;
+                            }
+                            for (int i = 0; i < n; i++) {
+                                cumulative[i] /= sum;
+                            }
+                            return cumulative;
+                        });
+
+        int index = Arrays.binarySearch(cdf, ThreadLocalRandom.current().nextDouble());
+        return Math.min(index >= 0 ? index : -index - 1, cardinality - 1);
+    }
+}
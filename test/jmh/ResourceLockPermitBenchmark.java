@@ -0,0 +1,80 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of all threads working on one resource through its permits against the exclusive
+ * lock of the same resource.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+public class ResourceLockPermitBenchmark {
+
+    private static final String RESOURCE_LOCK_ID = "resource/permits";
+
+    @State(Scope.Thread)
+    public static class Owner {
+
+        @Param({"1", "4", "16"})
+        public int permits;
+
+        public String ownerId;
+
+        @Setup
+        public void setup() {
+            ownerId = UUID.randomUUID().toString();
+        }
+    }
+
+    @Benchmark
+    public boolean exclusive(ResourceLockingFrameworkState state, Owner owner) {
+
+        ResourceLockingFramework framework = state.framework();
+        boolean locked =
+                framework.lockResource(
+                        RESOURCE_LOCK_ID,
+                        owner.ownerId,
+                        "UPDATE",
+                        ResourceLockingFrameworkState.TIMEOUT,
+                        ResourceLockingFrameworkState.RETRY_TIME);
+        if (locked) {
+            framework.unlockResource(RESOURCE_LOCK_ID, owner.ownerId);
+        }
+        return locked;
+    }
+
+    @Benchmark
+    public boolean permit(ResourceLockingFrameworkState state, Owner owner) {
+
+        ResourceLockingFramework framework = state.framework();
+        boolean acquired =
+                framework.acquirePermit(
+                        RESOURCE_LOCK_ID,
+                        owner.ownerId,
+                        "UPDATE",
+                        owner.permits,
+                        ResourceLockingFrameworkState.TIMEOUT,
+                        ResourceLockingFrameworkState.RETRY_TIME);
+        if (acquired) {
+            framework.releasePermit(RESOURCE_LOCK_ID, owner.ownerId);
+        }
+        return acquired;
+    }
+}
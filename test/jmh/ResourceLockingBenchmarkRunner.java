@@ -0,0 +1,59 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import java.io.File;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the resource locking benchmarks and writes the results as JMH JSON, so that runs of
+ * different versions can be compared.
+ *
+ * <p>Usage: {@code ResourceLockingBenchmarkRunner [output directory]}
+ *
+ * <ul>
+ *   <li>{@code latency.json}: the benchmarks that run with the threads of their annotations
+ *   <li>{@code throughput-N-threads.json}: {@link ResourceLockingThroughputBenchmark} with N
+ *       threads
+ * </ul>
+ */
+public class ResourceLockingBenchmarkRunner {
+
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16};
+
+    private static final String LATENCY_BENCHMARKS =
+            ResourceLockingFrameworkBenchmark.class.getSimpleName()
+                    + "|"
+                    + MultiResourceLockBenchmark.class.getSimpleName()
+                    + "|"
+                    + ShardedResourceLockingBenchmark.class.getSimpleName()
+                    + "|"
+                    + ResourceLockPermitBenchmark.class.getSimpleName()
+                    + "|"
+                    + GroupCommitBenchmark.class.getSimpleName();
+
+    public static void main(String[] args) throws Exception {
+
+        File outputDirectory = new File(args.length > 0 ? args[0] : "jmh-results");
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new IllegalStateException("Cannot create " + outputDirectory);
+        }
+
+        new Runner(options(LATENCY_BENCHMARKS, new File(outputDirectory, "latency.json")).build())
+                .run();
+
+        String throughput = ResourceLockingThroughputBenchmark.class.getSimpleName();
+        for (int threads : THREAD_COUNTS) {
+            File result = new File(outputDirectory, "throughput-" + threads + "-threads.json");
+            new Runner(options(throughput, result).threads(threads).build()).run();
+        }
+    }
+
+    private static ChainedOptionsBuilder options(String include, File result) {
+        return new OptionsBuilder()
+                .include(include)
+                .resultFormat(ResultFormatType.JSON)
+                .result(result.getPath());
+    }
+}
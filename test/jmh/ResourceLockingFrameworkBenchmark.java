@@ -0,0 +1,92 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Single-threaded latency of the uncontended lock, reentrant lock and read paths. */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResourceLockingFrameworkBenchmark {
+
+    @State(Scope.Thread)
+    public static class Owner {
+
+        public String ownerId;
+        public String resourceLockId;
+
+        @Setup
+        public void setup() {
+            ownerId = UUID.randomUUID().toString();
+            resourceLockId = "resource/" + ownerId;
+        }
+    }
+
+    /** An owner that already holds its lock, for the reentrant and read benchmarks. */
+    @State(Scope.Thread)
+    public static class Holder extends Owner {
+
+        @Setup(Level.Trial)
+        public void lock(ResourceLockingFrameworkState state) {
+            state.framework()
+                    .lockResource(
+                            resourceLockId,
+                            ownerId,
+                            "UPDATE",
+                            ResourceLockingFrameworkState.TIMEOUT,
+                            ResourceLockingFrameworkState.RETRY_TIME);
+        }
+
+        @TearDown(Level.Trial)
+        public void unlock(ResourceLockingFrameworkState state) {
+            state.framework().unlockResource(resourceLockId, ownerId);
+        }
+    }
+
+    @Benchmark
+    public int lockUnlock(ResourceLockingFrameworkState state, Owner owner) {
+        state.framework()
+                .lockResource(
+                        owner.resourceLockId,
+                        owner.ownerId,
+                        "UPDATE",
+                        ResourceLockingFrameworkState.TIMEOUT,
+                        ResourceLockingFrameworkState.RETRY_TIME);
+        return state.framework().unlockResource(owner.resourceLockId, owner.ownerId);
+    }
+
+    @Benchmark
+    public boolean reentrantLock(ResourceLockingFrameworkState state, Holder holder) {
+        return state.framework()
+                .lockResource(
+                        holder.resourceLockId,
+                        holder.ownerId,
+                        "UPDATE",
+                        ResourceLockingFrameworkState.TIMEOUT,
+                        ResourceLockingFrameworkState.RETRY_TIME);
+    }
+
+    @Benchmark
+    public boolean isLocked(ResourceLockingFrameworkState state, Holder holder) {
+        return state.framework().isLocked(holder.resourceLockId);
+    }
+
+    @Benchmark
+    public String getOwner(ResourceLockingFrameworkState state, Holder holder) {
+        return state.framework().getOwner(holder.resourceLockId);
+    }
+}
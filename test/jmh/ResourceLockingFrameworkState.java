@@ -0,0 +1,62 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import com.oracle.pic.project.config.dbConfiguration;
+import com.oracle.pic.project.dao.DaoModule;
+import com.oracle.pic.project.utils.FailsafeHelper;
+import com.oracle.pic.project.worker.config.ResourceLocksConfig;
+import com.oracle.pic.db.KaasStoreConfig;
+import com.oracle.pic.sfw.db.dbTransactionProvider;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/** Resource locking framework over the in-memory store, shared by all benchmark threads. */
+@State(Scope.Benchmark)
+public class ResourceLockingFrameworkState {
+
+    public static final long TIMEOUT = 10000;
+    public static final long RETRY_TIME = 1;
+
+    private DaoModule dao;
+    private ResourceLockingFramework resourceLockingFramework;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+
+        final dbConfiguration dbConfiguration = new dbConfiguration();
+        dbConfiguration.setUsedbInMemory(true);
+        dbConfiguration.setKaasStoreConfig(
+                new KaasStoreConfig("BenchmarkStore", "resourceLocking-cp"));
+
+        dao = new DaoModule(dbConfiguration);
+
+        ResourceLocksConfig resourceLocksConfig =
+                ResourceLocksConfig.builder()
+                        .recoverySystemLockRetryTime(RETRY_TIME)
+                        .recoverySystemResourceLockTimeoutLimit(TIMEOUT)
+                        .dataPathLockRetryTime(RETRY_TIME)
+                        .dataPathResourceLockTimeoutLimit(TIMEOUT)
+                        .build();
+
+        resourceLockingFramework =
+                new ResourceLockingFramework(
+                        dao.getResourceLocksDao(),
+                        new dbTransactionProvider(dao.getMappedDataStore()),
+                        dao.getDataPathsDao(),
+                        resourceLocksConfig,
+                        new FailsafeHelper(30, 10));
+
+        dao.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws Exception {
+        dao.stop();
+    }
+
+    public ResourceLockingFramework framework() {
+        return resourceLockingFramework;
+    }
+}
@@ -0,0 +1,78 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lock and unlock throughput as resource cardinality and key skew change.
+ *
+ * <p>The thread count is not fixed here; {@link ResourceLockingBenchmarkRunner} runs this class
+ * once per thread count.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResourceLockingThroughputBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Workload {
+
+        @Param({"1", "16", "1024"})
+        public int resourceCardinality;
+
+        @Param({"HOT_KEY", "ZIPF", "UNIFORM"})
+        public ResourceKeyDistribution distribution;
+
+        public String[] resourceLockIds;
+
+        @Setup
+        public void setup() {
+            resourceLockIds = new String[resourceCardinality];
+            for (int i = 0; i < resourceCardinality; i++) {
+                resourceLockIds[i] = "resource" + i;
+            }
+        }
+
+        public String nextResourceLockId() {
+            return resourceLockIds[distribution.next(resourceCardinality)];
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Owner {
+
+        public final String ownerId = UUID.randomUUID().toString();
+    }
+
+    @Benchmark
+    public boolean lockUnlock(
+            ResourceLockingFrameworkState state, Workload workload, Owner owner) {
+
+        String resourceLockId = workload.nextResourceLockId();
+        boolean locked =
+                state.framework()
+                        .lockResource(
+                                resourceLockId,
+                                owner.ownerId,
+                                "UPDATE",
+                                ResourceLockingFrameworkState.TIMEOUT,
+                                ResourceLockingFrameworkState.RETRY_TIME);
+        if (locked) {
+            state.framework().unlockResource(resourceLockId, owner.ownerId);
+        }
+        return locked;
+    }
+}
@@ -0,0 +1,132 @@
+package com.oracle.pic.project.worker.lockingframework;
+
+import com.oracle.pic.project.config.dbConfiguration;
+import com.oracle.pic.project.dao.DaoModule;
+import com.oracle.pic.project.utils.FailsafeHelper;
+import com.oracle.pic.project.worker.config.ResourceLocksConfig;
+import com.oracle.pic.db.KaasStoreConfig;
+import com.oracle.pic.sfw.db.dbTransactionProvider;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lock and unlock throughput of {@link ShardedResourceLockStore} over 1 to 8 in-memory stores,
+ * each with its own transaction provider, on uniformly spread resources.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+public class ShardedResourceLockingBenchmark {
+
+    private static final int RESOURCE_COUNT = 1024;
+
+    @State(Scope.Benchmark)
+    public static class Shards {
+
+        @Param({"1", "2", "4", "8"})
+        public int shardCount;
+
+        private final List<DaoModule> daos = new ArrayList<>();
+        private ResourceLockingFramework resourceLockingFramework;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+
+            Map<String, ResourceLockStore> shards = new LinkedHashMap<>();
+            DaoModule dao = null;
+            for (int i = 0; i < shardCount; i++) {
+                final dbConfiguration dbConfiguration = new dbConfiguration();
+                dbConfiguration.setUsedbInMemory(true);
+                dbConfiguration.setKaasStoreConfig(
+                        new KaasStoreConfig("BenchmarkStore" + i, "resourceLocking-cp"));
+
+                dao = new DaoModule(dbConfiguration);
+                daos.add(dao);
+                shards.put(
+                        "shard" + i,
+                        new ConditionalResourceLocksDao(
+                                dao.getResourceLocksDao(),
+                                new dbTransactionProvider(dao.getMappedDataStore())));
+            }
+
+            ResourceLocksConfig resourceLocksConfig =
+                    ResourceLocksConfig.builder()
+                            .recoverySystemLockRetryTime(ResourceLockingFrameworkState.RETRY_TIME)
+                            .recoverySystemResourceLockTimeoutLimit(
+                                    ResourceLockingFrameworkState.TIMEOUT)
+                            .dataPathLockRetryTime(ResourceLockingFrameworkState.RETRY_TIME)
+                            .dataPathResourceLockTimeoutLimit(ResourceLockingFrameworkState.TIMEOUT)
+                            .build();
+
+            resourceLockingFramework =
+                    new ResourceLockingFramework(
+                            new ShardedResourceLockStore(shards),
+                            dao.getDataPathsDao(),
+                            resourceLocksConfig,
+                            new FailsafeHelper(30, 10),
+                            ResourceLockingFrameworkOptions.builder().build());
+
+            for (DaoModule shard : daos) {
+                shard.start();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void teardown() throws Exception {
+            for (DaoModule shard : daos) {
+                shard.stop();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Owner {
+
+        public String ownerId;
+
+        @Setup
+        public void setup() {
+            ownerId = UUID.randomUUID().toString();
+        }
+    }
+
+    @Benchmark
+    public boolean lockUnlock(Shards shards, Owner owner) {
+
+        String resourceLockId =
+                "resource" + ThreadLocalRandom.current().nextInt(RESOURCE_COUNT);
+        boolean locked =
+                shards.resourceLockingFramework.lockResource(
+                        resourceLockId,
+                        owner.ownerId,
+                        "UPDATE",
+                        ResourceLockingFrameworkState.TIMEOUT,
+                        ResourceLockingFrameworkState.RETRY_TIME);
+        if (locked) {
+            shards.resourceLockingFramework.unlockResource(resourceLockId, owner.ownerId);
+        }
+        return locked;
+    }
+}